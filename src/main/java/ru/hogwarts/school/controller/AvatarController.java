@@ -1,73 +1,325 @@
 package ru.hogwarts.school.controller;
 
+import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
-import org.springframework.http.HttpHeaders;
-import org.springframework.http.HttpStatus;
-import org.springframework.http.MediaType;
-import org.springframework.http.ResponseEntity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.*;
+import org.springframework.util.DigestUtils;
+import org.springframework.web.context.request.ServletWebRequest;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
+import ru.hogwarts.school.dto.KeysetPage;
 import ru.hogwarts.school.model.Avatar;
+import ru.hogwarts.school.model.PreviewJob;
+import ru.hogwarts.school.model.UploadSession;
+import ru.hogwarts.school.service.AvatarPackMigrator;
+import ru.hogwarts.school.service.AvatarReconciler;
+import ru.hogwarts.school.service.AvatarRenderer;
+import ru.hogwarts.school.service.PreviewRegenerator;
 import ru.hogwarts.school.service.AvatarService;
+import ru.hogwarts.school.service.AvatarStorage;
+import ru.hogwarts.school.service.HotAvatarCache;
 import ru.hogwarts.school.service.StudentService;
+import ru.hogwarts.school.service.UploadSessionService;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.nio.file.Files;
-import java.nio.file.Path;
+import java.net.URI;
+import java.nio.file.NoSuchFileException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.List;
+import java.util.Optional;
+
+import static java.nio.file.StandardOpenOption.READ;
 
 @RestController
 @RequestMapping("/school/avatar")
 public class AvatarController {
+    private static final Logger logger = LoggerFactory.getLogger(AvatarController.class);
+    private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+    private static final String UPLOAD_OFFSET = "Upload-Offset";
+    private static final String UPLOAD_LENGTH = "Upload-Length";
+
     private final AvatarService avatarService;
     private final StudentService studentService;
+    private final AvatarRenderer avatarRenderer;
+    private final HotAvatarCache hotAvatarCache;
+    private final UploadSessionService uploadSessionService;
 
-    public AvatarController(AvatarService avatarService, StudentService studentService) {
+    public AvatarController(AvatarService avatarService, StudentService studentService,
+                            AvatarRenderer avatarRenderer, HotAvatarCache hotAvatarCache,
+                            UploadSessionService uploadSessionService) {
         this.avatarService = avatarService;
         this.studentService = studentService;
+        this.avatarRenderer = avatarRenderer;
+        this.hotAvatarCache = hotAvatarCache;
+        this.uploadSessionService = uploadSessionService;
     }
 
     @PostMapping(value = "/{id}/upload-avatar", consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
     public ResponseEntity<String> uploadAvatar(@PathVariable Long id,
-                                               @RequestParam MultipartFile avatar) {
-        if (avatar.getSize() > 1024 * 1024 * 5) {
+                                               @RequestParam MultipartFile avatar) throws IOException {
+        if (avatar.getSize() > avatarService.getMaxSize()) {
             return ResponseEntity.badRequest().body("Размер файла слишком большой!");
         }
-        try {
-            avatarService.uploadAvatar(id, avatar);
-        } catch (IOException e) {
-            System.out.println("Текст ошибки!");
-        }
-        return ResponseEntity.ok("Для студента " + studentService.findStudent(id).get().getName() + " добавлен аватар!");
+        avatarService.uploadAvatar(id, avatar);
+        return uploaded(id);
+    }
+
+    /**
+     * Загрузка изображения телом запроса: файл пишется на диск по мере чтения, без буферизации
+     * multipart, и отклоняется, как только превышает допустимый размер. При chunked-передаче
+     * Content-Length нет, так что размер проверяет само хранилище при чтении.
+     */
+    @PutMapping(value = "/{id}/avatar", consumes = "image/*")
+    public ResponseEntity<String> putAvatar(@PathVariable Long id,
+                                            HttpServletRequest request) throws IOException {
+        avatarService.uploadAvatar(id, request.getInputStream());
+        return uploaded(id);
+    }
+
+    /**
+     * Создает сессию возобновляемой загрузки. Размер файла передается в заголовке Upload-Length,
+     * части отправляются запросами PATCH на адрес из Location.
+     */
+    @PostMapping(value = "/{id}/uploads")
+    public ResponseEntity<UploadSession> createUploadSession(@PathVariable Long id,
+                                                             @RequestHeader(UPLOAD_LENGTH) long length) throws IOException {
+        UploadSession session = uploadSessionService.create(id, length);
+        URI location = ServletUriComponentsBuilder.fromCurrentContextPath()
+                .path("/school/avatar/uploads/{sessionId}")
+                .buildAndExpand(session.getId())
+                .toUri();
+        return ResponseEntity.created(location)
+                .header(UPLOAD_OFFSET, String.valueOf(session.getReceivedSize()))
+                .body(session);
+    }
+
+    @GetMapping(value = "/uploads/{sessionId}")
+    public ResponseEntity<UploadSession> getUploadSession(@PathVariable String sessionId) {
+        UploadSession session = uploadSessionService.get(sessionId);
+        return ResponseEntity.ok()
+                .header(UPLOAD_OFFSET, String.valueOf(session.getReceivedSize()))
+                .header(UPLOAD_LENGTH, String.valueOf(session.getTotalSize()))
+                .cacheControl(CacheControl.noStore())
+                .body(session);
+    }
+
+    @PatchMapping(value = "/uploads/{sessionId}")
+    public ResponseEntity<Void> appendUploadChunk(@PathVariable String sessionId,
+                                                  @RequestHeader(UPLOAD_OFFSET) long offset,
+                                                  HttpServletRequest request) throws IOException {
+        UploadSession session = uploadSessionService.append(sessionId, offset, request.getInputStream());
+        return ResponseEntity.noContent()
+                .header(UPLOAD_OFFSET, String.valueOf(session.getReceivedSize()))
+                .build();
+    }
+
+    @PostMapping(value = "/uploads/{sessionId}/complete")
+    public ResponseEntity<String> completeUploadSession(@PathVariable String sessionId) throws IOException {
+        return uploaded(uploadSessionService.complete(sessionId));
+    }
+
+    @DeleteMapping(value = "/uploads/{sessionId}")
+    public ResponseEntity<Void> abortUploadSession(@PathVariable String sessionId) throws IOException {
+        uploadSessionService.abort(sessionId);
+        return ResponseEntity.noContent().build();
+    }
+
+    private ResponseEntity<String> uploaded(Long id) {
+        URI status = ServletUriComponentsBuilder.fromCurrentContextPath()
+                .path("/school/avatar/{id}/preview-status")
+                .buildAndExpand(id)
+                .toUri();
+        return ResponseEntity.accepted()
+                .location(status)
+                .body("Для студента " + studentService.findStudent(id).get().getName() + " добавлен аватар!");
+    }
+
+    @GetMapping(value = "/{id}/preview-status")
+    public PreviewJob getPreviewStatus(@PathVariable Long id) {
+        return avatarService.getPreviewStatus(id);
     }
 
     @GetMapping(value = "/{id}/avatar/download-preview")
-    public ResponseEntity<byte[]> downloadPreview(@PathVariable Long id) {
+    public void downloadPreview(@PathVariable Long id,
+                                ServletWebRequest webRequest,
+                                HttpServletResponse response) throws IOException {
+        String key = HotAvatarCache.previewKey(id);
+        long generation = hotAvatarCache.generation(key);
+        HotAvatarCache.Entry cached = hotAvatarCache.get(key);
+        byte[] preview = null;
+        String mediaType;
+        String eTag;
+        if (cached != null) {
+            mediaType = cached.mediaType();
+            eTag = cached.eTag();
+        } else {
+            Avatar avatar = avatarService.getAvatar(id);
+            Optional<byte[]> found = avatarService.getPreview(id);
+            if (found.isEmpty()) {
+                response.setStatus(HttpStatus.NOT_FOUND.value());
+                return;
+            }
+            preview = found.get();
+            mediaType = avatar.getMediaType();
+            eTag = "\"" + DigestUtils.md5DigestAsHex(preview) + "\"";
+            cached = hotAvatarCache.offer(key, generation, preview, mediaType, eTag);
+        }
+        if (webRequest.checkNotModified(eTag)) {
+            return;
+        }
+        response.setContentType(mediaType);
+        if (cached != null) {
+            response.setContentLengthLong(cached.size());
+            hotAvatarCache.write(cached, 0, cached.size(), response.getOutputStream());
+        } else {
+            response.setContentLength(preview.length);
+            response.getOutputStream().write(preview);
+        }
+    }
+
+    @GetMapping(value = "/{id}/image")
+    public ResponseEntity<byte[]> getImage(@PathVariable Long id,
+                                           @RequestParam("w") int width,
+                                           ServletWebRequest webRequest) throws IOException {
         Avatar avatar = avatarService.getAvatar(id);
+        String checksum = avatarService.getChecksum(avatar);
+        String eTag = "\"" + checksum + "-" + width + "\"";
+        if (webRequest.checkNotModified(eTag)) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(eTag).build();
+        }
+        byte[] image = avatarRenderer.render(avatar.getFilePath(), checksum, width);
 
         HttpHeaders headers = new HttpHeaders();
         headers.setContentType(MediaType.parseMediaType(avatar.getMediaType()));
-        headers.setContentLength(avatar.getPreview().length);
+        headers.setContentLength(image.length);
+        headers.setETag(eTag);
 
-        return ResponseEntity.status(HttpStatus.OK).headers(headers).body(avatar.getPreview());
+        return ResponseEntity.status(HttpStatus.OK).headers(headers).body(image);
     }
 
     @GetMapping(value = "/{id}/download-avatar")
     public void downloadAvatar(@PathVariable Long id,
-                               HttpServletResponse response) {
-        Avatar avatar = avatarService.getAvatar(id);
+                               ServletWebRequest webRequest,
+                               HttpServletRequest request,
+                               HttpServletResponse response) throws IOException {
+        String key = HotAvatarCache.avatarKey(id);
+        long generation = hotAvatarCache.generation(key);
+        HotAvatarCache.Entry cached = hotAvatarCache.get(key);
+        AvatarStorage.Region source = null;
+        long length = 0;
+        try {
+            String eTag;
+            long lastModified;
+            String mediaType;
+            if (cached != null) {
+                length = cached.size();
+                eTag = cached.eTag();
+                lastModified = cached.lastModified();
+                mediaType = cached.mediaType();
+            } else {
+                Avatar avatar = avatarService.getAvatar(id);
+                source = avatarService.openFile(avatar);
+                length = source.length();
+                eTag = "\"" + avatarService.getChecksum(avatar) + "\"";
+                lastModified = source.lastModified();
+                mediaType = avatar.getMediaType();
+                cached = hotAvatarCache.offer(key, generation, source, mediaType, eTag, lastModified);
+            }
+            if (webRequest.checkNotModified(eTag, lastModified)) {
+                return;
+            }
+            response.setContentType(mediaType);
+            response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
 
-        Path path = Path.of(avatar.getFilePath());
-        try (InputStream is = Files.newInputStream(path);
-             OutputStream os = response.getOutputStream()) {
-            response.setContentType(avatar.getMediaType());
-            response.setContentLength((int) avatar.getFileSize());
-            is.transferTo(os);
+            long start = 0;
+            long end = length - 1;
+            List<HttpRange> ranges = requestedRanges(request, eTag);
+            if (ranges.size() == 1) {
+                start = ranges.get(0).getRangeStart(length);
+                end = ranges.get(0).getRangeEnd(length);
+                if (start >= length || start > end) {
+                    throw new IllegalArgumentException();
+                }
+                response.setStatus(HttpStatus.PARTIAL_CONTENT.value());
+                response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes " + start + "-" + end + "/" + length);
+            }
+            if (cached != null) {
+                response.setContentLengthLong(end - start + 1);
+                hotAvatarCache.write(cached, start, end - start + 1, response.getOutputStream());
+            } else {
+                transfer(source, start, end - start + 1, request, response);
+            }
+        } catch (IllegalArgumentException e) {
+            response.setStatus(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE.value());
+            response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + length);
+        } catch (NoSuchFileException e) {
+            // файл без ссылок мог удалить AvatarReconciler
+            logger.warn("Файл аватара студента {} не найден: {}", id, e.getFile());
+            response.setStatus(HttpStatus.NOT_FOUND.value());
         } catch (IOException e) {
-            System.out.println("Текст ошибки!");
+            logger.error("Ошибка при отдаче аватара студента {}", id, e);
+            throw e;
+        }
+    }
+
+    /**
+     * Диапазоны из заголовка Range. Несколько диапазонов и If-Range, не совпадающий
+     * с текущим ETag, обслуживаются как запрос целого файла.
+     */
+    private List<HttpRange> requestedRanges(HttpServletRequest request, String eTag) {
+        String ifRange = request.getHeader(HttpHeaders.IF_RANGE);
+        if (ifRange != null && !ifRange.equals(eTag)) {
+            return List.of();
         }
+        return HttpRange.parseRanges(request.getHeader(HttpHeaders.RANGE));
+    }
+
+    /**
+     * Передаёт часть файла без копирования через heap: через sendfile Tomcat,
+     * если коннектор его поддерживает, иначе через {@link FileChannel#transferTo}.
+     * Для записи в сегменте позиция сдвигается на ее смещение.
+     */
+    private void transfer(AvatarStorage.Region source, long start, long count,
+                          HttpServletRequest request, HttpServletResponse response) throws IOException {
+        response.setContentLengthLong(count);
+        long position = source.offset() + start;
+        if (Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT))) {
+            request.setAttribute(SENDFILE_FILENAME, source.file().toAbsolutePath().toString());
+            request.setAttribute(SENDFILE_START, position);
+            request.setAttribute(SENDFILE_END, position + count);
+            return;
+        }
+        try (FileChannel file = FileChannel.open(source.file(), READ);
+             WritableByteChannel out = Channels.newChannel(response.getOutputStream())) {
+            while (count > 0) {
+                long sent = file.transferTo(position, count, out);
+                if (sent <= 0) {
+                    break;
+                }
+                position += sent;
+                count -= sent;
+            }
+        }
+    }
+
+    @GetMapping(value = "/export.zip")
+    public ResponseEntity<StreamingResponseBody> exportAvatars(
+            @RequestParam(value = "faculty-id", required = false) Long facultyId,
+            @RequestParam(value = "student-id", required = false) List<Long> studentIds) {
+        List<Long> selected = avatarService.exportStudentIds(facultyId, studentIds);
+        return ResponseEntity.ok()
+                .contentType(MediaType.parseMediaType("application/zip"))
+                .header(HttpHeaders.CONTENT_DISPOSITION, ContentDisposition.attachment().filename("avatars.zip").build().toString())
+                .body(os -> avatarService.exportAvatars(os, facultyId, selected));
     }
 
     @GetMapping(value = "/get-all")
@@ -75,12 +327,49 @@ public class AvatarController {
         return avatarService.getAllAvatars(page, size);
     }
 
+    @GetMapping(value = "/page")
+    public KeysetPage<Avatar> getAvatarsPage(@RequestParam(value = "after", required = false) String after,
+                                             @RequestParam(value = "size", required = false) Integer size) {
+        return avatarService.getAvatarsPage(after, size);
+    }
+
     @DeleteMapping(value = "/delete")
     public String deleteAvatar(@RequestParam("student-id") Long studentId) {
         avatarService.deleteAvatar(studentId);
         return "Фото профиля для студента " + studentService.findStudent(studentId).get().getName() + " успешно удалено!";
     }
 
+    @PostMapping(value = "/previews/regeneration")
+    public ResponseEntity<PreviewRegenerator.Progress> regeneratePreviews(
+            @RequestParam(value = "restart", defaultValue = "false") boolean restart) {
+        return ResponseEntity.accepted().body(avatarService.regeneratePreviews(restart));
+    }
+
+    @GetMapping(value = "/previews/regeneration")
+    public PreviewRegenerator.Progress getRegenerationProgress() {
+        return avatarService.getRegenerationProgress();
+    }
+
+    @DeleteMapping(value = "/previews/regeneration")
+    public PreviewRegenerator.Progress cancelPreviewRegeneration() {
+        return avatarService.cancelPreviewRegeneration();
+    }
+
+    @GetMapping(value = "/reconciler")
+    public AvatarReconciler.Progress getReconcilerProgress() {
+        return avatarService.getReconcilerProgress();
+    }
+
+    /**
+     * Переносит следующую порцию аватаров из отдельных файлов в сегменты. Вызывается повторно,
+     * пока в ответе не будет done=true.
+     */
+    @PostMapping(value = "/storage/migration")
+    public AvatarPackMigrator.Progress migrateToPacks(
+            @RequestParam(value = "limit", defaultValue = "500") int limit) {
+        return avatarService.migrateToPacks(limit);
+    }
+
     @DeleteMapping(value = "/remove-unused")
     public void removeUnused() {
         avatarService.removeUnused();
@@ -2,6 +2,8 @@ package ru.hogwarts.school.controller;
 
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import ru.hogwarts.school.dto.FacultyDTO;
+import ru.hogwarts.school.dto.KeysetPage;
 import ru.hogwarts.school.model.Faculty;
 import ru.hogwarts.school.model.Student;
 import ru.hogwarts.school.service.FacultyService;
@@ -19,10 +21,16 @@ public class FacultyController {
     }
 
     @GetMapping("/get-all")
-    public List<Faculty> getFaculties() {
+    public List<FacultyDTO> getFaculties() {
         return facultyService.getAllFaculties();
     }
 
+    @GetMapping("/page")
+    public KeysetPage<FacultyDTO> getFacultiesPage(@RequestParam(value = "after", required = false) String after,
+                                                @RequestParam(value = "size", required = false) Integer size) {
+        return facultyService.getFacultiesPage(after, size);
+    }
+
     @PostMapping("/add")
     public Faculty addFaculty(@RequestBody Faculty faculty) {
         facultyService.addFaculty(faculty);
@@ -30,7 +38,7 @@ public class FacultyController {
     }
 
     @GetMapping("/get")
-    public Faculty getFacultyByID(@RequestParam("id") Long id) {
+    public FacultyDTO getFacultyByID(@RequestParam("id") Long id) {
         return facultyService.getFacultyByID(id);
     }
 
@@ -47,12 +55,12 @@ public class FacultyController {
     }
 
     @GetMapping("/sort")
-    public List<Faculty> sortByColor(@RequestParam("color") String color) {
+    public List<FacultyDTO> sortByColor(@RequestParam("color") String color) {
         return facultyService.sortByColor(color);
     }
 
     @GetMapping("/find-by")
-    public List<Faculty> findByNameOrColor(@RequestParam(value = "name", required = false) String name,
+    public List<FacultyDTO> findByNameOrColor(@RequestParam(value = "name", required = false) String name,
                                            @RequestParam(value = "color", required = false) String color) {
         return facultyService.findByNameOrColor(name, color);
     }
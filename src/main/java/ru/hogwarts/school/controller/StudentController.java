@@ -1,7 +1,11 @@
 package ru.hogwarts.school.controller;
 
 import jakarta.websocket.server.PathParam;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import ru.hogwarts.school.dto.KeysetPage;
 import ru.hogwarts.school.dto.StudentDTO;
 import ru.hogwarts.school.model.Faculty;
 import ru.hogwarts.school.model.Student;
@@ -24,6 +28,11 @@ public class StudentController {
         return student;
     }
 
+    @PostMapping("/add-batch")
+    public List<Student> addStudents(@RequestBody List<Student> students) {
+        return studentService.addStudents(students);
+    }
+
     @GetMapping("/get")
     public StudentDTO getStudentByID(@PathParam("id") Long id) {
         return studentService.getStudentByID(id);
@@ -34,6 +43,19 @@ public class StudentController {
         return studentService.getAllStudents();
     }
 
+    @GetMapping("/page")
+    public KeysetPage<StudentDTO> getStudentsPage(@RequestParam(value = "after", required = false) String after,
+                                                  @RequestParam(value = "size", required = false) Integer size) {
+        return studentService.getStudentsPage(after, size);
+    }
+
+    @GetMapping("/export")
+    public ResponseEntity<StreamingResponseBody> exportStudents() {
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_NDJSON)
+                .body(studentService::exportStudents);
+    }
+
     @DeleteMapping("/remove")
     public String deleteStudent(@RequestParam("id") Long id) {
         studentService.removeStudent(id);
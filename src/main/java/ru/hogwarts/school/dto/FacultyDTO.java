@@ -0,0 +1,13 @@
+package ru.hogwarts.school.dto;
+
+import ru.hogwarts.school.model.Faculty;
+
+public record FacultyDTO(
+        Long id,
+        String name,
+        String color
+) {
+    public static FacultyDTO of(Faculty faculty) {
+        return new FacultyDTO(faculty.getId(), faculty.getName(), faculty.getColor());
+    }
+}
@@ -0,0 +1,10 @@
+package ru.hogwarts.school.dto;
+
+import java.util.List;
+
+public record KeysetPage<T>(
+        List<T> content,
+        String next,
+        boolean hasNext
+) {
+}
@@ -0,0 +1,63 @@
+package ru.hogwarts.school.dto;
+
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Slice;
+import ru.hogwarts.school.model.exception.InvalidValueException;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Непрозрачный курсор для постраничного вывода по идентификатору: клиент передает
+ * значение {@code next} из предыдущего ответа в параметре {@code after}.
+ */
+public final class PageCursor {
+
+    public static final int DEFAULT_SIZE = 20;
+    public static final int MAX_SIZE = 100;
+    private static final String PREFIX = "id:";
+
+    private PageCursor() {
+    }
+
+    public static String encode(long id) {
+        return Base64.getUrlEncoder().withoutPadding()
+                .encodeToString((PREFIX + id).getBytes(StandardCharsets.US_ASCII));
+    }
+
+    public static long decode(String cursor) {
+        if (cursor == null || cursor.isBlank()) {
+            return 0L;
+        }
+        try {
+            String value = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.US_ASCII);
+            if (!value.startsWith(PREFIX)) {
+                throw new InvalidValueException("Некорректный курсор");
+            }
+            return Long.parseLong(value.substring(PREFIX.length()));
+        } catch (IllegalArgumentException e) {
+            throw new InvalidValueException("Некорректный курсор", e);
+        }
+    }
+
+    public static Pageable pageable(Integer size) {
+        if (size == null) {
+            return PageRequest.of(0, DEFAULT_SIZE);
+        }
+        if (size <= 0 || size > MAX_SIZE) {
+            throw new InvalidValueException();
+        }
+        return PageRequest.of(0, size);
+    }
+
+    public static <E> KeysetPage<E> page(Slice<E> slice, Function<E, Long> idOf) {
+        List<E> content = slice.getContent();
+        String next = slice.hasNext() && !content.isEmpty()
+                ? encode(idOf.apply(content.get(content.size() - 1)))
+                : null;
+        return new KeysetPage<>(content, next, slice.hasNext());
+    }
+}
@@ -2,26 +2,25 @@ package ru.hogwarts.school.model;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
-import com.fasterxml.jackson.annotation.JsonSubTypes;
 import jakarta.persistence.*;
-import org.hibernate.annotations.Type;
 
-import java.util.Arrays;
 import java.util.Objects;
 
 @Entity
+@Table(indexes = @Index(name = "avatar_checksum_index", columnList = "checksum"))
 public class Avatar {
 
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "avatar_seq")
+    @SequenceGenerator(name = "avatar_seq", sequenceName = "avatar_seq", allocationSize = 50)
     @JsonProperty(access = JsonProperty.Access.READ_ONLY)
     private Long id;
     private String filePath;
     private long fileSize;
     private String mediaType;
-    @Lob
+    private Long originalSize;
     @JsonIgnore
-    private byte[] preview;
+    private String checksum;
 
     @OneToOne
     @JoinColumn(name = "student_id")
@@ -63,12 +62,23 @@ public class Avatar {
         this.mediaType = mediaType;
     }
 
-    public byte[] getPreview() {
-        return preview;
+    /**
+     * Размер присланного клиентом файла до перекодирования, null для старых записей.
+     */
+    public Long getOriginalSize() {
+        return originalSize;
     }
 
-    public void setPreview(byte[] preview) {
-        this.preview = preview;
+    public void setOriginalSize(Long originalSize) {
+        this.originalSize = originalSize;
+    }
+
+    public String getChecksum() {
+        return checksum;
+    }
+
+    public void setChecksum(String checksum) {
+        this.checksum = checksum;
     }
 
     public Student getStudent() {
@@ -88,15 +98,12 @@ public class Avatar {
                 && Objects.equals(id, avatar.id)
                 && Objects.equals(filePath, avatar.filePath)
                 && Objects.equals(mediaType, avatar.mediaType)
-                && Arrays.equals(preview, avatar.preview)
                 && Objects.equals(student, avatar.student);
     }
 
     @Override
     public int hashCode() {
-        int result = Objects.hash(id, filePath, fileSize, mediaType, student);
-        result = 31 * result + Arrays.hashCode(preview);
-        return result;
+        return Objects.hash(id, filePath, fileSize, mediaType, student);
     }
 
     @Override
@@ -106,7 +113,6 @@ public class Avatar {
                 ", filePath='" + filePath + '\'' +
                 ", fileSize=" + fileSize +
                 ", mediaType='" + mediaType + '\'' +
-                ", data=" + Arrays.toString(preview) +
                 ", student=" + student +
                 '}';
     }
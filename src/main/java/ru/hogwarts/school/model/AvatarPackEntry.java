@@ -0,0 +1,78 @@
+package ru.hogwarts.school.model;
+
+import jakarta.persistence.*;
+
+import java.time.Instant;
+
+/**
+ * Запись индекса сегментов: где в сегменте лежит содержимое с данным SHA-256. Строки avatar
+ * ссылаются на запись через checksum, так что одинаковые аватары хранятся один раз.
+ */
+@Entity
+@Table(name = "avatar_pack_entry", indexes = @Index(name = "avatar_pack_entry_segment_index", columnList = "segment"))
+public class AvatarPackEntry {
+
+    @Id
+    @Column(length = 64)
+    private String checksum;
+    private int segment;
+    /**
+     * Смещение данных в сегменте, без заголовка записи.
+     */
+    private long position;
+    private long length;
+    /**
+     * Время записи содержимого, не меняется при переносе и повторном использовании.
+     */
+    @Column(updatable = false)
+    private Instant createdAt;
+    private Instant updatedAt;
+
+    public AvatarPackEntry(String checksum, int segment, long position, long length, Instant createdAt) {
+        this.checksum = checksum;
+        this.segment = segment;
+        this.position = position;
+        this.length = length;
+        this.createdAt = createdAt;
+        this.updatedAt = createdAt;
+    }
+
+    public AvatarPackEntry() {
+    }
+
+    public String getChecksum() {
+        return checksum;
+    }
+
+    public int getSegment() {
+        return segment;
+    }
+
+    public long getPosition() {
+        return position;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public Instant getCreatedAt() {
+        return createdAt;
+    }
+
+    public Instant getUpdatedAt() {
+        return updatedAt;
+    }
+
+    @Override
+    public String toString() {
+        return "AvatarPackEntry{" +
+                "checksum='" + checksum + '\'' +
+                ", segment=" + segment +
+                ", position=" + position +
+                ", length=" + length +
+                ", createdAt=" + createdAt +
+                ", updatedAt=" + updatedAt +
+                '}';
+    }
+}
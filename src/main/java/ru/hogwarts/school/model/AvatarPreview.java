@@ -0,0 +1,38 @@
+package ru.hogwarts.school.model;
+
+import jakarta.persistence.*;
+
+/**
+ * Миниатюра аватара. Хранится отдельно от {@link Avatar}, чтобы списки и поиск метаданных
+ * не читали байты превью.
+ */
+@Entity
+@Table(name = "avatar_preview")
+public class AvatarPreview {
+
+    @Id
+    @Column(name = "avatar_id")
+    private Long avatarId;
+
+    @Column(nullable = false, length = 1024 * 1024)
+    private byte[] data;
+
+    public AvatarPreview(Long avatarId) {
+        this.avatarId = avatarId;
+    }
+
+    public AvatarPreview() {
+    }
+
+    public Long getAvatarId() {
+        return avatarId;
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+
+    public void setData(byte[] data) {
+        this.data = data;
+    }
+}
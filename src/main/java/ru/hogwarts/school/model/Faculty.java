@@ -2,21 +2,30 @@ package ru.hogwarts.school.model;
 
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import jakarta.persistence.*;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
+import ru.hogwarts.school.model.listener.FacultyEntityListener;
+
 import java.util.List;
 import java.util.Objects;
 
 @Entity(name = "faculties")
 @JsonIgnoreProperties(value = {"students"})
+@EntityListeners(FacultyEntityListener.class)
+@Cacheable
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE, region = "faculties")
 public class Faculty {
 
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "faculties_seq")
+    @SequenceGenerator(name = "faculties_seq", sequenceName = "faculties_seq", allocationSize = 50)
     private Long id;
     private String name;
     private String color;
 
 
     @OneToMany(fetch = FetchType.LAZY, cascade = CascadeType.ALL, mappedBy = "faculty")
+    @Cache(usage = CacheConcurrencyStrategy.READ_WRITE, region = "faculty-students")
     private List<Student> students;
 
     public Faculty(String name, String color) {
@@ -0,0 +1,56 @@
+package ru.hogwarts.school.model;
+
+import jakarta.persistence.*;
+
+import java.time.Instant;
+
+/**
+ * Позиция фоновой задачи обслуживания, с которой она продолжит работу после паузы или перезапуска.
+ */
+@Entity
+@Table(name = "maintenance_checkpoint")
+public class MaintenanceCheckpoint {
+
+    @Id
+    @Column(length = 64)
+    private String name;
+    @Column(length = 255)
+    private String position;
+    private Instant updatedAt;
+
+    public MaintenanceCheckpoint(String name) {
+        this.name = name;
+    }
+
+    public MaintenanceCheckpoint() {
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getPosition() {
+        return position;
+    }
+
+    public void setPosition(String position) {
+        this.position = position;
+    }
+
+    public Instant getUpdatedAt() {
+        return updatedAt;
+    }
+
+    public void setUpdatedAt(Instant updatedAt) {
+        this.updatedAt = updatedAt;
+    }
+
+    @Override
+    public String toString() {
+        return "MaintenanceCheckpoint{" +
+                "name='" + name + '\'' +
+                ", position='" + position + '\'' +
+                ", updatedAt=" + updatedAt +
+                '}';
+    }
+}
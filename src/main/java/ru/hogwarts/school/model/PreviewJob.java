@@ -0,0 +1,95 @@
+package ru.hogwarts.school.model;
+
+import jakarta.persistence.*;
+
+import java.time.Instant;
+
+/**
+ * Состояние фоновой генерации превью для аватара.
+ */
+@Entity
+@Table(name = "preview_job", indexes = @Index(name = "preview_job_due_index", columnList = "status, next_attempt_at"))
+public class PreviewJob {
+
+    public enum Status {
+        PENDING,
+        RUNNING,
+        DONE,
+        FAILED
+    }
+
+    @Id
+    @Column(name = "avatar_id")
+    private Long avatarId;
+    @Enumerated(EnumType.STRING)
+    @Column(nullable = false, length = 16)
+    private Status status;
+    private int attempts;
+    @Column(length = 1000)
+    private String lastError;
+    private Instant nextAttemptAt;
+    private Instant updatedAt;
+
+    public PreviewJob(Long avatarId) {
+        this.avatarId = avatarId;
+    }
+
+    public PreviewJob() {
+    }
+
+    public Long getAvatarId() {
+        return avatarId;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public void setStatus(Status status) {
+        this.status = status;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public void setAttempts(int attempts) {
+        this.attempts = attempts;
+    }
+
+    public String getLastError() {
+        return lastError;
+    }
+
+    public void setLastError(String lastError) {
+        this.lastError = lastError;
+    }
+
+    public Instant getNextAttemptAt() {
+        return nextAttemptAt;
+    }
+
+    public void setNextAttemptAt(Instant nextAttemptAt) {
+        this.nextAttemptAt = nextAttemptAt;
+    }
+
+    public Instant getUpdatedAt() {
+        return updatedAt;
+    }
+
+    public void setUpdatedAt(Instant updatedAt) {
+        this.updatedAt = updatedAt;
+    }
+
+    @Override
+    public String toString() {
+        return "PreviewJob{" +
+                "avatarId=" + avatarId +
+                ", status=" + status +
+                ", attempts=" + attempts +
+                ", lastError='" + lastError + '\'' +
+                ", nextAttemptAt=" + nextAttemptAt +
+                ", updatedAt=" + updatedAt +
+                '}';
+    }
+}
@@ -1,17 +1,26 @@
 package ru.hogwarts.school.model;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import jakarta.persistence.*;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
 import org.hibernate.annotations.OnDelete;
 import org.hibernate.annotations.OnDeleteAction;
+import ru.hogwarts.school.model.listener.StudentEntityListener;
 
 import java.util.Objects;
 
 @Entity(name = "students")
+@Table(uniqueConstraints = @UniqueConstraint(name = "students_name_unique", columnNames = "name"))
+@EntityListeners(StudentEntityListener.class)
+@Cacheable
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE, region = "students")
 public class Student {
 
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "students_seq")
+    @SequenceGenerator(name = "students_seq", sequenceName = "students_seq", allocationSize = 50)
     @JsonProperty(access = JsonProperty.Access.READ_ONLY)
     private Long id;
     private String name;
@@ -22,6 +31,10 @@ public class Student {
     @OnDelete(action = OnDeleteAction.CASCADE)
     private Faculty faculty;
 
+    @Transient
+    @JsonIgnore
+    private StudentState loadedState;
+
     public Student(String name, int age, Faculty faculty) {
         this.name = name;
         this.age = age;
@@ -61,6 +74,15 @@ public class Student {
         this.faculty = faculty;
     }
 
+    @JsonIgnore
+    public StudentState getLoadedState() {
+        return loadedState;
+    }
+
+    public void setLoadedState(StudentState loadedState) {
+        this.loadedState = loadedState;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -0,0 +1,18 @@
+package ru.hogwarts.school.model;
+
+public record StudentState(
+        Long id,
+        String name,
+        int age,
+        Long facultyId
+) {
+    public static StudentState of(Student student) {
+        Faculty faculty = student.getFaculty();
+        return new StudentState(
+                student.getId(),
+                student.getName(),
+                student.getAge(),
+                faculty == null ? null : faculty.getId()
+        );
+    }
+}
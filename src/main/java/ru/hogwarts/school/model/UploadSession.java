@@ -0,0 +1,84 @@
+package ru.hogwarts.school.model;
+
+import jakarta.persistence.*;
+
+import java.time.Instant;
+
+/**
+ * Возобновляемая загрузка аватара: сколько байт ожидается, сколько уже записано во временный
+ * файл и до какого момента сессия живет без новых частей.
+ */
+@Entity
+@Table(name = "upload_session", indexes = @Index(name = "upload_session_expires_index", columnList = "expires_at"))
+public class UploadSession {
+
+    @Id
+    @Column(length = 36)
+    private String id;
+    @Column(name = "student_id", nullable = false)
+    private Long studentId;
+    @Column(name = "total_size", nullable = false)
+    private long totalSize;
+    @Column(name = "received_size", nullable = false)
+    private long receivedSize;
+    private Instant createdAt;
+    @Column(name = "expires_at")
+    private Instant expiresAt;
+
+    public UploadSession(String id, Long studentId, long totalSize) {
+        this.id = id;
+        this.studentId = studentId;
+        this.totalSize = totalSize;
+    }
+
+    public UploadSession() {
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public Long getStudentId() {
+        return studentId;
+    }
+
+    public long getTotalSize() {
+        return totalSize;
+    }
+
+    public long getReceivedSize() {
+        return receivedSize;
+    }
+
+    public void setReceivedSize(long receivedSize) {
+        this.receivedSize = receivedSize;
+    }
+
+    public Instant getCreatedAt() {
+        return createdAt;
+    }
+
+    public void setCreatedAt(Instant createdAt) {
+        this.createdAt = createdAt;
+    }
+
+    public Instant getExpiresAt() {
+        return expiresAt;
+    }
+
+    public void setExpiresAt(Instant expiresAt) {
+        this.expiresAt = expiresAt;
+    }
+
+    @Override
+    public String toString() {
+        return "UploadSession{" +
+                "id='" + id + '\'' +
+                ", studentId=" + studentId +
+                ", totalSize=" + totalSize +
+                ", receivedSize=" + receivedSize +
+                ", createdAt=" + createdAt +
+                ", expiresAt=" + expiresAt +
+                '}';
+    }
+}
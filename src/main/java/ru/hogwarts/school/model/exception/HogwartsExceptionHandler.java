@@ -2,6 +2,7 @@ package ru.hogwarts.school.model.exception;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.ControllerAdvice;
@@ -30,4 +31,29 @@ public class HogwartsExceptionHandler {
         ResponseStatus status = e.getClass().getAnnotation(ResponseStatus.class);
         return new ResponseEntity<>(e.getMessage(), status.code());
     }
+
+    @ExceptionHandler(FileTooLargeException.class)
+    public ResponseEntity<String> handleFileTooLargeException(FileTooLargeException e) {
+        return ResponseEntity.status(HttpStatus.PAYLOAD_TOO_LARGE).body(e.getMessage());
+    }
+
+    @ExceptionHandler(TooManyRequestsException.class)
+    public ResponseEntity<String> handleTooManyRequestsException(TooManyRequestsException e) {
+        return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                .header(HttpHeaders.RETRY_AFTER, String.valueOf(Math.max(1, e.getRetryAfter().toSeconds())))
+                .body(e.getMessage());
+    }
+
+    @ExceptionHandler(UploadOffsetConflictException.class)
+    public ResponseEntity<String> handleUploadOffsetConflictException(UploadOffsetConflictException e) {
+        return ResponseEntity.status(HttpStatus.CONFLICT)
+                .header("Upload-Offset", String.valueOf(e.getOffset()))
+                .body(e.getMessage());
+    }
+
+    @ExceptionHandler(InvalidImageException.class)
+    public ResponseEntity<String> handleInvalidImageException(InvalidImageException e) {
+        logger.warn(e.getMessage());
+        return ResponseEntity.unprocessableEntity().body(e.getMessage());
+    }
 }
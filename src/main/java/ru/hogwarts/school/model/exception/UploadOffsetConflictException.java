@@ -0,0 +1,18 @@
+package ru.hogwarts.school.model.exception;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+@ResponseStatus(HttpStatus.CONFLICT)
+public class UploadOffsetConflictException extends RuntimeException {
+    private final long offset;
+
+    public UploadOffsetConflictException(long offset) {
+        super("Смещение части не совпадает с уже принятым объемом загрузки!");
+        this.offset = offset;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+}
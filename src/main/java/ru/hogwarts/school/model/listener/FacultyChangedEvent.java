@@ -0,0 +1,12 @@
+package ru.hogwarts.school.model.listener;
+
+public record FacultyChangedEvent(
+        Long facultyId,
+        ChangeType type
+) {
+    public enum ChangeType {
+        CREATED,
+        UPDATED,
+        REMOVED
+    }
+}
@@ -0,0 +1,35 @@
+package ru.hogwarts.school.model.listener;
+
+import jakarta.persistence.PostPersist;
+import jakarta.persistence.PostRemove;
+import jakarta.persistence.PostUpdate;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.stereotype.Component;
+import ru.hogwarts.school.model.Faculty;
+
+import static ru.hogwarts.school.model.listener.FacultyChangedEvent.ChangeType.*;
+
+@Component
+public class FacultyEntityListener {
+
+    private final ApplicationEventPublisher publisher;
+
+    public FacultyEntityListener(ApplicationEventPublisher publisher) {
+        this.publisher = publisher;
+    }
+
+    @PostPersist
+    public void onPersist(Faculty faculty) {
+        publisher.publishEvent(new FacultyChangedEvent(faculty.getId(), CREATED));
+    }
+
+    @PostUpdate
+    public void onUpdate(Faculty faculty) {
+        publisher.publishEvent(new FacultyChangedEvent(faculty.getId(), UPDATED));
+    }
+
+    @PostRemove
+    public void onRemove(Faculty faculty) {
+        publisher.publishEvent(new FacultyChangedEvent(faculty.getId(), REMOVED));
+    }
+}
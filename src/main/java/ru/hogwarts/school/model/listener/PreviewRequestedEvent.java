@@ -0,0 +1,6 @@
+package ru.hogwarts.school.model.listener;
+
+public record PreviewRequestedEvent(
+        Long avatarId
+) {
+}
@@ -0,0 +1,29 @@
+package ru.hogwarts.school.model.listener;
+
+import ru.hogwarts.school.model.StudentState;
+
+/**
+ * Изменение студента. {@code beforeUnknown} означает, что студента обновили, но состояние до
+ * обновления не запомнилось, и {@code before} совпадает с {@code after}.
+ */
+public record StudentChangedEvent(
+        StudentState before,
+        StudentState after,
+        boolean beforeUnknown
+) {
+    public StudentChangedEvent(StudentState before, StudentState after) {
+        this(before, after, false);
+    }
+
+    public static StudentChangedEvent updatedWithoutBefore(StudentState after) {
+        return new StudentChangedEvent(after, after, true);
+    }
+
+    public boolean isCreated() {
+        return before == null && after != null;
+    }
+
+    public boolean isRemoved() {
+        return before != null && after == null;
+    }
+}
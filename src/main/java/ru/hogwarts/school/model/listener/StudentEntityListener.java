@@ -0,0 +1,52 @@
+package ru.hogwarts.school.model.listener;
+
+import jakarta.persistence.PostLoad;
+import jakarta.persistence.PostPersist;
+import jakarta.persistence.PostRemove;
+import jakarta.persistence.PostUpdate;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.stereotype.Component;
+import ru.hogwarts.school.model.Student;
+import ru.hogwarts.school.model.StudentState;
+
+/**
+ * Публикует изменения студентов, чтобы счетчики и модели чтения обновлялись без запросов к базе.
+ * Состояние на момент загрузки запоминается в сущности, поэтому при обновлении известны старые значения.
+ */
+@Component
+public class StudentEntityListener {
+
+    private final ApplicationEventPublisher publisher;
+
+    public StudentEntityListener(ApplicationEventPublisher publisher) {
+        this.publisher = publisher;
+    }
+
+    @PostLoad
+    public void onLoad(Student student) {
+        student.setLoadedState(StudentState.of(student));
+    }
+
+    @PostPersist
+    public void onPersist(Student student) {
+        StudentState state = StudentState.of(student);
+        student.setLoadedState(state);
+        publisher.publishEvent(new StudentChangedEvent(null, state));
+    }
+
+    @PostUpdate
+    public void onUpdate(Student student) {
+        StudentState before = student.getLoadedState();
+        StudentState after = StudentState.of(student);
+        student.setLoadedState(after);
+        publisher.publishEvent(before == null
+                ? StudentChangedEvent.updatedWithoutBefore(after)
+                : new StudentChangedEvent(before, after));
+    }
+
+    @PostRemove
+    public void onRemove(Student student) {
+        StudentState before = student.getLoadedState();
+        publisher.publishEvent(new StudentChangedEvent(before == null ? StudentState.of(student) : before, null));
+    }
+}
@@ -0,0 +1,55 @@
+package ru.hogwarts.school.repository;
+
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.stereotype.Repository;
+import ru.hogwarts.school.model.AvatarPackEntry;
+
+import java.time.Instant;
+import java.util.Collection;
+import java.util.List;
+
+@Repository
+public interface AvatarPackEntryRepository extends JpaRepository<AvatarPackEntry, String> {
+
+    List<AvatarPackEntry> findBySegmentOrderByPosition(int segment);
+
+    /**
+     * Помечает запись свежей перед повторным использованием, чтобы уплотнение не удалило ее
+     * до коммита новой ссылки.
+     */
+    @Modifying
+    @Query("UPDATE AvatarPackEntry e SET e.updatedAt = :now WHERE e.checksum = :checksum")
+    int touch(String checksum, Instant now);
+
+    /**
+     * Переносит запись в новый сегмент, только если ее не переместили параллельно.
+     */
+    @Modifying
+    @Query("UPDATE AvatarPackEntry e SET e.segment = :segment, e.position = :position " +
+            "WHERE e.checksum = :checksum AND e.segment = :fromSegment AND e.position = :fromPosition")
+    int move(String checksum, int fromSegment, long fromPosition, int segment, long position);
+
+    @Query("SELECT e.checksum FROM AvatarPackEntry e WHERE e.checksum > :after AND e.updatedAt < :before " +
+            "AND NOT EXISTS (SELECT a.id FROM Avatar a WHERE a.checksum = e.checksum) ORDER BY e.checksum")
+    List<String> findUnreferenced(String after, Instant before, Pageable pageable);
+
+    @Modifying
+    @Query("DELETE FROM AvatarPackEntry e WHERE e.checksum IN :checksums AND e.updatedAt < :before " +
+            "AND NOT EXISTS (SELECT a.id FROM Avatar a WHERE a.checksum = e.checksum)")
+    int deleteUnreferenced(Collection<String> checksums, Instant before);
+
+    @Query("SELECT e.segment AS segment, SUM(e.length) AS bytes, COUNT(e) AS entries " +
+            "FROM AvatarPackEntry e GROUP BY e.segment")
+    List<SegmentUsage> findSegmentUsage();
+
+    interface SegmentUsage {
+        Integer getSegment();
+
+        Long getBytes();
+
+        Long getEntries();
+    }
+}
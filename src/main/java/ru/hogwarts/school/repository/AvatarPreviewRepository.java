@@ -0,0 +1,31 @@
+package ru.hogwarts.school.repository;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.stereotype.Repository;
+import ru.hogwarts.school.model.AvatarPreview;
+
+import java.util.Optional;
+
+@Repository
+public interface AvatarPreviewRepository extends JpaRepository<AvatarPreview, Long> {
+
+    @Query("SELECT p.data FROM AvatarPreview p JOIN Avatar a ON a.id = p.avatarId WHERE a.student.id = :studentId")
+    Optional<byte[]> findDataByStudentId(Long studentId);
+
+    @Modifying
+    @Query("DELETE FROM AvatarPreview p WHERE p.avatarId IN (SELECT a.id FROM Avatar a WHERE a.student.id = :studentId)")
+    void deleteByStudentId(Long studentId);
+
+    @Query("SELECT MIN(p.avatarId) FROM AvatarPreview p WHERE p.avatarId > :afterId")
+    Optional<Long> findNextAvatarId(long afterId);
+
+    /**
+     * Удаляет превью из окна идентификаторов, у которых нет аватара или аватар без студента.
+     */
+    @Modifying
+    @Query("DELETE FROM AvatarPreview p WHERE p.avatarId > :fromId AND p.avatarId <= :toId " +
+            "AND NOT EXISTS (SELECT a.id FROM Avatar a WHERE a.id = p.avatarId AND a.student IS NOT NULL)")
+    int deleteOrphansBetween(long fromId, long toId);
+}
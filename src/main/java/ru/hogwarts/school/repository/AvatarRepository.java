@@ -1,11 +1,17 @@
 package ru.hogwarts.school.repository;
 
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Slice;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.stereotype.Repository;
 import ru.hogwarts.school.model.Avatar;
 
+import java.util.Collection;
+import java.util.List;
 import java.util.Optional;
+import java.util.Set;
 
 @Repository
 public interface AvatarRepository extends JpaRepository<Avatar, Long> {
@@ -14,6 +20,71 @@ public interface AvatarRepository extends JpaRepository<Avatar, Long> {
 
     void deleteByStudentId(Long id);
 
-    @Query(value = "delete from avatar where student_id = null", nativeQuery = true)
-    void removeUnused();
+    @Query("SELECT DISTINCT a.checksum FROM Avatar a WHERE a.checksum IN :checksums")
+    Set<String> findReferencedChecksums(Collection<String> checksums);
+
+    @Query("SELECT a.filePath FROM Avatar a WHERE a.id = :id")
+    Optional<String> findFilePathById(Long id);
+
+    Slice<Avatar> findByIdGreaterThanOrderByIdAsc(Long id, Pageable pageable);
+
+    @Query("SELECT a.id AS id, a.student.id AS studentId, a.filePath AS filePath FROM Avatar a " +
+            "WHERE a.id > :afterId ORDER BY a.id")
+    List<AvatarFile> findFilesAfter(Long afterId, Pageable pageable);
+
+    @Query("SELECT a.id AS id, a.student.id AS studentId, a.filePath AS filePath FROM Avatar a " +
+            "WHERE a.id > :afterId AND a.student.faculty.id = :facultyId ORDER BY a.id")
+    List<AvatarFile> findFilesOfFacultyAfter(Long facultyId, Long afterId, Pageable pageable);
+
+    @Query("SELECT a.id AS id, a.student.id AS studentId, a.filePath AS filePath FROM Avatar a " +
+            "WHERE a.student.id IN :studentIds ORDER BY a.id")
+    List<AvatarFile> findFilesOfStudents(Collection<Long> studentIds);
+
+    @Query("SELECT a.id AS id, a.student.id AS studentId, a.filePath AS filePath FROM Avatar a WHERE a.id IN :ids")
+    List<AvatarFile> findFilesByIdIn(Collection<Long> ids);
+
+    long countByIdLessThanEqual(Long id);
+
+    interface AvatarFile {
+        Long getId();
+
+        Long getStudentId();
+
+        String getFilePath();
+    }
+
+    @Query("SELECT a.filePath FROM Avatar a WHERE a.student.id IN :studentIds")
+    Set<String> findFilePathsOfStudents(Collection<Long> studentIds);
+
+    @Query("SELECT MIN(a.id) FROM Avatar a WHERE a.id > :afterId")
+    Optional<Long> findNextId(long afterId);
+
+    boolean existsByFilePath(String filePath);
+
+    /**
+     * Заполняет checksum записи, загруженной до появления колонки, только если файл
+     * не заменили параллельно.
+     */
+    @Modifying
+    @Query("UPDATE Avatar a SET a.checksum = :checksum " +
+            "WHERE a.id = :id AND a.filePath = :filePath AND a.checksum IS NULL")
+    int fillChecksum(Long id, String filePath, String checksum);
+
+    /**
+     * Меняет адрес файла, только если аватар не заменили параллельно.
+     */
+    @Modifying
+    @Query("UPDATE Avatar a SET a.filePath = :location, a.checksum = :checksum " +
+            "WHERE a.id = :id AND a.filePath = :filePath")
+    int relocate(Long id, String filePath, String location, String checksum);
+
+    @Modifying
+    @Query("UPDATE Avatar a SET a.filePath = :location, a.checksum = :checksum, a.fileSize = :fileSize, " +
+            "a.mediaType = :mediaType, a.originalSize = :originalSize WHERE a.id = :id AND a.filePath = :filePath")
+    int replaceFile(Long id, String filePath, String location, String checksum, long fileSize,
+                    String mediaType, long originalSize);
+
+    @Modifying
+    @Query("DELETE FROM Avatar a WHERE a.student IS NULL AND a.id > :fromId AND a.id <= :toId")
+    int deleteDetachedBetween(long fromId, long toId);
 }
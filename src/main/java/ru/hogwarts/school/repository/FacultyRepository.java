@@ -4,13 +4,6 @@ import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.stereotype.Repository;
 import ru.hogwarts.school.model.Faculty;
 
-import java.util.List;
-import java.util.Optional;
-
 @Repository
 public interface FacultyRepository extends JpaRepository<Faculty, Long> {
-
-    List<Faculty> findByNameIgnoreCaseOrColorIgnoreCaseContains(String name, String color);
-
-    Optional<Faculty> findByNameIgnoreCaseContains(String name);
 }
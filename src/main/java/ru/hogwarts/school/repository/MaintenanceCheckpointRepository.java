@@ -0,0 +1,13 @@
+package ru.hogwarts.school.repository;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+import ru.hogwarts.school.model.MaintenanceCheckpoint;
+
+import java.util.List;
+
+@Repository
+public interface MaintenanceCheckpointRepository extends JpaRepository<MaintenanceCheckpoint, String> {
+
+    List<MaintenanceCheckpoint> findByNameStartingWith(String prefix);
+}
@@ -0,0 +1,54 @@
+package ru.hogwarts.school.repository;
+
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.stereotype.Repository;
+import ru.hogwarts.school.model.PreviewJob;
+
+import java.time.Instant;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+
+@Repository
+public interface PreviewJobRepository extends JpaRepository<PreviewJob, Long> {
+
+    @Query("SELECT j FROM PreviewJob j JOIN Avatar a ON a.id = j.avatarId WHERE a.student.id = :studentId")
+    Optional<PreviewJob> findByStudentId(Long studentId);
+
+    @Query("SELECT j.avatarId FROM PreviewJob j WHERE j.status = :status AND j.nextAttemptAt <= :now ORDER BY j.nextAttemptAt")
+    List<Long> findDue(PreviewJob.Status status, Instant now, Pageable pageable);
+
+    /**
+     * Забирает задачу в работу, только если она все еще ожидает выполнения.
+     * Возвращает 0, если ее уже взял другой поток или узел.
+     */
+    @Modifying
+    @Query("UPDATE PreviewJob j SET j.status = :running, j.attempts = j.attempts + 1, j.updatedAt = :now " +
+            "WHERE j.avatarId = :avatarId AND j.status = :pending")
+    int claim(Long avatarId, PreviewJob.Status pending, PreviewJob.Status running, Instant now);
+
+    @Modifying
+    @Query("UPDATE PreviewJob j SET j.status = :pending, j.nextAttemptAt = :now " +
+            "WHERE j.status = :running AND j.updatedAt < :before")
+    int releaseStale(PreviewJob.Status running, PreviewJob.Status pending, Instant before, Instant now);
+
+    @Modifying
+    @Query("UPDATE PreviewJob j SET j.status = :done, j.lastError = NULL, j.updatedAt = :now " +
+            "WHERE j.avatarId IN :avatarIds AND j.status = :failed")
+    int resolveFailed(Collection<Long> avatarIds, PreviewJob.Status failed, PreviewJob.Status done, Instant now);
+
+    @Modifying
+    @Query("DELETE FROM PreviewJob j WHERE j.avatarId IN (SELECT a.id FROM Avatar a WHERE a.student.id = :studentId)")
+    void deleteByStudentId(Long studentId);
+
+    @Query("SELECT MIN(j.avatarId) FROM PreviewJob j WHERE j.avatarId > :afterId")
+    Optional<Long> findNextAvatarId(long afterId);
+
+    @Modifying
+    @Query("DELETE FROM PreviewJob j WHERE j.avatarId > :fromId AND j.avatarId <= :toId " +
+            "AND NOT EXISTS (SELECT a.id FROM Avatar a WHERE a.id = j.avatarId AND a.student IS NOT NULL)")
+    int deleteOrphansBetween(long fromId, long toId);
+}
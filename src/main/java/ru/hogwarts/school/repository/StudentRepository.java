@@ -1,28 +1,73 @@
 package ru.hogwarts.school.repository;
 
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Slice;
 import org.springframework.data.jpa.repository.JpaRepository;
+import jakarta.persistence.QueryHint;
 import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
 import org.springframework.stereotype.Repository;
+import ru.hogwarts.school.dto.StudentDTO;
 import ru.hogwarts.school.model.Student;
+import ru.hogwarts.school.model.StudentState;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
+import java.util.stream.Stream;
+
+import static org.hibernate.jpa.HibernateHints.HINT_CACHEABLE;
+import static org.hibernate.jpa.HibernateHints.HINT_FETCH_SIZE;
 
 @Repository
 public interface StudentRepository extends JpaRepository<Student, Long> {
 
+    String SELECT_STUDENT_DTO = "select new ru.hogwarts.school.dto.StudentDTO(s.id, s.name, s.age, f.name) " +
+            "from students s left join s.faculty f ";
+
+    @QueryHints(@QueryHint(name = HINT_CACHEABLE, value = "true"))
     List<Student> findAllByAgeBetween(int ageMin, int ageMax);
 
+    @QueryHints(@QueryHint(name = HINT_CACHEABLE, value = "true"))
     Optional<Student> findStudentByNameIgnoreCaseContains(String name);
 
-    @Query(nativeQuery = false, value = "select count(*) from students")
-    int countStudents();
+    @QueryHints(@QueryHint(name = HINT_CACHEABLE, value = "true"))
+    List<Student> findAllByFacultyIdOrderById(Long facultyId);
+
+    @Query(SELECT_STUDENT_DTO + "where s.id = :id")
+    Optional<StudentDTO> findStudentDTOById(Long id);
+
+    @Query(SELECT_STUDENT_DTO + "order by s.id")
+    List<StudentDTO> findAllStudentDTOs();
+
+    @Query(SELECT_STUDENT_DTO + "order by s.id desc")
+    List<StudentDTO> findLastStudentDTOs(Pageable pageable);
+
+    boolean existsByNameIn(Collection<String> names);
+
+    @Query(SELECT_STUDENT_DTO + "where s.id > :id order by s.id")
+    Slice<StudentDTO> findStudentDTOsAfter(Long id, Pageable pageable);
+
+    @QueryHints(@QueryHint(name = HINT_FETCH_SIZE, value = "1000"))
+    @Query("select new ru.hogwarts.school.model.StudentState(s.id, s.name, s.age, f.id) " +
+            "from students s left join s.faculty f order by s.id")
+    Stream<StudentState> streamAllStudentStates();
+
+    @Query("select s.age as age, count(s) as total from students s group by s.age")
+    List<AgeCount> countByAge();
+
+    @Query("select s.faculty.id as facultyId, count(s) as total from students s where s.faculty is not null group by s.faculty.id")
+    List<FacultyCount> countByFaculty();
+
+    interface AgeCount {
+        int getAge();
 
-    @Query(nativeQuery = true, value = "select avg(age) from students")
-    float countAvgAge();
+        long getTotal();
+    }
 
-    @Query(nativeQuery = true, value = "select * from students order by id desc limit 5 ")
-    List<Student> getLastFiveStudents();
+    interface FacultyCount {
+        Long getFacultyId();
 
-    boolean existsByName(String name);
+        long getTotal();
+    }
 }
@@ -0,0 +1,26 @@
+package ru.hogwarts.school.repository;
+
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.stereotype.Repository;
+import ru.hogwarts.school.model.UploadSession;
+
+import java.time.Instant;
+import java.util.List;
+
+@Repository
+public interface UploadSessionRepository extends JpaRepository<UploadSession, String> {
+
+    @Query("SELECT s.id FROM UploadSession s WHERE s.expiresAt < :now ORDER BY s.expiresAt")
+    List<String> findExpired(Instant now, Pageable pageable);
+
+    /**
+     * Сдвигает принятый объем, только если его не изменил параллельный запрос.
+     */
+    @Modifying
+    @Query("UPDATE UploadSession s SET s.receivedSize = :received, s.expiresAt = :expiresAt " +
+            "WHERE s.id = :id AND s.receivedSize = :expected")
+    int advance(String id, long expected, long received, Instant expiresAt);
+}
@@ -0,0 +1,19 @@
+package ru.hogwarts.school.service;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Хранилище содержимого аватаров с адресацией по SHA-256. Хранилище выбирается настройкой
+ * {@code students.avatar.storage.backend}, см. {@link AvatarStorage}.
+ */
+public interface AvatarBlobStore {
+
+    /**
+     * Сохраняет временный файл с уже посчитанным checksum и возвращает адрес для avatar.file_path.
+     * Файл после вызова может быть перемещен; удаляет остаток вызывающий.
+     */
+    String put(Path file, String checksum, String extension) throws IOException;
+
+    AvatarStorage.Region open(String location) throws IOException;
+}
@@ -0,0 +1,59 @@
+package ru.hogwarts.school.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+
+/**
+ * Каждый аватар в отдельном файле {@code ab/cd/<sha256>.<ext>}, ссылки на него считаются по
+ * строкам avatar с тем же checksum. Файлы без ссылок удаляет {@link AvatarReconciler}.
+ */
+@Component
+public class AvatarFileStore implements AvatarBlobStore {
+
+    private final Path root;
+
+    public AvatarFileStore(@Value("${students.avatar.dir.path}") String avatarsDir) {
+        this.root = Path.of(avatarsDir);
+    }
+
+    /**
+     * Если такой файл уже есть, у него обновляется время изменения, чтобы сверка не удалила
+     * его до коммита новой ссылки. Если сверка как раз перенесла файл в корзину, он записывается
+     * заново; обновленный до переноса файл сверка сама вернет на место.
+     */
+    @Override
+    public String put(Path file, String checksum, String extension) throws IOException {
+        Path target = pathOf(checksum, extension);
+        if (Files.exists(target)) {
+            try {
+                Files.setLastModifiedTime(target, FileTime.from(Instant.now()));
+                return target.toString();
+            } catch (NoSuchFileException e) {
+                // файл перенесен в корзину между проверкой и обновлением времени
+            }
+        }
+        Files.createDirectories(target.getParent());
+        Files.move(file, target, ATOMIC_MOVE);
+        return target.toString();
+    }
+
+    @Override
+    public AvatarStorage.Region open(String location) throws IOException {
+        return AvatarStorage.Region.of(Path.of(location));
+    }
+
+    public Path pathOf(String checksum, String extension) {
+        return root.resolve(checksum.substring(0, 2))
+                .resolve(checksum.substring(2, 4))
+                .resolve(checksum + "." + extension);
+    }
+}
@@ -0,0 +1,114 @@
+package ru.hogwarts.school.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import ru.hogwarts.school.model.MaintenanceCheckpoint;
+import ru.hogwarts.school.model.exception.InvalidValueException;
+import ru.hogwarts.school.repository.AvatarRepository;
+import ru.hogwarts.school.repository.MaintenanceCheckpointRepository;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.List;
+
+/**
+ * Переносит аватары из отдельных файлов в сегменты {@link AvatarPackStore}. Вызов обрабатывает
+ * следующую порцию аватаров по возрастанию id и запоминает позицию, так что перенос можно
+ * прерывать и продолжать. Файл удаляется, как только на него не осталось ссылок.
+ */
+@Component
+public class AvatarPackMigrator {
+
+    private static final Logger logger = LoggerFactory.getLogger(AvatarPackMigrator.class);
+    static final String CHECKPOINT = "avatar-pack-migration";
+
+    public record Progress(int migrated, int skipped, int failed, long lastAvatarId, boolean done) {
+    }
+
+    private final AvatarRepository avatarRepository;
+    private final MaintenanceCheckpointRepository checkpointRepository;
+    private final AvatarStorage avatarStorage;
+    private final AvatarPackStore packStore;
+    private final TransactionTemplate transactionTemplate;
+
+    public AvatarPackMigrator(AvatarRepository avatarRepository,
+                              MaintenanceCheckpointRepository checkpointRepository,
+                              AvatarStorage avatarStorage,
+                              AvatarPackStore packStore,
+                              PlatformTransactionManager transactionManager) {
+        this.avatarRepository = avatarRepository;
+        this.checkpointRepository = checkpointRepository;
+        this.avatarStorage = avatarStorage;
+        this.packStore = packStore;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+    }
+
+    public synchronized Progress migrate(int limit) {
+        if (!avatarStorage.isPackBackend() || limit <= 0) {
+            logger.error("Перенос в сегменты доступен только при students.avatar.storage.backend=pack");
+            throw new InvalidValueException();
+        }
+        long afterId = checkpointRepository.findById(CHECKPOINT)
+                .map(checkpoint -> Long.parseLong(checkpoint.getPosition()))
+                .orElse(0L);
+        List<AvatarRepository.AvatarFile> files = avatarRepository.findFilesAfter(afterId, PageRequest.of(0, limit));
+        int migrated = 0;
+        int skipped = 0;
+        int failed = 0;
+        for (AvatarRepository.AvatarFile file : files) {
+            afterId = file.getId();
+            if (file.getFilePath() == null || packStore.supports(file.getFilePath())) {
+                skipped++;
+                continue;
+            }
+            try {
+                if (migrate(file)) {
+                    migrated++;
+                } else {
+                    skipped++;
+                }
+            } catch (IOException e) {
+                logger.warn("Не удалось перенести аватар {} в сегменты", file.getId(), e);
+                failed++;
+            }
+        }
+
+        boolean done = files.size() < limit;
+        long position = afterId;
+        transactionTemplate.executeWithoutResult(status -> {
+            if (done) {
+                checkpointRepository.deleteById(CHECKPOINT);
+                return;
+            }
+            MaintenanceCheckpoint checkpoint = checkpointRepository.findById(CHECKPOINT)
+                    .orElseGet(() -> new MaintenanceCheckpoint(CHECKPOINT));
+            checkpoint.setPosition(String.valueOf(position));
+            checkpoint.setUpdatedAt(Instant.now());
+            checkpointRepository.save(checkpoint);
+        });
+        logger.info("Перенесено аватаров в сегменты: {}, пропущено {}, ошибок {}", migrated, skipped, failed);
+        return new Progress(migrated, skipped, failed, position, done);
+    }
+
+    private boolean migrate(AvatarRepository.AvatarFile file) throws IOException {
+        Path path = Path.of(file.getFilePath());
+        String checksum = AvatarStorage.checksum(path);
+        String location = packStore.put(path, checksum, AvatarStorage.extensionOf(file.getFilePath()));
+        Integer relocated = transactionTemplate.execute(status ->
+                avatarRepository.relocate(file.getId(), file.getFilePath(), location, checksum));
+        if (relocated == null || relocated == 0) {
+            // аватар заменили во время переноса
+            return false;
+        }
+        if (!avatarRepository.existsByFilePath(file.getFilePath())) {
+            Files.deleteIfExists(path);
+        }
+        return true;
+    }
+}
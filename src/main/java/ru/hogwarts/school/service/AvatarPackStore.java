@@ -0,0 +1,376 @@
+package ru.hogwarts.school.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.unit.DataSize;
+import ru.hogwarts.school.model.AvatarPackEntry;
+import ru.hogwarts.school.model.MaintenanceCheckpoint;
+import ru.hogwarts.school.repository.AvatarPackEntryRepository;
+import ru.hogwarts.school.repository.MaintenanceCheckpointRepository;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Хранит аватары записями в больших файлах-сегментах {@code packs/segment-NNNNNNNN.pack}
+ * вместо миллионов мелких файлов. Запись дописывается в конец текущего сегмента: заголовок
+ * (сигнатура, SHA-256, длина), затем данные. Где лежит содержимое, знает индекс
+ * avatar_pack_entry; чтение идет позиционно по смещению из индекса.
+ * <p>
+ * Записи без ссылок и замененные аватары остаются в сегментах мусором. Фоновое уплотнение
+ * удаляет такие записи из индекса, переносит живые записи из закрытых сегментов с большой
+ * долей мусора в текущий сегмент и удаляет опустевший сегмент после периода ожидания.
+ * Под блокировкой только резервируется место в сегменте: сама запись и строка индекса идут
+ * параллельно. Писать в сегменты должен один экземпляр приложения.
+ */
+@Component
+public class AvatarPackStore implements AvatarBlobStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(AvatarPackStore.class);
+    static final String PREFIX = "pack:";
+    private static final String PACKS_DIR = "packs";
+    private static final Pattern SEGMENT_NAME = Pattern.compile("segment-(\\d{8})\\.pack");
+    private static final int MAGIC = 0x4156504B;
+    private static final int CHECKSUM_SIZE = 32;
+    static final int HEADER_SIZE = Integer.BYTES + CHECKSUM_SIZE + Long.BYTES;
+    private static final int CLEANUP_BATCH_SIZE = 500;
+    static final String RETIRED_CHECKPOINT = "avatar-pack-retired:";
+
+    private final Path dir;
+    private final long segmentSize;
+    private final double minGarbageRatio;
+    private final Duration gracePeriod;
+    private final AvatarPackEntryRepository entryRepository;
+    private final MaintenanceCheckpointRepository checkpointRepository;
+    private final TransactionTemplate transactionTemplate;
+    private final Counter reclaimedBytes;
+    /**
+     * Число записей в сегменте, место под которые зарезервировано, а строка индекса еще
+     * не сохранена. Такой сегмент не уплотняется.
+     */
+    private final Map<Integer, Integer> writers = new HashMap<>();
+
+    private int activeSegment;
+    /**
+     * Зарезервированный размер текущего сегмента или -1, пока сегмент не открыт.
+     */
+    private long activeSize = -1;
+
+    /**
+     * Место под запись в сегменте: заголовок начинается с {@code start}.
+     */
+    private record Slot(int segment, long start, long size) {
+        long dataPosition() {
+            return start + HEADER_SIZE;
+        }
+    }
+
+    public AvatarPackStore(@Value("${students.avatar.dir.path}") String avatarsDir,
+                           @Value("${students.avatar.pack.segment-size:256MB}") DataSize segmentSize,
+                           @Value("${students.avatar.pack.min-garbage-ratio:0.5}") double minGarbageRatio,
+                           @Value("${students.avatar.pack.grace-period:PT1H}") Duration gracePeriod,
+                           AvatarPackEntryRepository entryRepository,
+                           MaintenanceCheckpointRepository checkpointRepository,
+                           PlatformTransactionManager transactionManager,
+                           MeterRegistry meterRegistry) {
+        this.dir = Path.of(avatarsDir).resolve(PACKS_DIR);
+        this.segmentSize = segmentSize.toBytes();
+        this.minGarbageRatio = minGarbageRatio;
+        this.gracePeriod = gracePeriod;
+        this.entryRepository = entryRepository;
+        this.checkpointRepository = checkpointRepository;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.reclaimedBytes = meterRegistry.counter("avatars.pack.reclaimed.bytes");
+    }
+
+    public boolean supports(String location) {
+        return location.startsWith(PREFIX);
+    }
+
+    /**
+     * Если такое содержимое уже есть в индексе, запись только помечается свежей. Если то же
+     * содержимое одновременно дописал другой поток, в индексе остается его запись, а своя
+     * становится мусором.
+     */
+    @Override
+    public String put(Path file, String checksum, String extension) throws IOException {
+        String location = PREFIX + checksum + "." + extension;
+        Instant now = Instant.now();
+        if (touch(checksum, now)) {
+            return location;
+        }
+        long length = Files.size(file);
+        try (FileChannel source = FileChannel.open(file, READ)) {
+            Slot slot = reserve(HEADER_SIZE + length);
+            try {
+                append(slot, checksum, source, 0, length);
+                AvatarPackEntry entry = new AvatarPackEntry(checksum, slot.segment(), slot.dataPosition(), length, now);
+                transactionTemplate.executeWithoutResult(status -> entryRepository.save(entry));
+            } catch (DataIntegrityViolationException e) {
+                if (!touch(checksum, now)) {
+                    throw e;
+                }
+            } finally {
+                release(slot);
+            }
+        }
+        return location;
+    }
+
+    private boolean touch(String checksum, Instant now) {
+        Integer touched = transactionTemplate.execute(status -> entryRepository.touch(checksum, now));
+        return touched != null && touched > 0;
+    }
+
+    @Override
+    public AvatarStorage.Region open(String location) throws IOException {
+        String checksum = location.substring(PREFIX.length(), location.lastIndexOf('.'));
+        AvatarPackEntry entry = entryRepository.findById(checksum)
+                .orElseThrow(() -> new NoSuchFileException(location));
+        // updatedAt меняется при повторном использовании записи, а содержимое — нет
+        return new AvatarStorage.Region(segmentPath(entry.getSegment()), entry.getPosition(), entry.getLength(),
+                entry.getCreatedAt().toEpochMilli());
+    }
+
+    /**
+     * Резервирует место в конце текущего сегмента, при переполнении открывая следующий.
+     * Пока место не освобождено через {@link #release}, сегмент считается записываемым.
+     */
+    private synchronized Slot reserve(long size) throws IOException {
+        if (activeSize < 0) {
+            Files.createDirectories(dir);
+            activeSegment = Math.max(1, lastSegment());
+            Path path = segmentPath(activeSegment);
+            activeSize = Files.exists(path) ? Files.size(path) : 0;
+        }
+        if (activeSize > 0 && activeSize + size > segmentSize) {
+            activeSegment++;
+            activeSize = 0;
+            logger.info("Открыт новый сегмент аватаров {}", activeSegment);
+        }
+        Slot slot = new Slot(activeSegment, activeSize, size);
+        activeSize += size;
+        writers.merge(slot.segment(), 1, Integer::sum);
+        return slot;
+    }
+
+    private synchronized void release(Slot slot) {
+        writers.computeIfPresent(slot.segment(), (segment, count) -> count == 1 ? null : count - 1);
+    }
+
+    private synchronized boolean isWriting(int segment) {
+        return writers.containsKey(segment);
+    }
+
+    /**
+     * Пишет запись в зарезервированное место. Недописанная запись остается в сегменте
+     * мусором без строки индекса: обрезать сегмент нельзя, за ней могут писать другие.
+     */
+    private void append(Slot slot, String checksum, FileChannel source, long from, long length) throws IOException {
+        try (FileChannel out = FileChannel.open(segmentPath(slot.segment()), CREATE, WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE)
+                    .putInt(MAGIC)
+                    .put(HexFormat.of().parseHex(checksum))
+                    .putLong(length)
+                    .flip();
+            long position = slot.start();
+            while (header.hasRemaining()) {
+                position += out.write(header, position);
+            }
+            long copied = 0;
+            out.position(position);
+            while (copied < length) {
+                long sent = source.transferTo(from + copied, length - copied, out);
+                if (sent <= 0) {
+                    throw new IOException("Файл аватара закончился раньше ожидаемого");
+                }
+                copied += sent;
+            }
+            out.force(false);
+        }
+    }
+
+    /**
+     * Удаляет из индекса записи без ссылок, затем уплотняет закрытые сегменты, в которых
+     * мусора не меньше {@code min-garbage-ratio}.
+     */
+    @Scheduled(initialDelayString = "${students.avatar.pack.compaction-interval:PT10M}",
+            fixedDelayString = "${students.avatar.pack.compaction-interval:PT10M}")
+    public void compact() {
+        if (!Files.isDirectory(dir)) {
+            return;
+        }
+        try {
+            deleteRetired();
+            int removed = removeUnreferenced();
+            if (removed > 0) {
+                logger.info("Удалено записей сегментов без ссылок: {}", removed);
+            }
+            Map<Integer, Long> live = new HashMap<>();
+            for (AvatarPackEntryRepository.SegmentUsage usage : entryRepository.findSegmentUsage()) {
+                live.put(usage.getSegment(), usage.getBytes() + usage.getEntries() * HEADER_SIZE);
+            }
+            int current = currentSegment();
+            Set<Integer> retired = retiredSegments().keySet();
+            for (int segment : segments()) {
+                if (segment >= current || retired.contains(segment) || isWriting(segment)) {
+                    continue;
+                }
+                long size = Files.size(segmentPath(segment));
+                long garbage = size - live.getOrDefault(segment, 0L);
+                if (garbage >= size * minGarbageRatio && compactSegment(segment)) {
+                    reclaimedBytes.increment(garbage);
+                }
+            }
+        } catch (IOException | UncheckedIOException e) {
+            logger.warn("Уплотнение сегментов аватаров прервано", e);
+        }
+    }
+
+    private int removeUnreferenced() {
+        Instant before = Instant.now().minus(gracePeriod);
+        int removed = 0;
+        String after = "";
+        List<String> batch;
+        do {
+            batch = entryRepository.findUnreferenced(after, before, PageRequest.of(0, CLEANUP_BATCH_SIZE));
+            if (!batch.isEmpty()) {
+                List<String> checksums = batch;
+                Integer deleted = transactionTemplate.execute(status ->
+                        entryRepository.deleteUnreferenced(checksums, before));
+                removed += deleted == null ? 0 : deleted;
+                after = batch.get(batch.size() - 1);
+            }
+        } while (batch.size() == CLEANUP_BATCH_SIZE);
+        return removed;
+    }
+
+    /**
+     * Переносит живые записи сегмента в текущий. Перед переносом заголовок записи сверяется
+     * с индексом: при расхождении сегмент не трогается.
+     */
+    private boolean compactSegment(int segment) throws IOException {
+        List<AvatarPackEntry> entries = entryRepository.findBySegmentOrderByPosition(segment);
+        try (FileChannel source = FileChannel.open(segmentPath(segment), READ)) {
+            for (AvatarPackEntry entry : entries) {
+                if (!headerMatches(source, entry)) {
+                    logger.error("Заголовок записи {} в сегменте {} не совпадает с индексом, сегмент пропущен",
+                            entry.getChecksum(), segment);
+                    return false;
+                }
+            }
+            for (AvatarPackEntry entry : entries) {
+                Slot slot = reserve(HEADER_SIZE + entry.getLength());
+                try {
+                    append(slot, entry.getChecksum(), source, entry.getPosition(), entry.getLength());
+                    transactionTemplate.executeWithoutResult(status -> entryRepository.move(entry.getChecksum(),
+                            segment, entry.getPosition(), slot.segment(), slot.dataPosition()));
+                } finally {
+                    release(slot);
+                }
+            }
+        }
+        transactionTemplate.executeWithoutResult(status -> {
+            MaintenanceCheckpoint checkpoint = new MaintenanceCheckpoint(RETIRED_CHECKPOINT + segment);
+            checkpoint.setUpdatedAt(Instant.now());
+            checkpointRepository.save(checkpoint);
+        });
+        logger.info("Сегмент аватаров {} уплотнен, перенесено записей: {}", segment, entries.size());
+        return true;
+    }
+
+    private static boolean headerMatches(FileChannel source, AvatarPackEntry entry) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        long position = entry.getPosition() - HEADER_SIZE;
+        while (header.hasRemaining()) {
+            int read = source.read(header, position + header.position());
+            if (read == -1) {
+                return false;
+            }
+        }
+        header.flip();
+        if (header.getInt() != MAGIC) {
+            return false;
+        }
+        byte[] checksum = new byte[CHECKSUM_SIZE];
+        header.get(checksum);
+        return HexFormat.of().formatHex(checksum).equals(entry.getChecksum())
+                && header.getLong() == entry.getLength();
+    }
+
+    /**
+     * Удаляет сегменты, из которых все перенесено, когда пройдет период ожидания и дочитают те,
+     * кто успел получить старое смещение. Время переноса хранится в maintenance_checkpoint,
+     * так что перезапуск не оставляет сегменты на диске навсегда.
+     */
+    private void deleteRetired() throws IOException {
+        Instant threshold = Instant.now().minus(gracePeriod);
+        for (Map.Entry<Integer, Instant> segment : retiredSegments().entrySet()) {
+            if (segment.getValue().isBefore(threshold)) {
+                Files.deleteIfExists(segmentPath(segment.getKey()));
+                transactionTemplate.executeWithoutResult(status ->
+                        checkpointRepository.deleteById(RETIRED_CHECKPOINT + segment.getKey()));
+            }
+        }
+    }
+
+    Map<Integer, Instant> retiredSegments() {
+        Map<Integer, Instant> retired = new HashMap<>();
+        for (MaintenanceCheckpoint checkpoint : checkpointRepository.findByNameStartingWith(RETIRED_CHECKPOINT)) {
+            retired.put(Integer.parseInt(checkpoint.getName().substring(RETIRED_CHECKPOINT.length())),
+                    checkpoint.getUpdatedAt());
+        }
+        return retired;
+    }
+
+    private synchronized int currentSegment() throws IOException {
+        return activeSize >= 0 ? activeSegment : lastSegment();
+    }
+
+    private int lastSegment() throws IOException {
+        List<Integer> segments = segments();
+        return segments.isEmpty() ? 0 : segments.get(segments.size() - 1);
+    }
+
+    private List<Integer> segments() throws IOException {
+        if (!Files.isDirectory(dir)) {
+            return List.of();
+        }
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.map(file -> SEGMENT_NAME.matcher(file.getFileName().toString()))
+                    .filter(Matcher::matches)
+                    .map(matcher -> Integer.parseInt(matcher.group(1)))
+                    .sorted()
+                    .toList();
+        }
+    }
+
+    private Path segmentPath(int segment) {
+        return dir.resolve(String.format("segment-%08d.pack", segment));
+    }
+
+}
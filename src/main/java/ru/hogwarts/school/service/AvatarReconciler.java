@@ -0,0 +1,483 @@
+package ru.hogwarts.school.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import ru.hogwarts.school.model.MaintenanceCheckpoint;
+import ru.hogwarts.school.repository.AvatarPreviewRepository;
+import ru.hogwarts.school.repository.AvatarRepository;
+import ru.hogwarts.school.repository.MaintenanceCheckpointRepository;
+import ru.hogwarts.school.repository.PreviewJobRepository;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+
+/**
+ * Фоновая сверка аватаров с базой и каталогом файлов. Каждый шаг ограничен: строки без студента
+ * удаляются set-based запросами по окнам идентификаторов, файлы без ссылок — по шардам с
+ * ограничением скорости удаления. Так же по шардам разбирается каталог оригиналов, сохраненных
+ * при перекодировании: копия удаляется, когда на ее checksum больше не ссылается ни один аватар.
+ * Позиции хранятся в maintenance_checkpoint, так что полный
+ * проход растягивается на много шагов и продолжается после перезапуска.
+ */
+@Component
+public class AvatarReconciler {
+
+    private static final Logger logger = LoggerFactory.getLogger(AvatarReconciler.class);
+
+    static final String ROWS_CHECKPOINT = "avatar-rows";
+    static final String FILES_CHECKPOINT = "avatar-files";
+    static final String ORIGINALS_CHECKPOINT = "avatar-originals";
+    private static final String LEGACY = "legacy:";
+    private static final String SHARD = "shard:";
+    private static final String TRASH_DIR = ".trash";
+    private static final Pattern SHARD_NAME = Pattern.compile("[0-9a-f]{2}");
+    private static final Pattern CHECKSUM_NAME = Pattern.compile("([0-9a-f]{64})(\\..*)?");
+    private static final Pattern LEGACY_NAME = Pattern.compile("(\\d{1,18})\\.[^.]+");
+
+    private final AvatarStorage avatarStorage;
+    private final AvatarTranscoder avatarTranscoder;
+    private final AvatarRepository avatarRepository;
+    private final AvatarPreviewRepository avatarPreviewRepository;
+    private final PreviewJobRepository previewJobRepository;
+    private final MaintenanceCheckpointRepository checkpointRepository;
+    private final TransactionTemplate transactionTemplate;
+    private final Duration gracePeriod;
+    private final long rowWindow;
+    private final int rowWindowsPerStep;
+    private final int filesPerStep;
+    private final long deleteIntervalNanos;
+    private final AtomicBoolean running = new AtomicBoolean();
+    private final Counter rowsDeleted;
+    private final Counter filesScanned;
+    private final Counter filesDeleted;
+    private long nextDeleteAt;
+    private volatile Instant lastStepAt;
+    private volatile Instant lastRowPassAt;
+    private volatile Instant lastFilePassAt;
+    private volatile Instant lastOriginalsPassAt;
+
+    public AvatarReconciler(AvatarStorage avatarStorage,
+                            AvatarTranscoder avatarTranscoder,
+                            AvatarRepository avatarRepository,
+                            AvatarPreviewRepository avatarPreviewRepository,
+                            PreviewJobRepository previewJobRepository,
+                            MaintenanceCheckpointRepository checkpointRepository,
+                            PlatformTransactionManager transactionManager,
+                            MeterRegistry meterRegistry,
+                            @Value("${students.avatar.reconciler.grace-period:PT1H}") Duration gracePeriod,
+                            @Value("${students.avatar.reconciler.row-window:1000}") long rowWindow,
+                            @Value("${students.avatar.reconciler.row-windows-per-step:10}") int rowWindowsPerStep,
+                            @Value("${students.avatar.reconciler.files-per-step:5000}") int filesPerStep,
+                            @Value("${students.avatar.reconciler.max-deletes-per-second:50}") int maxDeletesPerSecond) {
+        this.avatarStorage = avatarStorage;
+        this.avatarTranscoder = avatarTranscoder;
+        this.avatarRepository = avatarRepository;
+        this.avatarPreviewRepository = avatarPreviewRepository;
+        this.previewJobRepository = previewJobRepository;
+        this.checkpointRepository = checkpointRepository;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.gracePeriod = gracePeriod;
+        this.rowWindow = rowWindow;
+        this.rowWindowsPerStep = rowWindowsPerStep;
+        this.filesPerStep = filesPerStep;
+        this.deleteIntervalNanos = maxDeletesPerSecond > 0 ? TimeUnit.SECONDS.toNanos(1) / maxDeletesPerSecond : 0;
+        this.rowsDeleted = meterRegistry.counter("avatars.reconciler.rows.deleted");
+        this.filesScanned = meterRegistry.counter("avatars.reconciler.files.scanned");
+        this.filesDeleted = meterRegistry.counter("avatars.reconciler.files.deleted");
+    }
+
+    public record Progress(String rowPosition, String filePosition, String originalsPosition, long rowsDeleted,
+                           long filesScanned, long filesDeleted, Instant lastStepAt, Instant lastRowPassAt,
+                           Instant lastFilePassAt, Instant lastOriginalsPassAt) {
+    }
+
+    @Scheduled(initialDelayString = "${students.avatar.reconciler.interval:PT1M}",
+            fixedDelayString = "${students.avatar.reconciler.interval:PT1M}")
+    public void step() {
+        if (!running.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            reconcileRows();
+            reconcileFiles();
+            reconcileOriginals();
+            lastStepAt = Instant.now();
+        } catch (IOException | UncheckedIOException e) {
+            logger.warn("Шаг сверки аватаров прерван", e);
+        } finally {
+            running.set(false);
+        }
+    }
+
+    public Progress getProgress() {
+        return new Progress(position(ROWS_CHECKPOINT), position(FILES_CHECKPOINT), position(ORIGINALS_CHECKPOINT),
+                (long) rowsDeleted.count(), (long) filesScanned.count(), (long) filesDeleted.count(),
+                lastStepAt, lastRowPassAt, lastFilePassAt, lastOriginalsPassAt);
+    }
+
+    /**
+     * Полный проход по строкам без сохранения позиции, окно за окном в отдельных транзакциях.
+     */
+    public int removeOrphanRows() {
+        int deleted = 0;
+        OptionalLong next = nextRowId(0);
+        while (next.isPresent()) {
+            long from = next.getAsLong() - 1;
+            deleted += deleteWindow(from, from + rowWindow, null);
+            next = nextRowId(from + rowWindow);
+        }
+        return deleted;
+    }
+
+    void reconcileRows() {
+        String position = position(ROWS_CHECKPOINT);
+        long after = position == null ? 0 : Long.parseLong(position);
+        for (int i = 0; i < rowWindowsPerStep; i++) {
+            OptionalLong next = nextRowId(after);
+            if (next.isEmpty()) {
+                transactionTemplate.executeWithoutResult(status -> savePosition(ROWS_CHECKPOINT, null));
+                lastRowPassAt = Instant.now();
+                return;
+            }
+            long from = next.getAsLong() - 1;
+            after = from + rowWindow;
+            deleteWindow(from, after, String.valueOf(after));
+        }
+    }
+
+    /**
+     * Наименьший id после {@code afterId} во всех трех таблицах: окна начинаются с него,
+     * чтобы не перебирать пустые диапазоны после массовых удалений.
+     */
+    private OptionalLong nextRowId(long afterId) {
+        return Stream.of(avatarRepository.findNextId(afterId),
+                        avatarPreviewRepository.findNextAvatarId(afterId),
+                        previewJobRepository.findNextAvatarId(afterId))
+                .flatMap(Optional::stream)
+                .mapToLong(Long::longValue)
+                .min();
+    }
+
+    /**
+     * Сначала удаляются превью и задачи, потом сами аватары, чтобы строки без аватара
+     * не переживали окно. Позиция сохраняется в той же транзакции.
+     */
+    private int deleteWindow(long from, long to, String checkpoint) {
+        Integer deleted = transactionTemplate.execute(status -> {
+            int count = avatarPreviewRepository.deleteOrphansBetween(from, to)
+                    + previewJobRepository.deleteOrphansBetween(from, to)
+                    + avatarRepository.deleteDetachedBetween(from, to);
+            if (checkpoint != null) {
+                savePosition(ROWS_CHECKPOINT, checkpoint);
+            }
+            return count;
+        });
+        if (deleted != null && deleted > 0) {
+            logger.info("Удалено строк аватаров без студента в окне ({}, {}]: {}", from, to, deleted);
+            rowsDeleted.increment(deleted);
+        }
+        return deleted == null ? 0 : deleted;
+    }
+
+    /**
+     * Сначала разбирает файлы старой раскладки {@code <studentId>.<ext>} в корне по возрастанию
+     * id, затем шарды {@code ab/cd} по порядку имен. За шаг просматривается не больше
+     * {@code files-per-step} файлов.
+     */
+    void reconcileFiles() throws IOException {
+        Path root = avatarStorage.root();
+        if (!Files.isDirectory(root)) {
+            return;
+        }
+        Instant threshold = Instant.now().minus(gracePeriod);
+        removeExpiredUploads(threshold);
+        emptyTrash(root, threshold);
+
+        String position = Objects.requireNonNullElse(position(FILES_CHECKPOINT), LEGACY + 0);
+        int budget = filesPerStep;
+        if (position.startsWith(LEGACY)) {
+            long afterId = Long.parseLong(position.substring(LEGACY.length()));
+            NavigableMap<Long, List<Path>> batch = legacyFilesAfter(root, afterId, budget);
+            budget -= reconcileLegacy(batch, threshold);
+            position = batch.size() < filesPerStep ? SHARD : LEGACY + batch.lastKey();
+            savePosition(position);
+        }
+        while (budget > 0 && position.startsWith(SHARD)) {
+            Optional<String> shard = nextShard(root, position.substring(SHARD.length()));
+            if (shard.isEmpty()) {
+                savePosition(null);
+                lastFilePassAt = Instant.now();
+                break;
+            }
+            budget -= reconcileShard(root, shard.get(), threshold);
+            position = SHARD + shard.get();
+            savePosition(position);
+        }
+    }
+
+    /**
+     * Шарды каталога оригиналов, не больше {@code files-per-step} файлов за шаг. Оригиналы лежат
+     * под checksum перекодированного файла, поэтому сверяются с теми же ссылками, что и сами аватары.
+     */
+    void reconcileOriginals() throws IOException {
+        Path root = avatarTranscoder.originalsDir();
+        if (root == null || !Files.isDirectory(root)) {
+            return;
+        }
+        Instant threshold = Instant.now().minus(gracePeriod);
+        emptyTrash(root, threshold);
+        String position = Objects.requireNonNullElse(position(ORIGINALS_CHECKPOINT), "");
+        int budget = filesPerStep;
+        while (budget > 0) {
+            Optional<String> shard = nextShard(root, position);
+            if (shard.isEmpty()) {
+                transactionTemplate.executeWithoutResult(status -> savePosition(ORIGINALS_CHECKPOINT, null));
+                lastOriginalsPassAt = Instant.now();
+                return;
+            }
+            budget -= reconcileShard(root, shard.get(), threshold);
+            position = shard.get();
+            String reached = position;
+            transactionTemplate.executeWithoutResult(status -> savePosition(ORIGINALS_CHECKPOINT, reached));
+        }
+    }
+
+    private void removeExpiredUploads(Instant threshold) throws IOException {
+        Path tmpDir = avatarStorage.tmpDir();
+        if (!Files.isDirectory(tmpDir)) {
+            return;
+        }
+        try (Stream<Path> files = Files.list(tmpDir)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                if (isExpired(file, threshold)) {
+                    delete(file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Не больше {@code limit} студентов с наименьшими id после {@code afterId}. Каталог читается
+     * потоком, в памяти держится только сама выборка.
+     */
+    private NavigableMap<Long, List<Path>> legacyFilesAfter(Path root, long afterId, int limit) throws IOException {
+        TreeMap<Long, List<Path>> batch = new TreeMap<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(root, Files::isRegularFile)) {
+            for (Path file : files) {
+                Matcher matcher = LEGACY_NAME.matcher(file.getFileName().toString());
+                if (!matcher.matches()) {
+                    continue;
+                }
+                long studentId = Long.parseLong(matcher.group(1));
+                if (studentId <= afterId || (batch.size() >= limit && studentId > batch.lastKey())) {
+                    continue;
+                }
+                batch.computeIfAbsent(studentId, id -> new ArrayList<>()).add(file);
+                if (batch.size() > limit) {
+                    batch.pollLastEntry();
+                }
+            }
+        }
+        return batch;
+    }
+
+    private int reconcileLegacy(NavigableMap<Long, List<Path>> batch, Instant threshold) throws IOException {
+        if (batch.isEmpty()) {
+            return 0;
+        }
+        Set<Path> referenced = new HashSet<>();
+        avatarRepository.findFilePathsOfStudents(batch.keySet())
+                .forEach(path -> referenced.add(normalize(Path.of(path))));
+        int scanned = 0;
+        for (List<Path> files : batch.values()) {
+            for (Path file : files) {
+                scanned++;
+                if (!referenced.contains(normalize(file)) && isExpired(file, threshold)) {
+                    delete(file);
+                }
+            }
+        }
+        filesScanned.increment(scanned);
+        return scanned;
+    }
+
+    /**
+     * Следующий после {@code after} шард вида {@code ab/cd} или пустой результат, если проход закончен.
+     */
+    private Optional<String> nextShard(Path root, String after) throws IOException {
+        String afterTop = after.isEmpty() ? "" : after.substring(0, 2);
+        for (String top : shardNames(root)) {
+            if (top.compareTo(afterTop) < 0) {
+                continue;
+            }
+            for (String sub : shardNames(root.resolve(top))) {
+                String shard = top + "/" + sub;
+                if (shard.compareTo(after) > 0) {
+                    return Optional.of(shard);
+                }
+            }
+        }
+        return Optional.empty();
+    }
+
+    private List<String> shardNames(Path dir) throws IOException {
+        try (Stream<Path> children = Files.list(dir)) {
+            return children.filter(Files::isDirectory)
+                    .map(child -> child.getFileName().toString())
+                    .filter(name -> SHARD_NAME.matcher(name).matches())
+                    .sorted()
+                    .toList();
+        }
+    }
+
+    private int reconcileShard(Path root, String shard, Instant threshold) throws IOException {
+        Map<String, List<Path>> byChecksum = new HashMap<>();
+        int scanned = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(root.resolve(shard), Files::isRegularFile)) {
+            for (Path file : files) {
+                scanned++;
+                Matcher matcher = CHECKSUM_NAME.matcher(file.getFileName().toString());
+                if (matcher.matches() && isExpired(file, threshold)) {
+                    byChecksum.computeIfAbsent(matcher.group(1), checksum -> new ArrayList<>()).add(file);
+                }
+            }
+        }
+        filesScanned.increment(scanned);
+        if (byChecksum.isEmpty()) {
+            return scanned;
+        }
+        Set<String> referenced = avatarRepository.findReferencedChecksums(byChecksum.keySet());
+        Path trash = null;
+        for (Map.Entry<String, List<Path>> entry : byChecksum.entrySet()) {
+            if (referenced.contains(entry.getKey())) {
+                continue;
+            }
+            for (Path file : entry.getValue()) {
+                // повторная загрузка того же содержимого обновляет время изменения файла
+                if (isExpired(file, threshold)) {
+                    if (trash == null) {
+                        trash = Files.createDirectories(root.resolve(TRASH_DIR));
+                    }
+                    try {
+                        Files.move(file, trash.resolve(file.getFileName()), ATOMIC_MOVE);
+                    } catch (NoSuchFileException e) {
+                        // файл уже удален
+                    }
+                }
+            }
+        }
+        if (trash != null) {
+            emptyTrash(root, threshold);
+        }
+        return scanned;
+    }
+
+    /**
+     * Кандидаты на удаление сначала переносятся в корзину и только там сверяются еще раз: если
+     * {@link AvatarFileStore#put} успел обновить время изменения или закоммитить ссылку до переноса,
+     * файл возвращается на место, а put после переноса файла не найдет и запишет его заново.
+     * Корзина, оставшаяся после перезапуска, разбирается тем же способом.
+     */
+    private void emptyTrash(Path root, Instant threshold) throws IOException {
+        Path trash = root.resolve(TRASH_DIR);
+        if (!Files.isDirectory(trash)) {
+            return;
+        }
+        Map<String, List<Path>> byChecksum = new HashMap<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(trash, Files::isRegularFile)) {
+            for (Path file : files) {
+                Matcher matcher = CHECKSUM_NAME.matcher(file.getFileName().toString());
+                if (matcher.matches()) {
+                    byChecksum.computeIfAbsent(matcher.group(1), checksum -> new ArrayList<>()).add(file);
+                }
+            }
+        }
+        if (byChecksum.isEmpty()) {
+            return;
+        }
+        Set<String> referenced = avatarRepository.findReferencedChecksums(byChecksum.keySet());
+        for (Map.Entry<String, List<Path>> entry : byChecksum.entrySet()) {
+            for (Path file : entry.getValue()) {
+                if (referenced.contains(entry.getKey()) || !isExpired(file, threshold)) {
+                    restore(root, entry.getKey(), file);
+                } else {
+                    delete(file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Возвращает файл в его шард. Если put уже записал то же содержимое заново, копия из корзины
+     * удаляется, чтобы не затереть более свежее время изменения.
+     */
+    private static void restore(Path root, String checksum, Path file) throws IOException {
+        Path target = root.resolve(checksum.substring(0, 2))
+                .resolve(checksum.substring(2, 4))
+                .resolve(file.getFileName());
+        Files.createDirectories(target.getParent());
+        try {
+            Files.move(file, target);
+        } catch (FileAlreadyExistsException e) {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private void delete(Path file) throws IOException {
+        long wait = nextDeleteAt - System.nanoTime();
+        if (wait > 0) {
+            LockSupport.parkNanos(wait);
+        }
+        nextDeleteAt = Math.max(System.nanoTime(), nextDeleteAt) + deleteIntervalNanos;
+        if (Files.deleteIfExists(file)) {
+            filesDeleted.increment();
+        }
+    }
+
+    private static boolean isExpired(Path file, Instant threshold) throws IOException {
+        return Files.isRegularFile(file) && Files.getLastModifiedTime(file).toInstant().isBefore(threshold);
+    }
+
+    private static Path normalize(Path path) {
+        return path.toAbsolutePath().normalize();
+    }
+
+    private String position(String name) {
+        return checkpointRepository.findById(name).map(MaintenanceCheckpoint::getPosition).orElse(null);
+    }
+
+    private void savePosition(String position) {
+        transactionTemplate.executeWithoutResult(status -> savePosition(FILES_CHECKPOINT, position));
+    }
+
+    private void savePosition(String name, String position) {
+        MaintenanceCheckpoint checkpoint = checkpointRepository.findById(name)
+                .orElseGet(() -> new MaintenanceCheckpoint(name));
+        checkpoint.setPosition(position);
+        checkpoint.setUpdatedAt(Instant.now());
+        checkpointRepository.save(checkpoint);
+    }
+}
@@ -0,0 +1,188 @@
+package ru.hogwarts.school.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import ru.hogwarts.school.model.exception.InvalidValueException;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+
+/**
+ * Отдает аватары в ширинах из разрешенного списка. Готовые варианты хранятся в LRU-кэше,
+ * ограниченном суммарным размером в байтах, и, если задан каталог, на диске. Ключ варианта —
+ * checksum файла и ширина, поэтому после замены аватара старые варианты просто перестают
+ * запрашиваться. Одновременные запросы к одному файлу декодируют его один раз, сразу с
+ * прореживанием под наибольшую разрешенную ширину.
+ */
+@Component
+public class AvatarRenderer {
+
+    private static final Logger logger = LoggerFactory.getLogger(AvatarRenderer.class);
+
+    private final Set<Integer> widths;
+    private final int maxWidth;
+    private final ImageDecoder imageDecoder;
+    private final AvatarStorage avatarStorage;
+    private final long maxBytes;
+    private final Path diskDir;
+    private final LinkedHashMap<String, byte[]> variants = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, CompletableFuture<BufferedImage>> decoding = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<byte[]>> rendering = new ConcurrentHashMap<>();
+    private long bytes;
+
+    private final Counter memoryHits;
+    private final Counter diskHits;
+    private final Counter misses;
+    private final Counter evictions;
+    private final Timer renderTimer;
+
+    public AvatarRenderer(@Value("${students.avatar.variants.widths:64,100,200,400}") List<Integer> widths,
+                          @Value("${students.avatar.variants.cache-bytes:33554432}") long maxBytes,
+                          @Value("${students.avatar.variants.disk-dir:}") String diskDir,
+                          ImageDecoder imageDecoder,
+                          AvatarStorage avatarStorage,
+                          MeterRegistry meterRegistry) {
+        this.widths = Set.copyOf(widths);
+        this.maxWidth = Collections.max(widths);
+        this.imageDecoder = imageDecoder;
+        this.avatarStorage = avatarStorage;
+        this.maxBytes = maxBytes;
+        this.diskDir = diskDir.isBlank() ? null : Path.of(diskDir);
+
+        memoryHits = meterRegistry.counter("avatars.variants.requests", "result", "hit");
+        diskHits = meterRegistry.counter("avatars.variants.requests", "result", "disk");
+        misses = meterRegistry.counter("avatars.variants.requests", "result", "miss");
+        evictions = meterRegistry.counter("avatars.variants.evictions");
+        renderTimer = Timer.builder("avatars.variants.render")
+                .description("Время декодирования и масштабирования аватара")
+                .register(meterRegistry);
+        Gauge.builder("avatars.variants.bytes", this, AvatarRenderer::cachedBytes)
+                .baseUnit("bytes")
+                .register(meterRegistry);
+    }
+
+    public byte[] render(String location, String checksum, int width) throws IOException {
+        if (!widths.contains(width)) {
+            throw new InvalidValueException();
+        }
+        String format = AvatarStorage.extensionOf(location);
+        String key = checksum + "-" + width + "." + format;
+
+        byte[] cached = fromMemory(key);
+        if (cached != null) {
+            memoryHits.increment();
+            return cached;
+        }
+        Path onDisk = diskDir == null ? null : diskDir.resolve(checksum.substring(0, 2)).resolve(key);
+        if (onDisk != null && Files.exists(onDisk)) {
+            byte[] data = Files.readAllBytes(onDisk);
+            diskHits.increment();
+            toMemory(key, data);
+            return data;
+        }
+
+        return once(rendering, key, () -> {
+            misses.increment();
+            long start = System.nanoTime();
+            byte[] data = scale(once(decoding, checksum,
+                    () -> imageDecoder.decode(avatarStorage.open(location), maxWidth)), width, format);
+            renderTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            toMemory(key, data);
+            if (onDisk != null) {
+                toDisk(onDisk, data);
+            }
+            return data;
+        });
+    }
+
+    private interface Loader<T> {
+        T load() throws IOException;
+    }
+
+    /**
+     * Выполняет загрузку один раз для всех потоков, одновременно запросивших один и тот же ключ.
+     */
+    private static <T> T once(Map<String, CompletableFuture<T>> inFlight, String key, Loader<T> loader)
+            throws IOException {
+        CompletableFuture<T> own = new CompletableFuture<>();
+        CompletableFuture<T> existing = inFlight.putIfAbsent(key, own);
+        if (existing != null) {
+            try {
+                return existing.join();
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
+            }
+        }
+        try {
+            T value = loader.load();
+            own.complete(value);
+            return value;
+        } catch (IOException | RuntimeException e) {
+            own.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, own);
+        }
+    }
+
+    private byte[] scale(BufferedImage image, int width, String format) throws IOException {
+        BufferedImage scaled = imageDecoder.scale(image, width);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        if (!ImageIO.write(scaled, format, baos)) {
+            throw new IOException("Нет кодировщика для формата " + format);
+        }
+        return baos.toByteArray();
+    }
+
+    private synchronized byte[] fromMemory(String key) {
+        return variants.get(key);
+    }
+
+    private synchronized void toMemory(String key, byte[] data) {
+        if (data.length > maxBytes) {
+            return;
+        }
+        byte[] previous = variants.put(key, data);
+        bytes += data.length - (previous == null ? 0 : previous.length);
+        Iterator<byte[]> eldest = variants.values().iterator();
+        while (bytes > maxBytes && eldest.hasNext()) {
+            bytes -= eldest.next().length;
+            eldest.remove();
+            evictions.increment();
+        }
+    }
+
+    private synchronized long cachedBytes() {
+        return bytes;
+    }
+
+    private void toDisk(Path target, byte[] data) {
+        try {
+            Files.createDirectories(target.getParent());
+            Path tmp = Files.createTempFile(target.getParent(), "variant-", ".part");
+            Files.write(tmp, data);
+            Files.move(tmp, target, ATOMIC_MOVE);
+        } catch (IOException | UncheckedIOException e) {
+            logger.warn("Не удалось сохранить вариант аватара на диск: {}", target, e);
+        }
+    }
+}
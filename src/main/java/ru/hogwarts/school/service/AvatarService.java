@@ -1,102 +1,258 @@
 package ru.hogwarts.school.service;
 
 import jakarta.transaction.Transactional;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.unit.DataSize;
 import org.springframework.web.multipart.MultipartFile;
+import ru.hogwarts.school.dto.KeysetPage;
+import ru.hogwarts.school.dto.PageCursor;
 import ru.hogwarts.school.model.Avatar;
+import ru.hogwarts.school.model.PreviewJob;
 import ru.hogwarts.school.model.Student;
 import ru.hogwarts.school.model.exception.EmptyStorageException;
 import ru.hogwarts.school.model.exception.InvalidValueException;
+import ru.hogwarts.school.model.listener.AvatarChangedEvent;
+import ru.hogwarts.school.model.listener.PreviewRequestedEvent;
+import ru.hogwarts.school.repository.AvatarPreviewRepository;
 import ru.hogwarts.school.repository.AvatarRepository;
+import ru.hogwarts.school.repository.PreviewJobRepository;
 import ru.hogwarts.school.repository.StudentRepository;
 
-import javax.imageio.ImageIO;
-import java.awt.*;
-import java.awt.image.BufferedImage;
-import java.io.*;
-import java.nio.file.Files;
-import java.nio.file.Path;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.attribute.FileTime;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.time.Instant;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Optional;
-
-import static java.nio.file.StandardOpenOption.CREATE_NEW;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 @Service
 @Transactional
 public class AvatarService {
-    @Value("${students.avatar.dir.path}")
-    private String avatarsDir;
+    private static final Logger logger = LoggerFactory.getLogger(AvatarService.class);
+    private static final int EXPORT_PAGE_SIZE = 500;
+    private static final int EXPORT_BUFFER_SIZE = 64 * 1024;
+    private static final Set<String> COMPRESSED_EXTENSIONS = Set.of("jpg", "jpeg", "png", "gif", "webp");
+
+    @Value("${students.avatar.max-size:5MB}")
+    private DataSize maxSize;
     private final AvatarRepository avatarRepository;
+    private final AvatarPreviewRepository avatarPreviewRepository;
     private final StudentRepository studentRepository;
+    private final StatisticsRegistry statisticsRegistry;
+    private final AvatarStorage avatarStorage;
+    private final PreviewJobRepository previewJobRepository;
+    private final ApplicationEventPublisher publisher;
+    private final TransactionTemplate transactionTemplate;
+    private final AvatarReconciler avatarReconciler;
+    private final ImageValidator imageValidator;
+    private final PreviewRegenerator previewRegenerator;
+    private final AvatarPackMigrator avatarPackMigrator;
 
-    public AvatarService(AvatarRepository avatarRepository, StudentRepository studentRepository) {
+    public AvatarService(AvatarRepository avatarRepository, AvatarPreviewRepository avatarPreviewRepository,
+                         StudentRepository studentRepository, StatisticsRegistry statisticsRegistry,
+                         AvatarStorage avatarStorage, PreviewJobRepository previewJobRepository,
+                         ApplicationEventPublisher publisher, PlatformTransactionManager transactionManager,
+                         AvatarReconciler avatarReconciler, ImageValidator imageValidator,
+                         PreviewRegenerator previewRegenerator, AvatarPackMigrator avatarPackMigrator) {
         this.avatarRepository = avatarRepository;
+        this.avatarPreviewRepository = avatarPreviewRepository;
         this.studentRepository = studentRepository;
+        this.statisticsRegistry = statisticsRegistry;
+        this.avatarStorage = avatarStorage;
+        this.previewJobRepository = previewJobRepository;
+        this.publisher = publisher;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.avatarReconciler = avatarReconciler;
+        this.imageValidator = imageValidator;
+        this.previewRegenerator = previewRegenerator;
+        this.avatarPackMigrator = avatarPackMigrator;
     }
 
     public boolean storageIsEmpty() {
-        return studentRepository.findAll().isEmpty();
+        return statisticsRegistry.getStudentCount() == 0;
     }
 
+    public long getMaxSize() {
+        return maxSize.toBytes();
+    }
+
+    @Transactional(Transactional.TxType.NOT_SUPPORTED)
     public void uploadAvatar(Long studentId, MultipartFile avatar) throws IOException {
+        try (InputStream is = avatar.getInputStream()) {
+            uploadAvatar(studentId, is);
+        }
+    }
+
+    /**
+     * Сохраняет файл без открытой транзакции, затем в короткой транзакции записывает аватар
+     * и ставит задачу на генерацию превью. Само превью строит {@link PreviewWorker}.
+     * Расширение и тип содержимого берутся из сигнатуры файла, а не из имени или заголовка
+     * запроса; битые и слишком большие изображения отклоняются до записи на диск. Файл
+     * копируется потоком и не декодируется, так что память под растр не резервируется.
+     * <p>
+     * Перекодирование, если оно включено, тоже выполняет {@link PreviewWorker} перед построением
+     * превью: до его окончания отдается загруженный файл, а пустой originalSize отмечает,
+     * что аватар еще не перекодирован.
+     */
+    @Transactional(Transactional.TxType.NOT_SUPPORTED)
+    public void uploadAvatar(Long studentId, InputStream content) throws IOException {
         if (!studentRepository.existsById(studentId)) {
             throw new InvalidValueException();
         }
         Optional<Student> student = studentRepository.findById(studentId);
 
-        Path filePath = Path.of(avatarsDir, studentId + "." + getExtension(avatar.getOriginalFilename()));
-        Files.createDirectories(filePath.getParent());
-        Files.deleteIfExists(filePath);
+        ImageValidator.ValidatedImage image = imageValidator.validate(content);
+        AvatarStorage.StoredFile stored = avatarStorage.store(image.content(), image.extension(), getMaxSize());
 
-        try (InputStream is = avatar.getInputStream();
-             OutputStream os = Files.newOutputStream(filePath, CREATE_NEW);
-             BufferedInputStream bis = new BufferedInputStream(is, 1024);
-             BufferedOutputStream bos = new BufferedOutputStream(os, 1024)
-        ) {
-            bis.transferTo(bos);
-        }
+        transactionTemplate.executeWithoutResult(status -> {
+            Avatar studentAvatar = avatarRepository.findByStudentId(studentId).orElseGet(Avatar::new);
+            studentAvatar.setStudent(student.get());
+            studentAvatar.setFilePath(stored.location());
+            studentAvatar.setFileSize(stored.size());
+            studentAvatar.setMediaType(image.mediaType());
+            studentAvatar.setOriginalSize(null);
+            studentAvatar.setChecksum(stored.checksum());
+            Avatar saved = avatarRepository.save(studentAvatar);
 
-        Avatar studentAvatar = getAvatar(studentId);
-        studentAvatar.setStudent(student.get());
-        studentAvatar.setFilePath(filePath.toString());
-        studentAvatar.setFileSize(avatar.getSize());
-        studentAvatar.setMediaType(avatar.getContentType());
-        studentAvatar.setPreview(generateImagePreview(filePath));
-
-        avatarRepository.save(studentAvatar);
+            avatarPreviewRepository.deleteById(saved.getId());
+            Instant now = Instant.now();
+            PreviewJob job = previewJobRepository.findById(saved.getId())
+                    .orElseGet(() -> new PreviewJob(saved.getId()));
+            job.setStatus(PreviewJob.Status.PENDING);
+            job.setAttempts(0);
+            job.setLastError(null);
+            job.setNextAttemptAt(now);
+            job.setUpdatedAt(now);
+            previewJobRepository.save(job);
+            publisher.publishEvent(new PreviewRequestedEvent(saved.getId()));
+            publisher.publishEvent(new AvatarChangedEvent(studentId));
+        });
     }
 
     public Avatar getAvatar(Long studentId) {
         if (storageIsEmpty()) {
             throw new EmptyStorageException();
         }
-        if (!avatarRepository.existsById(studentId)) {
-            throw new InvalidValueException();
+        return avatarRepository.findByStudentId(studentId).orElseThrow(InvalidValueException::new);
+    }
+
+    public Optional<byte[]> getPreview(Long studentId) {
+        return avatarPreviewRepository.findDataByStudentId(studentId);
+    }
+
+    public PreviewJob getPreviewStatus(Long studentId) {
+        return previewJobRepository.findByStudentId(studentId)
+                .orElseThrow(InvalidValueException::new);
+    }
+
+    /**
+     * SHA-256 содержимого файла аватара. Для записей, загруженных до появления колонки,
+     * считается по файлу один раз и сохраняется условным UPDATE, который не затрет аватар,
+     * замененный за это время.
+     */
+    public String getChecksum(Avatar avatar) throws IOException {
+        if (avatar.getChecksum() == null) {
+            MessageDigest digest = AvatarStorage.sha256();
+            try (InputStream is = new DigestInputStream(openFile(avatar).newInputStream(), digest)) {
+                is.transferTo(OutputStream.nullOutputStream());
+            }
+            String checksum = HexFormat.of().formatHex(digest.digest());
+            avatarRepository.fillChecksum(avatar.getId(), avatar.getFilePath(), checksum);
+            avatar.setChecksum(checksum);
         }
-        return avatarRepository.findByStudentId(studentId).orElse(new Avatar());
+        return avatar.getChecksum();
     }
 
-    private String getExtension(String fileName) {
-        return fileName.substring(fileName.lastIndexOf(".") + 1);
+    public AvatarStorage.Region openFile(Avatar avatar) throws IOException {
+        return avatarStorage.open(avatar.getFilePath());
     }
 
-    private byte[] generateImagePreview(Path filePath) throws IOException {
-        try (InputStream is = Files.newInputStream(filePath);
-             BufferedInputStream bis = new BufferedInputStream(is, 1024);
-             ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
-            BufferedImage image = ImageIO.read(bis);
+    /**
+     * Проверяет параметры выгрузки до того, как начнется ответ: после первых байт архива
+     * ошибка уже не дойдет до клиента статусом 400. Повторяющиеся id студентов схлопываются.
+     */
+    public List<Long> exportStudentIds(Long facultyId, List<Long> studentIds) {
+        if (studentIds == null || studentIds.isEmpty()) {
+            return List.of();
+        }
+        if (facultyId != null) {
+            logger.error("Выгрузка аватаров принимает либо факультет, либо список студентов");
+            throw new InvalidValueException();
+        }
+        return List.copyOf(new LinkedHashSet<>(studentIds));
+    }
 
-            int height = image.getHeight() / (image.getWidth() / 100);
-            BufferedImage preview = new BufferedImage(100, height, image.getType());
-            Graphics2D graphics = preview.createGraphics();
-            graphics.drawImage(image, 0, 0, 100, height, null);
-            graphics.dispose();
+    /**
+     * Пишет аватары в ZIP прямо в выходной поток, читая пути файлов страницами по ключу.
+     * Уже сжатые форматы пишутся с нулевым уровнем сжатия: файл читается один раз,
+     * и CRC считать заранее не нужно.
+     */
+    @Transactional(Transactional.TxType.NOT_SUPPORTED)
+    public void exportAvatars(OutputStream os, Long facultyId, List<Long> studentIds) throws IOException {
+        logger.info("Метод выгрузки аватаров в ZIP");
+        List<Long> selected = exportStudentIds(facultyId, studentIds);
+        ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(os, EXPORT_BUFFER_SIZE));
+        if (!selected.isEmpty()) {
+            Set<Long> exported = new HashSet<>();
+            for (AvatarRepository.AvatarFile file : avatarRepository.findFilesOfStudents(selected)) {
+                if (exported.add(file.getStudentId())) {
+                    writeEntry(zip, file);
+                }
+            }
+        } else {
+            long after = 0;
+            List<AvatarRepository.AvatarFile> files;
+            do {
+                PageRequest page = PageRequest.of(0, EXPORT_PAGE_SIZE);
+                files = facultyId == null
+                        ? avatarRepository.findFilesAfter(after, page)
+                        : avatarRepository.findFilesOfFacultyAfter(facultyId, after, page);
+                for (AvatarRepository.AvatarFile file : files) {
+                    writeEntry(zip, file);
+                    after = file.getId();
+                }
+            } while (files.size() == EXPORT_PAGE_SIZE);
+        }
+        zip.finish();
+        zip.flush();
+    }
 
-            ImageIO.write(preview, getExtension(filePath.getFileName().toString()), baos);
-            return baos.toByteArray();
+    private void writeEntry(ZipOutputStream zip, AvatarRepository.AvatarFile file) throws IOException {
+        AvatarStorage.Region source;
+        try {
+            source = avatarStorage.open(file.getFilePath());
+        } catch (NoSuchFileException e) {
+            logger.warn("Файл аватара студента {} не найден: {}", file.getStudentId(), file.getFilePath());
+            return;
         }
+        String extension = AvatarStorage.extensionOf(file.getFilePath()).toLowerCase();
+        ZipEntry entry = new ZipEntry(file.getStudentId() + "." + extension);
+        entry.setLastModifiedTime(FileTime.fromMillis(source.lastModified()));
+        zip.setLevel(COMPRESSED_EXTENSIONS.contains(extension) ? Deflater.NO_COMPRESSION : Deflater.DEFAULT_COMPRESSION);
+        zip.putNextEntry(entry);
+        try (InputStream is = source.newInputStream()) {
+            is.transferTo(zip);
+        }
+        zip.closeEntry();
     }
 
     public List<Avatar> getAllAvatars(int page, int size) {
@@ -107,12 +263,58 @@ public class AvatarService {
           return avatarRepository.findAll(pageRequest).getContent();
     }
 
+    public KeysetPage<Avatar> getAvatarsPage(String after, Integer size) {
+        logger.info("Метод постраничного получения аватаров");
+        if (storageIsEmpty()) {
+            logger.error("Хранилище пустое");
+            throw new EmptyStorageException();
+        }
+        return PageCursor.page(
+                avatarRepository.findByIdGreaterThanOrderByIdAsc(PageCursor.decode(after), PageCursor.pageable(size)),
+                Avatar::getId);
+    }
+
     @Transactional
     public void deleteAvatar(Long studentId) {
+        publisher.publishEvent(new AvatarChangedEvent(studentId));
+        previewJobRepository.deleteByStudentId(studentId);
+        avatarPreviewRepository.deleteByStudentId(studentId);
         avatarRepository.deleteByStudentId(studentId);
     }
 
+    /**
+     * Синхронно удаляет все строки аватаров без студента вместе с их превью и задачами.
+     * Файлы без ссылок удаляет фоновая сверка.
+     */
+    @Transactional(Transactional.TxType.NOT_SUPPORTED)
     public void removeUnused() {
-        avatarRepository.removeUnused();
+        int deleted = avatarReconciler.removeOrphanRows();
+        logger.info("Удалено строк аватаров без студента: {}", deleted);
+    }
+
+    public AvatarReconciler.Progress getReconcilerProgress() {
+        return avatarReconciler.getProgress();
+    }
+
+    @Transactional(Transactional.TxType.NOT_SUPPORTED)
+    public PreviewRegenerator.Progress regeneratePreviews(boolean restart) {
+        logger.info("Запуск перестроения превью аватаров");
+        return previewRegenerator.start(restart);
+    }
+
+    public PreviewRegenerator.Progress getRegenerationProgress() {
+        return previewRegenerator.getProgress();
+    }
+
+    @Transactional(Transactional.TxType.NOT_SUPPORTED)
+    public AvatarPackMigrator.Progress migrateToPacks(int limit) {
+        logger.info("Перенос аватаров в сегменты");
+        return avatarPackMigrator.migrate(limit);
+    }
+
+    @Transactional(Transactional.TxType.NOT_SUPPORTED)
+    public PreviewRegenerator.Progress cancelPreviewRegeneration() {
+        logger.info("Отмена перестроения превью аватаров");
+        return previewRegenerator.cancel();
     }
 }
@@ -0,0 +1,300 @@
+package ru.hogwarts.school.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import ru.hogwarts.school.model.exception.FileTooLargeException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Прием и хранение файлов аватаров. Файл принимается во временный каталог, по содержимому
+ * считается SHA-256, и готовый файл отдается настроенному {@link AvatarBlobStore}: отдельными
+ * файлами ({@link AvatarFileStore}) или записями в сегментах ({@link AvatarPackStore}).
+ * Адрес, который возвращает хранилище, пишется в avatar.file_path; читать по нему можно
+ * независимо от текущей настройки, так что после переключения старые записи остаются доступны.
+ */
+@Component
+public class AvatarStorage {
+
+    private static final String TMP_DIR = "tmp";
+    private static final String SESSIONS_DIR = "sessions";
+    private static final int BUFFER_SIZE = 256 * 1024;
+    /**
+     * Прямые буферы переиспользуются из небольшого пула, так что вне heap их не больше
+     * {@code POOLED_BUFFERS * BUFFER_SIZE}. Если пул пуст, поток берет обычный буфер в heap.
+     */
+    private static final int POOLED_BUFFERS = 8;
+    private static final BlockingQueue<ByteBuffer> BUFFERS = new ArrayBlockingQueue<>(POOLED_BUFFERS);
+
+    static {
+        for (int i = 0; i < POOLED_BUFFERS; i++) {
+            BUFFERS.add(ByteBuffer.allocateDirect(BUFFER_SIZE));
+        }
+    }
+
+    private final Path root;
+    private final AvatarFileStore fileStore;
+    private final AvatarPackStore packStore;
+    private final AvatarBlobStore backend;
+
+    public AvatarStorage(@Value("${students.avatar.dir.path}") String avatarsDir,
+                         @Value("${students.avatar.storage.backend:files}") String backend,
+                         AvatarFileStore fileStore, AvatarPackStore packStore) {
+        this.root = Path.of(avatarsDir);
+        this.fileStore = fileStore;
+        this.packStore = packStore;
+        this.backend = switch (backend) {
+            case "files" -> fileStore;
+            case "pack" -> packStore;
+            default -> throw new IllegalArgumentException("Неизвестное хранилище аватаров: " + backend);
+        };
+    }
+
+    /**
+     * @param location адрес файла для avatar.file_path
+     */
+    public record StoredFile(String checksum, String location, long size) {
+    }
+
+    /**
+     * Участок файла, в котором лежит аватар. Для отдельного файла это весь файл с нулевым
+     * смещением; у записи в сегменте смещение всегда больше нуля, перед данными идет заголовок.
+     */
+    public record Region(Path file, long offset, long length, long lastModified) {
+
+        public static Region of(Path file) throws IOException {
+            return new Region(file, 0, Files.size(file), Files.getLastModifiedTime(file).toMillis());
+        }
+
+        public boolean isWholeFile() {
+            return offset == 0;
+        }
+
+        /**
+         * Поток позиционного чтения участка: позиция канала не используется, так что один
+         * сегмент могут читать несколько потоков сразу.
+         */
+        public InputStream newInputStream() throws IOException {
+            return new RegionInputStream(FileChannel.open(file, READ), offset, offset + length);
+        }
+    }
+
+    public boolean isPackBackend() {
+        return backend == packStore;
+    }
+
+    /**
+     * Сохраняет содержимое, считая SHA-256 в том же проходе. Загрузка прерывается с
+     * {@link FileTooLargeException}, как только прочитано больше {@code maxSize} байт.
+     * Если такое содержимое уже есть, новая копия не пишется, а существующая помечается
+     * свежей, чтобы сверка не удалила ее до коммита новой ссылки.
+     */
+    public StoredFile store(InputStream content, String extension, long maxSize) throws IOException {
+        Path tmpDir = root.resolve(TMP_DIR);
+        Files.createDirectories(tmpDir);
+        Path tmp = Files.createTempFile(tmpDir, "upload-", ".part");
+        try {
+            MessageDigest digest = sha256();
+            long size = transfer(Channels.newChannel(content), tmp, digest, maxSize);
+            String checksum = HexFormat.of().formatHex(digest.digest());
+            return new StoredFile(checksum, backend.put(tmp, checksum, extension), size);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * Пишет поток во временный файл с тем же ограничением размера, что и {@link #store}.
+     * Файл удаляет вызывающий, если не передал его в {@link #store(Path, String)}.
+     */
+    public Path spool(InputStream content, long maxSize) throws IOException {
+        Path tmpDir = root.resolve(TMP_DIR);
+        Files.createDirectories(tmpDir);
+        Path tmp = Files.createTempFile(tmpDir, "upload-", ".part");
+        try {
+            transfer(Channels.newChannel(content), tmp, null, maxSize);
+            return tmp;
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+    }
+
+    /**
+     * Передает готовый временный файл в хранилище. Исходный файл после вызова не существует.
+     */
+    public StoredFile store(Path file, String extension) throws IOException {
+        try {
+            String checksum = checksum(file);
+            long size = Files.size(file);
+            return new StoredFile(checksum, backend.put(file, checksum, extension), size);
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    /**
+     * Находит участок с содержимым по адресу из avatar.file_path. Если файла или записи
+     * нет, бросает {@link java.nio.file.NoSuchFileException}.
+     */
+    public Region open(String location) throws IOException {
+        return packStore.supports(location) ? packStore.open(location) : fileStore.open(location);
+    }
+
+    public static String extensionOf(String location) {
+        return location.substring(location.lastIndexOf(".") + 1);
+    }
+
+    public Path root() {
+        return root;
+    }
+
+    public Path tmpDir() {
+        return root.resolve(TMP_DIR);
+    }
+
+    /**
+     * Каталог временных файлов возобновляемых загрузок. Сверка его не трогает: сессии живут
+     * дольше периода ожидания и удаляются вместе со своей строкой в upload_session.
+     */
+    public Path sessionsDir() {
+        return root.resolve(SESSIONS_DIR);
+    }
+
+    /**
+     * Копирует поток в файл через буфер из пула: буфер заполняется целиком, затем отдается
+     * в digest и пишется в {@link FileChannel}. Размер проверяется после каждого чтения,
+     * а не после заполнения буфера.
+     */
+    private static long transfer(ReadableByteChannel in, Path target, MessageDigest digest, long maxSize)
+            throws IOException {
+        ByteBuffer buffer = acquireBuffer();
+        long total = 0;
+        boolean eof = false;
+        try (FileChannel out = FileChannel.open(target, WRITE)) {
+            while (!eof) {
+                buffer.clear();
+                while (buffer.hasRemaining()) {
+                    if (in.read(buffer) == -1) {
+                        eof = true;
+                        break;
+                    }
+                    if (total + buffer.position() > maxSize) {
+                        throw new FileTooLargeException();
+                    }
+                }
+                buffer.flip();
+                total += buffer.remaining();
+                if (digest != null) {
+                    digest.update(buffer);
+                    buffer.rewind();
+                }
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+            }
+        } finally {
+            releaseBuffer(buffer);
+        }
+        return total;
+    }
+
+    static String checksum(Path file) throws IOException {
+        MessageDigest digest = sha256();
+        ByteBuffer buffer = acquireBuffer();
+        try (FileChannel in = FileChannel.open(file, READ)) {
+            while (in.read(buffer) != -1) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        } finally {
+            releaseBuffer(buffer);
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    private static ByteBuffer acquireBuffer() {
+        ByteBuffer buffer = BUFFERS.poll();
+        return buffer != null ? buffer.clear() : ByteBuffer.allocate(BUFFER_SIZE);
+    }
+
+    private static void releaseBuffer(ByteBuffer buffer) {
+        if (buffer.isDirect()) {
+            BUFFERS.offer(buffer);
+        }
+    }
+
+    static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static class RegionInputStream extends InputStream {
+        private final FileChannel channel;
+        private final long end;
+        private long position;
+
+        RegionInputStream(FileChannel channel, long position, long end) {
+            this.channel = channel;
+            this.position = position;
+            this.end = end;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            if (position >= end) {
+                return -1;
+            }
+            int read = channel.read(ByteBuffer.wrap(buffer, offset, (int) Math.min(length, end - position)), position);
+            if (read > 0) {
+                position += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) {
+            long skipped = Math.max(0, Math.min(n, end - position));
+            position += skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, end - position);
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,419 @@
+package ru.hogwarts.school.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import ru.hogwarts.school.model.exception.InvalidImageException;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.spi.ImageWriterSpi;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.*;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.Optional;
+import java.util.Set;
+
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/**
+ * Перекодирование аватаров после загрузки. Изображение уменьшается до максимальных размеров,
+ * поворачивается по EXIF-ориентации и записывается заново через {@link ImageWriteParam} в
+ * настроенном формате и качестве, так что метаданные (EXIF, ICC, комментарии) не сохраняются.
+ * Оригинал можно оставить в отдельном каталоге холодного хранения. Вызывается из
+ * {@link PreviewWorker}, так что на время ответа на загрузку не влияет.
+ */
+@Component
+public class AvatarTranscoder {
+
+    private static final Logger logger = LoggerFactory.getLogger(AvatarTranscoder.class);
+    private static final int OVERSAMPLING = 2;
+    private static final String FALLBACK_FORMAT = "png";
+    private static final String JPEG_METADATA_FORMAT = "javax_imageio_jpeg_image_1.0";
+    private static final String EXIF_MARKER_TAG = "225";
+    private static final int ORIENTATION_TAG = 0x0112;
+    /**
+     * Анимированный GIF при перекодировании потерял бы все кадры, кроме первого.
+     */
+    private static final Set<String> PASSTHROUGH_FORMATS = Set.of("gif");
+
+    /**
+     * Результат перекодирования; {@code downscaled} — изображение уменьшено до максимальных размеров.
+     */
+    public record Transcoded(Path file, String extension, String mediaType, boolean downscaled) {
+    }
+
+    private final boolean enabled;
+    private final String format;
+    private final float quality;
+    private final int maxWidth;
+    private final int maxHeight;
+    private final Path originalsDir;
+    private final ImageDecoder imageDecoder;
+    private final DecodeBudget decodeBudget;
+    private final AvatarStorage avatarStorage;
+    private final DistributionSummary originalBytes;
+    private final DistributionSummary storedBytes;
+    private final Counter savedBytes;
+    private final Counter grownBytes;
+
+    public AvatarTranscoder(@Value("${students.avatar.transcoding.enabled:true}") boolean enabled,
+                            @Value("${students.avatar.transcoding.format:jpeg}") String format,
+                            @Value("${students.avatar.transcoding.quality:0.85}") float quality,
+                            @Value("${students.avatar.transcoding.max-width:1024}") int maxWidth,
+                            @Value("${students.avatar.transcoding.max-height:1024}") int maxHeight,
+                            @Value("${students.avatar.transcoding.originals-dir:}") String originalsDir,
+                            ImageDecoder imageDecoder, DecodeBudget decodeBudget, AvatarStorage avatarStorage,
+                            MeterRegistry meterRegistry) {
+        if (!ImageIO.getImageWritersByFormatName(format).hasNext()) {
+            throw new IllegalArgumentException("Нет кодировщика для формата " + format);
+        }
+        if (quality < 0 || quality > 1 || maxWidth <= 0 || maxHeight <= 0) {
+            throw new IllegalArgumentException("Некорректные параметры перекодирования аватаров");
+        }
+        this.enabled = enabled;
+        this.format = format;
+        this.quality = quality;
+        this.maxWidth = maxWidth;
+        this.maxHeight = maxHeight;
+        this.originalsDir = originalsDir.isBlank() ? null : Path.of(originalsDir);
+        this.imageDecoder = imageDecoder;
+        this.decodeBudget = decodeBudget;
+        this.avatarStorage = avatarStorage;
+        this.originalBytes = DistributionSummary.builder("avatars.transcoding.original.bytes")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        this.storedBytes = DistributionSummary.builder("avatars.transcoding.stored.bytes")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        this.savedBytes = Counter.builder("avatars.transcoding.saved.bytes")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        this.grownBytes = Counter.builder("avatars.transcoding.grown.bytes")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Каталог оригиналов или {@code null}, если оригиналы не сохраняются.
+     */
+    public Path originalsDir() {
+        return originalsDir;
+    }
+
+    /**
+     * Оценка памяти на перекодирование: прореженный растр после чтения и две копии растра
+     * итогового размера (уменьшение и поворот).
+     */
+    long rasterBytes(ImageDecoder.Header header) {
+        if (PASSTHROUGH_FORMATS.contains(header.format())) {
+            return 0;
+        }
+        int targetWidth = Math.max(targetWidth(header.width(), header.height()),
+                rotatedTargetWidth(header.width(), header.height()));
+        int subsampling = subsampling(header.width(), targetWidth);
+        long targetHeight = Math.max(1, (long) header.height() * targetWidth / header.width());
+        return DecodeBudget.rasterBytes((header.width() + subsampling - 1) / subsampling,
+                (header.height() + subsampling - 1) / subsampling)
+                + 2 * DecodeBudget.rasterBytes(targetWidth, targetHeight);
+    }
+
+    /**
+     * Перекодирует файл во временный файл хранилища. Для форматов, которые не перекодируются,
+     * возвращает пустой результат, и сохраняется оригинал. На время чтения и записи из фоновой
+     * доли {@link DecodeBudget} резервируется {@link #rasterBytes} памяти.
+     */
+    public Optional<Transcoded> transcode(Path original, ImageDecoder.Header header) throws IOException {
+        if (PASSTHROUGH_FORMATS.contains(header.format())) {
+            return Optional.empty();
+        }
+        try (DecodeBudget.Reservation reservation =
+                     decodeBudget.reserve(rasterBytes(header), DecodeBudget.Priority.BACKGROUND)) {
+            BufferedImage image = read(original, header);
+            boolean downscaled = (long) image.getWidth() * image.getHeight() < (long) header.width() * header.height();
+            return Optional.of(write(image, downscaled));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Перекодирование прервано");
+        }
+    }
+
+    private Transcoded write(BufferedImage image, boolean downscaled) throws IOException {
+        boolean opaque = isOpaque(image);
+        if (opaque && image.getColorModel().hasAlpha()) {
+            image = withoutAlpha(image);
+        }
+        ImageWriter writer = writerFor(image);
+        Path target = Files.createTempFile(Files.createDirectories(avatarStorage.tmpDir()), "transcoded-", ".part");
+        try (ImageOutputStream output = ImageIO.createImageOutputStream(target.toFile())) {
+            writer.setOutput(output);
+            writer.write(null, new IIOImage(image, null, null), writeParam(writer));
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(target);
+            throw e;
+        } finally {
+            writer.dispose();
+        }
+        ImageWriterSpi spi = writer.getOriginatingProvider();
+        return new Transcoded(target, spi.getFileSuffixes()[0], spi.getMIMETypes()[0], downscaled);
+    }
+
+    /**
+     * Копирует оригинал в холодное хранилище под checksum сохраненного файла, если каталог
+     * для оригиналов настроен. Сам оригинал может быть общим с другими аватарами того же
+     * содержимого, поэтому не переносится; без ссылок его удалит {@link AvatarReconciler}, как и
+     * копию в каталоге оригиналов, когда на checksum перестанут ссылаться.
+     */
+    public void keepOriginal(AvatarStorage.Region original, String checksum, String extension) throws IOException {
+        if (originalsDir == null) {
+            return;
+        }
+        Path target = originalsDir.resolve(checksum.substring(0, 2))
+                .resolve(checksum.substring(2, 4))
+                .resolve(checksum + "." + extension);
+        Files.createDirectories(target.getParent());
+        try (InputStream content = original.newInputStream()) {
+            Files.copy(content, target, REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Уменьшенное изображение может оказаться больше оригинала (например, PNG для изображения
+     * с прозрачностью); такой прирост считается отдельно, а не теряется в экономии.
+     */
+    public void recordSavings(Long studentId, long originalSize, long storedSize) {
+        originalBytes.record(originalSize);
+        storedBytes.record(storedSize);
+        if (storedSize <= originalSize) {
+            savedBytes.increment(originalSize - storedSize);
+        } else {
+            grownBytes.increment(storedSize - originalSize);
+        }
+        logger.info("Аватар студента {} сохранен: {} байт вместо {}", studentId, storedSize, originalSize);
+    }
+
+    private BufferedImage read(Path original, ImageDecoder.Header header) throws IOException {
+        try (ImageInputStream input = ImageIO.createImageInputStream(original.toFile())) {
+            Iterator<ImageReader> readers = ImageIO.getImageReadersByFormatName(header.format());
+            if (input == null || !readers.hasNext()) {
+                throw new InvalidImageException("Формат изображения не поддерживается!");
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, false);
+                int orientation = "jpeg".equals(header.format()) ? orientation(reader) : 1;
+                boolean rotated = orientation >= 5;
+                int targetWidth = rotated
+                        ? rotatedTargetWidth(header.width(), header.height())
+                        : targetWidth(header.width(), header.height());
+                int subsampling = subsampling(header.width(), targetWidth);
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                BufferedImage decoded = reader.read(0, param);
+                return orient(imageDecoder.scale(decoded, targetWidth), orientation);
+            } catch (IOException | RuntimeException e) {
+                throw new InvalidImageException("Файл изображения поврежден!");
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Ширина, при которой изображение помещается в максимальные размеры и не увеличивается.
+     */
+    private int targetWidth(int width, int height) {
+        long byHeight = (long) maxHeight * width / height;
+        return (int) Math.max(1, Math.min(width, Math.min(maxWidth, byHeight)));
+    }
+
+    /**
+     * То же для изображения, которое после чтения повернется на 90 градусов: его ширина
+     * станет высотой.
+     */
+    private int rotatedTargetWidth(int width, int height) {
+        long byWidth = (long) maxWidth * width / height;
+        return (int) Math.max(1, Math.min(width, Math.min(maxHeight, byWidth)));
+    }
+
+    private static int subsampling(int width, int targetWidth) {
+        return Math.max(1, width / (targetWidth * OVERSAMPLING));
+    }
+
+    private ImageWriter writerFor(BufferedImage image) {
+        ImageTypeSpecifier type = ImageTypeSpecifier.createFromRenderedImage(image);
+        for (String name : new String[]{format, FALLBACK_FORMAT}) {
+            Iterator<ImageWriter> writers = ImageIO.getImageWriters(type, name);
+            if (writers.hasNext()) {
+                return writers.next();
+            }
+        }
+        throw new IllegalStateException("Нет кодировщика для изображения " + type);
+    }
+
+    /**
+     * Для сжатия с потерями задается настроенное качество, для сжатия без потерь (PNG) —
+     * максимальная степень сжатия.
+     */
+    private ImageWriteParam writeParam(ImageWriter writer) {
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        if (param.canWriteCompressed()) {
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            if (param.getCompressionType() == null) {
+                param.setCompressionType(param.getCompressionTypes()[0]);
+            }
+            param.setCompressionQuality(param.isCompressionLossless() ? 0f : quality);
+        }
+        return param;
+    }
+
+    private static boolean isOpaque(BufferedImage image) {
+        if (!image.getColorModel().hasAlpha()) {
+            return true;
+        }
+        int[] row = new int[image.getWidth()];
+        for (int y = 0; y < image.getHeight(); y++) {
+            image.getRGB(0, y, row.length, 1, row, 0, row.length);
+            for (int argb : row) {
+                if (argb >>> 24 != 0xFF) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static BufferedImage withoutAlpha(BufferedImage image) {
+        BufferedImage rgb = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = rgb.createGraphics();
+        graphics.drawImage(image, 0, 0, null);
+        graphics.dispose();
+        return rgb;
+    }
+
+    /**
+     * Применяет EXIF-ориентацию (значения 2–8), раз сами метаданные при записи отбрасываются.
+     */
+    private static BufferedImage orient(BufferedImage image, int orientation) {
+        if (orientation <= 1) {
+            return image;
+        }
+        int width = image.getWidth();
+        int height = image.getHeight();
+        AffineTransform transform = new AffineTransform();
+        switch (orientation) {
+            case 2 -> {
+                transform.translate(width, 0);
+                transform.scale(-1, 1);
+            }
+            case 3 -> {
+                transform.translate(width, height);
+                transform.rotate(Math.PI);
+            }
+            case 4 -> {
+                transform.translate(0, height);
+                transform.scale(1, -1);
+            }
+            case 5 -> {
+                transform.rotate(-Math.PI / 2);
+                transform.scale(-1, 1);
+            }
+            case 6 -> {
+                transform.translate(height, 0);
+                transform.rotate(Math.PI / 2);
+            }
+            case 7 -> {
+                transform.translate(height, width);
+                transform.rotate(Math.PI / 2);
+                transform.scale(-1, 1);
+            }
+            default -> {
+                transform.translate(0, width);
+                transform.rotate(-Math.PI / 2);
+            }
+        }
+        boolean rotated = orientation >= 5;
+        BufferedImage oriented = new BufferedImage(rotated ? height : width, rotated ? width : height,
+                image.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = oriented.createGraphics();
+        graphics.drawImage(image, transform, null);
+        graphics.dispose();
+        return oriented;
+    }
+
+    /**
+     * Ищет тег Orientation в IFD0 сегмента APP1 Exif. При любой ошибке считается, что
+     * изображение поворачивать не нужно.
+     */
+    private static int orientation(ImageReader reader) {
+        try {
+            IIOMetadata metadata = reader.getImageMetadata(0);
+            if (metadata == null) {
+                return 1;
+            }
+            NodeList markers = ((Element) metadata.getAsTree(JPEG_METADATA_FORMAT)).getElementsByTagName("unknown");
+            for (int i = 0; i < markers.getLength(); i++) {
+                IIOMetadataNode marker = (IIOMetadataNode) markers.item(i);
+                if (EXIF_MARKER_TAG.equals(marker.getAttribute("MarkerTag"))
+                        && marker.getUserObject() instanceof byte[] data) {
+                    return exifOrientation(data);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.debug("Не удалось прочитать EXIF-ориентацию", e);
+        }
+        return 1;
+    }
+
+    private static int exifOrientation(byte[] data) {
+        if (data.length < 14 || !"Exif".equals(new String(data, 0, 4, StandardCharsets.US_ASCII))) {
+            return 1;
+        }
+        ByteBuffer tiff = ByteBuffer.wrap(data, 6, data.length - 6).slice();
+        tiff.order(tiff.get(0) == 'I' ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+        int ifd = tiff.getInt(4);
+        if (ifd < 8 || ifd > tiff.limit() - 2) {
+            return 1;
+        }
+        int entries = tiff.getShort(ifd) & 0xFFFF;
+        for (int i = 0; i < entries; i++) {
+            int entry = ifd + 2 + i * 12;
+            if (entry > tiff.limit() - 12) {
+                break;
+            }
+            if ((tiff.getShort(entry) & 0xFFFF) == ORIENTATION_TAG) {
+                int value = tiff.getShort(entry + 8) & 0xFFFF;
+                return value >= 1 && value <= 8 ? value : 1;
+            }
+        }
+        return 1;
+    }
+}
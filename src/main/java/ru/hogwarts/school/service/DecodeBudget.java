@@ -0,0 +1,130 @@
+package ru.hogwarts.school.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+import ru.hogwarts.school.model.exception.TooManyRequestsException;
+
+import java.time.Duration;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Общий бюджет памяти на декодирование изображений. Перед декодированием резервируется оценка
+ * размера растра по размерам из заголовка; кто не получил резерв за отведенное время, получает
+ * {@link TooManyRequestsException}. Резерв учитывается в килобайтах через справедливый семафор,
+ * так что ожидающие обслуживаются по очереди.
+ * <p>
+ * Фоновые задачи (генерация и перестроение превью) резервируют память в отдельной доле бюджета
+ * и ждут ее без ограничения по времени. Доля запросов от нее не зависит, поэтому массовое
+ * перестроение превью не приводит к отказам при загрузке аватаров.
+ */
+@Component
+public class DecodeBudget {
+
+    private static final int BYTES_PER_PIXEL = 4;
+
+    public enum Priority {
+        REQUEST,
+        BACKGROUND
+    }
+
+    public interface Reservation extends AutoCloseable {
+        @Override
+        void close();
+    }
+
+    private final int totalPermits;
+    private final int requestPermits;
+    private final int backgroundPermits;
+    private final Semaphore permits;
+    private final Semaphore background;
+    private final Duration timeout;
+    private final Duration retryAfter;
+    private final Counter rejected;
+
+    public DecodeBudget(@Value("${students.avatar.admission.decode-budget:256MB}") DataSize budget,
+                        @Value("${students.avatar.admission.background-budget:32MB}") DataSize backgroundBudget,
+                        @Value("${students.avatar.admission.timeout:PT2S}") Duration timeout,
+                        @Value("${students.avatar.admission.retry-after:PT5S}") Duration retryAfter,
+                        MeterRegistry meterRegistry) {
+        this.totalPermits = (int) Math.max(2, budget.toKilobytes());
+        this.backgroundPermits = (int) Math.min(totalPermits / 2, Math.max(1, backgroundBudget.toKilobytes()));
+        this.requestPermits = totalPermits - backgroundPermits;
+        this.permits = new Semaphore(requestPermits, true);
+        this.background = new Semaphore(backgroundPermits, true);
+        this.timeout = timeout;
+        this.retryAfter = retryAfter;
+        this.rejected = meterRegistry.counter("avatars.admission.rejected");
+        Gauge.builder("avatars.admission.budget.used", this, DecodeBudget::usedBytes)
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        Gauge.builder("avatars.admission.budget.utilization", this, DecodeBudget::utilization)
+                .register(meterRegistry);
+        Gauge.builder("avatars.admission.queue", permits, Semaphore::getQueueLength)
+                .register(meterRegistry);
+    }
+
+    public static long rasterBytes(long width, long height) {
+        return width * height * BYTES_PER_PIXEL;
+    }
+
+    /**
+     * Ждет резерв не дольше настроенного времени. Резерв больше доли запросов урезается до
+     * нее: такое изображение обрабатывается, но только в одиночку.
+     */
+    public Reservation reserve(long bytes) {
+        int requested = permitsFor(bytes, requestPermits);
+        try {
+            if (!permits.tryAcquire(requested, timeout.toMillis(), TimeUnit.MILLISECONDS)) {
+                rejected.increment();
+                throw new TooManyRequestsException(retryAfter);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TooManyRequestsException(retryAfter);
+        }
+        return release(permits, requested);
+    }
+
+    /**
+     * Фоновый резерв ждет освобождения своей доли сколько потребуется и запросы не вытесняет.
+     */
+    public Reservation reserve(long bytes, Priority priority) throws InterruptedException {
+        if (priority == Priority.REQUEST) {
+            return reserve(bytes);
+        }
+        int requested = permitsFor(bytes, backgroundPermits);
+        background.acquire(requested);
+        return release(background, requested);
+    }
+
+    private static int permitsFor(long bytes, int limit) {
+        return (int) Math.min(limit, Math.max(1, (bytes + 1023) / 1024));
+    }
+
+    private static Reservation release(Semaphore semaphore, int acquired) {
+        AtomicBoolean released = new AtomicBoolean();
+        return () -> {
+            if (released.compareAndSet(false, true)) {
+                semaphore.release(acquired);
+            }
+        };
+    }
+
+    private int usedPermits() {
+        return requestPermits - permits.availablePermits() + backgroundPermits - background.availablePermits();
+    }
+
+    private double usedBytes() {
+        return usedPermits() * 1024.0;
+    }
+
+    private double utilization() {
+        return (double) usedPermits() / totalPermits;
+    }
+}
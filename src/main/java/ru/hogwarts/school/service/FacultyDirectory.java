@@ -0,0 +1,178 @@
+package ru.hogwarts.school.service;
+
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionalEventListener;
+import ru.hogwarts.school.dto.FacultyDTO;
+import ru.hogwarts.school.model.Faculty;
+import ru.hogwarts.school.model.listener.FacultyChangedEvent;
+import ru.hogwarts.school.repository.FacultyRepository;
+
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * Справочник факультетов в памяти. Хранит неизменяемый снимок с индексами по названию и цвету
+ * и пересобирает его целиком после каждого изменения факультетов. Снимок отдает записи
+ * {@link FacultyDTO}, а не сущности, чтобы вызывающий не мог испортить общие индексы.
+ */
+@Component
+public class FacultyDirectory {
+
+    private static final Logger logger = LoggerFactory.getLogger(FacultyDirectory.class);
+
+    private final FacultyRepository facultyRepository;
+    private volatile Snapshot snapshot = new Snapshot(List.of());
+
+    public FacultyDirectory(FacultyRepository facultyRepository) {
+        this.facultyRepository = facultyRepository;
+    }
+
+    @PostConstruct
+    @Scheduled(initialDelayString = "${students.faculty-directory.refresh-interval:PT5M}",
+            fixedDelayString = "${students.faculty-directory.refresh-interval:PT5M}")
+    public synchronized void rebuild() {
+        snapshot = new Snapshot(facultyRepository.findAll());
+        logger.debug("Справочник факультетов пересобран: {} факультетов", snapshot.faculties.size());
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onFacultyChanged(FacultyChangedEvent event) {
+        rebuild();
+    }
+
+    public Snapshot snapshot() {
+        return snapshot;
+    }
+
+    public static final class Snapshot {
+        private static final int GRAM = 3;
+
+        private final List<FacultyDTO> faculties;
+        private final Map<Long, FacultyDTO> byId = new HashMap<>();
+        private final Map<String, List<FacultyDTO>> byName = new HashMap<>();
+        private final Map<String, List<FacultyDTO>> byColor = new HashMap<>();
+        private final Map<String, List<FacultyDTO>> nameGrams = new HashMap<>();
+        private final Map<String, List<FacultyDTO>> colorGrams = new HashMap<>();
+        private final FacultyDTO longestName;
+
+        private Snapshot(List<Faculty> source) {
+            faculties = source.stream()
+                    .map(FacultyDTO::of)
+                    .sorted(Comparator.comparing(FacultyDTO::id))
+                    .toList();
+
+            FacultyDTO longest = null;
+            for (FacultyDTO faculty : faculties) {
+                byId.put(faculty.id(), faculty);
+                index(byName, nameGrams, faculty.name(), faculty);
+                index(byColor, colorGrams, faculty.color(), faculty);
+                if (faculty.name() != null
+                        && (longest == null || faculty.name().length() > longest.name().length())) {
+                    longest = faculty;
+                }
+            }
+            longestName = longest;
+            byName.replaceAll((key, list) -> List.copyOf(list));
+            byColor.replaceAll((key, list) -> List.copyOf(list));
+        }
+
+        public boolean isEmpty() {
+            return faculties.isEmpty();
+        }
+
+        public List<FacultyDTO> getAll() {
+            return faculties;
+        }
+
+        public Optional<FacultyDTO> findById(Long id) {
+            return Optional.ofNullable(byId.get(id));
+        }
+
+        public boolean existsById(Long id) {
+            return byId.containsKey(id);
+        }
+
+        public List<FacultyDTO> findByNameIgnoreCase(String name) {
+            return name == null ? List.of() : byName.getOrDefault(key(name), List.of());
+        }
+
+        public List<FacultyDTO> findByColorIgnoreCase(String color) {
+            return color == null ? List.of() : byColor.getOrDefault(key(color), List.of());
+        }
+
+        public List<FacultyDTO> findByNameContainingIgnoreCase(String part) {
+            return containing(nameGrams, part, FacultyDTO::name);
+        }
+
+        public List<FacultyDTO> findByColorContainingIgnoreCase(String part) {
+            return containing(colorGrams, part, FacultyDTO::color);
+        }
+
+        public Optional<FacultyDTO> findWithLongestName() {
+            return Optional.ofNullable(longestName);
+        }
+
+        public List<FacultyDTO> findAfter(long id, int limit) {
+            int from = 0;
+            int to = faculties.size();
+            while (from < to) {
+                int middle = (from + to) >>> 1;
+                if (faculties.get(middle).id() <= id) {
+                    from = middle + 1;
+                } else {
+                    to = middle;
+                }
+            }
+            return faculties.subList(from, Math.min(faculties.size(), from + limit));
+        }
+
+        private List<FacultyDTO> containing(Map<String, List<FacultyDTO>> grams, String part,
+                                         Function<FacultyDTO, String> field) {
+            if (part == null) {
+                return List.of();
+            }
+            String key = key(part);
+            List<FacultyDTO> candidates = faculties;
+            if (key.length() >= GRAM) {
+                for (int i = 0; i + GRAM <= key.length(); i++) {
+                    List<FacultyDTO> posting = grams.getOrDefault(key.substring(i, i + GRAM), List.of());
+                    if (posting.size() < candidates.size()) {
+                        candidates = posting;
+                    }
+                }
+            }
+            List<FacultyDTO> result = new ArrayList<>();
+            for (FacultyDTO faculty : candidates) {
+                String value = field.apply(faculty);
+                if (value != null && key(value).contains(key)) {
+                    result.add(faculty);
+                }
+            }
+            return result;
+        }
+
+        private static void index(Map<String, List<FacultyDTO>> exact, Map<String, List<FacultyDTO>> grams,
+                                  String value, FacultyDTO faculty) {
+            if (value == null) {
+                return;
+            }
+            String key = key(value);
+            exact.computeIfAbsent(key, k -> new ArrayList<>()).add(faculty);
+            Set<String> seen = new HashSet<>();
+            for (int i = 0; i + GRAM <= key.length(); i++) {
+                String gram = key.substring(i, i + GRAM);
+                if (seen.add(gram)) {
+                    grams.computeIfAbsent(gram, k -> new ArrayList<>()).add(faculty);
+                }
+            }
+        }
+
+        private static String key(String value) {
+            return value.toLowerCase(Locale.ROOT);
+        }
+    }
+}
@@ -2,12 +2,18 @@ package ru.hogwarts.school.service;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.SliceImpl;
 import org.springframework.stereotype.Service;
+import ru.hogwarts.school.dto.FacultyDTO;
+import ru.hogwarts.school.dto.KeysetPage;
+import ru.hogwarts.school.dto.PageCursor;
 import ru.hogwarts.school.model.Faculty;
 import ru.hogwarts.school.model.Student;
 import ru.hogwarts.school.model.exception.EmptyStorageException;
 import ru.hogwarts.school.model.exception.InvalidValueException;
 import ru.hogwarts.school.repository.FacultyRepository;
+import ru.hogwarts.school.repository.StudentRepository;
 
 import java.util.*;
 import java.util.stream.LongStream;
@@ -16,14 +22,24 @@ import java.util.stream.LongStream;
 public class FacultyService {
 
     private final FacultyRepository facultyRepository;
+    private final StudentRepository studentRepository;
+    private final StatisticsRegistry statisticsRegistry;
+    private final FacultyDirectory facultyDirectory;
     private static final Logger logger = LoggerFactory.getLogger(FacultyService.class);
 
-    public FacultyService(FacultyRepository facultyRepository) {
+    public FacultyService(FacultyRepository facultyRepository, StudentRepository studentRepository, StatisticsRegistry statisticsRegistry, FacultyDirectory facultyDirectory) {
         this.facultyRepository = facultyRepository;
+        this.studentRepository = studentRepository;
+        this.statisticsRegistry = statisticsRegistry;
+        this.facultyDirectory = facultyDirectory;
     }
 
     public boolean storageIsEmpty() {
-        return facultyRepository.findAll().isEmpty();
+        return statisticsRegistry.getFacultyCount() == 0;
+    }
+
+    public boolean facultyExists(Long id) {
+        return id != null && facultyDirectory.snapshot().existsById(id);
     }
 
     public void addFaculty(Faculty faculty) {
@@ -34,13 +50,13 @@ public class FacultyService {
         });
     }
 
-    public Faculty getFacultyByID(Long id) {
+    public FacultyDTO getFacultyByID(Long id) {
         logger.info("Метод получения факультета по идентификатору");
         if (storageIsEmpty()) {
             logger.error("В хранилище нет данных");
             throw new EmptyStorageException();
         }
-        return facultyRepository.findById(id).orElseThrow(() -> {
+        return facultyDirectory.snapshot().findById(id).orElseThrow(() -> {
             logger.error("Факультета с переданным идентификатором не найдено");
             return new InvalidValueException();
         });
@@ -52,7 +68,7 @@ public class FacultyService {
             logger.error("В хранилище нет данных");
             throw new EmptyStorageException();
         }
-        if (!facultyRepository.existsById(faculty.getId())) {
+        if (!facultyDirectory.snapshot().existsById(faculty.getId())) {
             logger.error("Такого факультета нет в хранилище");
             throw new InvalidValueException();
         }
@@ -75,23 +91,37 @@ public class FacultyService {
         facultyRepository.delete(f);
     }
 
-    public List<Faculty> getAllFaculties() {
+    public List<FacultyDTO> getAllFaculties() {
         logger.info("Метод получения списка всех факультетов");
         if (storageIsEmpty()) {
             logger.error("В хранилище нет данных");
             throw new EmptyStorageException();
         }
-        return Collections.unmodifiableList(facultyRepository.findAll());
+        return facultyDirectory.snapshot().getAll();
+    }
+
+    public KeysetPage<FacultyDTO> getFacultiesPage(String after, Integer size) {
+        logger.info("Метод постраничного получения факультетов");
+        if (storageIsEmpty()) {
+            logger.error("В хранилище нет данных");
+            throw new EmptyStorageException();
+        }
+        Pageable pageable = PageCursor.pageable(size);
+        List<FacultyDTO> found = facultyDirectory.snapshot().findAfter(PageCursor.decode(after), pageable.getPageSize() + 1);
+        boolean hasNext = found.size() > pageable.getPageSize();
+        return PageCursor.page(
+                new SliceImpl<>(hasNext ? found.subList(0, pageable.getPageSize()) : found, pageable, hasNext),
+                FacultyDTO::id);
     }
 
-    public List<Faculty> sortByColor(String color) {
+    public List<FacultyDTO> sortByColor(String color) {
         logger.info("Метод сортировки факультетов по цвету");
         if (storageIsEmpty()) {
             logger.error("В хранилище нет данных");
             throw new EmptyStorageException();
         }
-        List<Faculty> f = facultyRepository.findAll().stream()
-                .filter(q -> q.getColor().contains(color))
+        List<FacultyDTO> f = facultyDirectory.snapshot().findByColorContainingIgnoreCase(color).stream()
+                .filter(q -> q.color().contains(color))
                 .toList();
         if (color.isBlank() || color.isEmpty() || f.isEmpty()) {
             logger.error("Факультета с переданным цветом не найдено");
@@ -100,17 +130,17 @@ public class FacultyService {
         return f;
     }
 
-    public List<Faculty> findByNameOrColor(String name, String color) {
+    public List<FacultyDTO> findByNameOrColor(String name, String color) {
         logger.info("Метод поиска факультета по цвету или названию");
         if (storageIsEmpty()) {
             logger.error("В хранилище нет данных");
             throw new EmptyStorageException();
         }
-        return Optional.of(facultyRepository.findByNameIgnoreCaseOrColorIgnoreCaseContains(name, color))
-                .orElseThrow(() -> {
-                    logger.error("Факультет с таким названием и/или цветом не найден");
-                    return new InvalidValueException();
-                });
+        FacultyDirectory.Snapshot snapshot = facultyDirectory.snapshot();
+        Set<FacultyDTO> found = new TreeSet<>(Comparator.comparing(FacultyDTO::id));
+        found.addAll(snapshot.findByNameIgnoreCase(name));
+        found.addAll(snapshot.findByColorContainingIgnoreCase(color));
+        return List.copyOf(found);
     }
 
     public List<Student> getAllStudentsOfFaculty(String name) {
@@ -119,12 +149,13 @@ public class FacultyService {
             logger.error("В хранилище нет данных");
             throw new EmptyStorageException();
         }
-        Optional<Faculty> f = Optional.of(facultyRepository.findByNameIgnoreCaseContains(name)
+        FacultyDTO f = facultyDirectory.snapshot().findByNameContainingIgnoreCase(name).stream()
+                .findFirst()
                 .orElseThrow(() -> {
                     logger.error("Факультет с таким названием не найден");
                     return new InvalidValueException();
-                }));
-        return f.get().getStudents();
+                });
+        return studentRepository.findAllByFacultyIdOrderById(f.id());
     }
 
     public String getTheLongestFacultyName() {
@@ -132,9 +163,8 @@ public class FacultyService {
             logger.error("В хранилище нет данных");
             throw new EmptyStorageException();
         }
-        return "Факультет с самым длинным названием: " + facultyRepository.findAll().stream()
-                .max(Comparator.comparingInt(faculty -> faculty.getName().length()))
-                .map(Faculty::getName)
+        return "Факультет с самым длинным названием: " + facultyDirectory.snapshot().findWithLongestName()
+                .map(FacultyDTO::name)
                 .get();
     }
 
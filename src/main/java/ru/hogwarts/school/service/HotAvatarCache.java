@@ -0,0 +1,287 @@
+package ru.hogwarts.school.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.apache.catalina.connector.CoyoteOutputStream;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionalEventListener;
+import org.springframework.util.unit.DataSize;
+import ru.hogwarts.school.model.listener.AvatarChangedEvent;
+import ru.hogwarts.school.model.listener.StudentChangedEvent;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static java.nio.file.StandardOpenOption.READ;
+
+/**
+ * Кэш часто запрашиваемых аватаров и превью в прямых {@link ByteBuffer} вне heap.
+ * Суммарный объем ограничен бюджетом в байтах. Новая запись вытесняет самую давно
+ * использованную, только если запрашивается чаще нее; частоты считаются приближенно
+ * в count-min sketch и периодически уменьшаются вдвое, чтобы старые популярные аватары
+ * со временем уступали место новым.
+ * <p>
+ * Перед чтением аватара из базы вызывающий берет {@link #generation(String) поколение} ключа и
+ * передает его в {@code offer}. Инвалидация увеличивает поколение, поэтому запись, прочитанная
+ * до замены аватара, не вернется в кэш после инвалидации.
+ */
+@Component
+public class HotAvatarCache {
+
+    private static final int GENERATION_STRIPES = 1024;
+
+    public record Entry(ByteBuffer data, String mediaType, String eTag, long lastModified) {
+        public int size() {
+            return data.capacity();
+        }
+    }
+
+    private final long maxBytes;
+    private final long maxEntryBytes;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final FrequencySketch sketch = new FrequencySketch(4096);
+    private final long[] generations = new long[GENERATION_STRIPES];
+    private long bytes;
+
+    private final Counter hits;
+    private final Counter misses;
+    private long evictions;
+
+    public HotAvatarCache(@Value("${students.avatar.hot-cache.max-size:64MB}") DataSize maxSize,
+                          @Value("${students.avatar.hot-cache.max-entry-size:1MB}") DataSize maxEntrySize,
+                          MeterRegistry meterRegistry) {
+        this.maxBytes = maxSize.toBytes();
+        this.maxEntryBytes = maxEntrySize.toBytes();
+
+        hits = meterRegistry.counter("avatars.hot-cache.requests", "result", "hit");
+        misses = meterRegistry.counter("avatars.hot-cache.requests", "result", "miss");
+        FunctionCounter.builder("avatars.hot-cache.evictions", this, HotAvatarCache::evictionCount)
+                .register(meterRegistry);
+        Gauge.builder("avatars.hot-cache.off-heap", this, HotAvatarCache::offHeapBytes)
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        Gauge.builder("avatars.hot-cache.entries", this, HotAvatarCache::entryCount)
+                .register(meterRegistry);
+        Gauge.builder("avatars.hot-cache.hit-ratio", this, HotAvatarCache::hitRatio)
+                .register(meterRegistry);
+    }
+
+    public static String avatarKey(Long studentId) {
+        return "avatar:" + studentId;
+    }
+
+    public static String previewKey(Long studentId) {
+        return "preview:" + studentId;
+    }
+
+    /**
+     * Поколение ключа. Счетчики разбиты на полосы по хэшу ключа, так что инвалидация соседнего
+     * ключа в той же полосе лишь откладывает кэширование до следующего запроса.
+     */
+    public synchronized long generation(String key) {
+        return generations[stripe(key)];
+    }
+
+    public synchronized Entry get(String key) {
+        sketch.increment(key);
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return entry;
+    }
+
+    /**
+     * Предлагает файл в кэш. Файл читается в прямой буфер, только если запись будет принята.
+     * Возвращает запись или {@code null}, если файл недостаточно популярен, слишком велик
+     * или ключ инвалидирован после получения {@code generation}.
+     */
+    public Entry offer(String key, long generation, AvatarStorage.Region source,
+                       String mediaType, String eTag, long lastModified) throws IOException {
+        if (!admits(key, generation, source.length())) {
+            return null;
+        }
+        ByteBuffer data = ByteBuffer.allocateDirect((int) source.length());
+        try (FileChannel channel = FileChannel.open(source.file(), READ)) {
+            while (data.hasRemaining() && channel.read(data, source.offset() + data.position()) != -1) {
+                // читаем до конца участка
+            }
+        }
+        data.flip();
+        return put(key, generation, new Entry(data.asReadOnlyBuffer(), mediaType, eTag, lastModified));
+    }
+
+    public Entry offer(String key, long generation, byte[] content, String mediaType, String eTag) {
+        if (!admits(key, generation, content.length)) {
+            return null;
+        }
+        ByteBuffer data = ByteBuffer.allocateDirect(content.length).put(content).flip();
+        return put(key, generation, new Entry(data.asReadOnlyBuffer(), mediaType, eTag, -1));
+    }
+
+    /**
+     * Пишет часть записи в ответ. Выходной поток Tomcat принимает буфер напрямую,
+     * без промежуточного массива в heap.
+     */
+    public void write(Entry entry, long position, long count, OutputStream out) throws IOException {
+        ByteBuffer slice = entry.data().slice((int) position, (int) count);
+        if (out instanceof CoyoteOutputStream coyote) {
+            coyote.write(slice);
+            return;
+        }
+        WritableByteChannel channel = Channels.newChannel(out);
+        while (slice.hasRemaining()) {
+            channel.write(slice);
+        }
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onAvatarChanged(AvatarChangedEvent event) {
+        invalidate(avatarKey(event.studentId()));
+        invalidate(previewKey(event.studentId()));
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onStudentChanged(StudentChangedEvent event) {
+        if (event.isRemoved()) {
+            invalidate(avatarKey(event.before().id()));
+            invalidate(previewKey(event.before().id()));
+        }
+    }
+
+    public synchronized void invalidate(String key) {
+        generations[stripe(key)]++;
+        Entry removed = entries.remove(key);
+        if (removed != null) {
+            bytes -= removed.size();
+        }
+    }
+
+    private synchronized boolean admits(String key, long generation, long size) {
+        if (size > maxEntryBytes || size > maxBytes || generations[stripe(key)] != generation) {
+            return false;
+        }
+        int frequency = sketch.frequency(key);
+        if (frequency < 2) {
+            return false;
+        }
+        long free = maxBytes - bytes;
+        for (Map.Entry<String, Entry> victim : entries.entrySet()) {
+            if (free >= size) {
+                break;
+            }
+            if (!victim.getKey().equals(key) && sketch.frequency(victim.getKey()) >= frequency) {
+                return false;
+            }
+            free += victim.getValue().size();
+        }
+        return free >= size;
+    }
+
+    private synchronized Entry put(String key, long generation, Entry entry) {
+        if (generations[stripe(key)] != generation) {
+            // аватар изменился, пока файл читался в буфер
+            return null;
+        }
+        Entry previous = entries.remove(key);
+        if (previous != null) {
+            bytes -= previous.size();
+        }
+        Iterator<Entry> eldest = entries.values().iterator();
+        while (bytes + entry.size() > maxBytes && eldest.hasNext()) {
+            bytes -= eldest.next().size();
+            eldest.remove();
+            evictions++;
+        }
+        entries.put(key, entry);
+        bytes += entry.size();
+        return entry;
+    }
+
+    private static int stripe(String key) {
+        int h = key.hashCode();
+        return (h ^ (h >>> 16)) & (GENERATION_STRIPES - 1);
+    }
+
+    synchronized long offHeapBytes() {
+        return bytes;
+    }
+
+    synchronized int entryCount() {
+        return entries.size();
+    }
+
+    private synchronized long evictionCount() {
+        return evictions;
+    }
+
+    private double hitRatio() {
+        double total = hits.count() + misses.count();
+        return total == 0 ? 0 : hits.count() / total;
+    }
+
+    /**
+     * Count-min sketch с 4-битными по смыслу счетчиками: значения ограничены 15,
+     * а после {@code 10 * width} увеличений все счетчики делятся пополам.
+     */
+    private static final class FrequencySketch {
+        private static final int DEPTH = 4;
+        private static final int MAX_COUNT = 15;
+        private static final int[] SEEDS = {0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F};
+
+        private final int[][] table;
+        private final int mask;
+        private final int sampleSize;
+        private int additions;
+
+        private FrequencySketch(int width) {
+            table = new int[DEPTH][width];
+            mask = width - 1;
+            sampleSize = 10 * width;
+        }
+
+        private void increment(String key) {
+            int hash = key.hashCode();
+            for (int i = 0; i < DEPTH; i++) {
+                int index = index(hash, i);
+                if (table[i][index] < MAX_COUNT) {
+                    table[i][index]++;
+                }
+            }
+            if (++additions >= sampleSize) {
+                for (int[] row : table) {
+                    for (int j = 0; j < row.length; j++) {
+                        row[j] >>>= 1;
+                    }
+                }
+                additions /= 2;
+            }
+        }
+
+        private int frequency(String key) {
+            int hash = key.hashCode();
+            int min = MAX_COUNT;
+            for (int i = 0; i < DEPTH; i++) {
+                min = Math.min(min, table[i][index(hash, i)]);
+            }
+            return min;
+        }
+
+        private int index(int hash, int row) {
+            int h = hash * SEEDS[row];
+            return (h ^ (h >>> 16)) & mask;
+        }
+    }
+}
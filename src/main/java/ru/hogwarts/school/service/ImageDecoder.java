@@ -0,0 +1,151 @@
+package ru.hogwarts.school.service;
+
+import org.springframework.stereotype.Component;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.file.Path;
+import java.util.Iterator;
+
+/**
+ * Декодирование изображений под нужный размер. Сначала из заголовка читаются только размеры,
+ * затем {@link ImageReader} пропускает лишние пиксели при чтении, так что в памяти оказывается
+ * растр порядка целевого размера, а не исходного. Память под этот растр резервируется
+ * в {@link DecodeBudget} на время декодирования.
+ */
+@Component
+public class ImageDecoder {
+
+    /**
+     * Во сколько раз декодированный растр может быть шире целевого. Запас нужен, чтобы
+     * итоговое уменьшение шло с интерполяцией, а не простым прореживанием.
+     */
+    private static final int OVERSAMPLING = 2;
+
+    public record Header(String format, int width, int height) {
+    }
+
+    private final DecodeBudget decodeBudget;
+
+    public ImageDecoder(DecodeBudget decodeBudget) {
+        this.decodeBudget = decodeBudget;
+    }
+
+    public Header readHeader(Path source) throws IOException {
+        return readHeader(AvatarStorage.Region.of(source));
+    }
+
+    public Header readHeader(AvatarStorage.Region source) throws IOException {
+        try (ImageInputStream input = open(source)) {
+            ImageReader reader = readerFor(input, source);
+            try {
+                reader.setInput(input, true, true);
+                return new Header(reader.getFormatName().toLowerCase(), reader.getWidth(0), reader.getHeight(0));
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Читает изображение с прореживанием строк и столбцов так, чтобы ширина растра была
+     * не меньше {@code targetWidth} и не больше чем вдвое ее превышала.
+     */
+    public BufferedImage decode(Path source, int targetWidth) throws IOException {
+        return decode(AvatarStorage.Region.of(source), targetWidth);
+    }
+
+    public BufferedImage decode(AvatarStorage.Region source, int targetWidth) throws IOException {
+        return decode(source, targetWidth, DecodeBudget.Priority.REQUEST);
+    }
+
+    public BufferedImage decode(AvatarStorage.Region source, int targetWidth, DecodeBudget.Priority priority)
+            throws IOException {
+        try (ImageInputStream input = open(source)) {
+            ImageReader reader = readerFor(input, source);
+            try {
+                reader.setInput(input, true, true);
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+                int subsampling = Math.max(1, width / (targetWidth * OVERSAMPLING));
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                long rasterBytes = DecodeBudget.rasterBytes(
+                        (width + subsampling - 1) / subsampling, (height + subsampling - 1) / subsampling);
+                try (DecodeBudget.Reservation reservation = decodeBudget.reserve(rasterBytes, priority)) {
+                    return reader.read(0, param);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Декодирование прервано");
+                }
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Уменьшает изображение до {@code targetWidth}, не увеличивая мелкие. Большие уменьшения
+     * идут по шагам не более чем вдвое, чтобы билинейная интерполяция не теряла детали.
+     */
+    public BufferedImage scale(BufferedImage image, int targetWidth) {
+        int width = Math.min(targetWidth, image.getWidth());
+        int height = Math.max(1, (int) ((long) image.getHeight() * width / image.getWidth()));
+        int type = image.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+
+        BufferedImage current = image;
+        do {
+            int stepWidth = Math.max(width, current.getWidth() / 2);
+            int stepHeight = Math.max(height, current.getHeight() / 2);
+            BufferedImage next = new BufferedImage(stepWidth, stepHeight, type);
+            Graphics2D graphics = next.createGraphics();
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.drawImage(current, 0, 0, stepWidth, stepHeight, null);
+            graphics.dispose();
+            current = next;
+        } while (current.getWidth() != width || current.getHeight() != height);
+        return current;
+    }
+
+    /**
+     * Отдельный файл читается с произвольным доступом, запись в сегменте — потоком по участку
+     * с кэшированием прочитанного в памяти. {@link MemoryCacheImageInputStream} сам исходный
+     * поток не закрывает.
+     */
+    private static ImageInputStream open(AvatarStorage.Region source) throws IOException {
+        if (!source.isWholeFile()) {
+            InputStream content = source.newInputStream();
+            return new MemoryCacheImageInputStream(content) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        content.close();
+                    }
+                }
+            };
+        }
+        ImageInputStream input = ImageIO.createImageInputStream(source.file().toFile());
+        if (input == null) {
+            throw new IOException("Не удалось открыть файл изображения: " + source.file());
+        }
+        return input;
+    }
+
+    private static ImageReader readerFor(ImageInputStream input, AvatarStorage.Region source) throws IOException {
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+        if (!readers.hasNext()) {
+            throw new IOException("Файл не является изображением: " + source.file());
+        }
+        return readers.next();
+    }
+}
@@ -0,0 +1,162 @@
+package ru.hogwarts.school.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+import ru.hogwarts.school.model.exception.InvalidImageException;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import java.io.*;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Проверяет загружаемое изображение до записи на диск. Формат определяется по сигнатуре,
+ * а не по имени файла, размеры читаются {@link ImageReader} только из заголовка. Прочитанное
+ * начало потока возвращается вместе с остатком, так что файл дальше сохраняется как обычно.
+ */
+@Component
+public class ImageValidator {
+
+    private record Signature(String format, String extension, String mediaType, byte[] magic) {
+    }
+
+    private static final List<Signature> SIGNATURES = List.of(
+            new Signature("jpeg", "jpg", MediaType.IMAGE_JPEG_VALUE, new byte[]{(byte) 0xFF, (byte) 0xD8, (byte) 0xFF}),
+            new Signature("png", "png", MediaType.IMAGE_PNG_VALUE,
+                    new byte[]{(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'}),
+            new Signature("gif", "gif", MediaType.IMAGE_GIF_VALUE, new byte[]{'G', 'I', 'F', '8'}),
+            new Signature("bmp", "bmp", "image/bmp", new byte[]{'B', 'M'}));
+    private static final int MAGIC_LENGTH = 8;
+
+    public record ValidatedImage(ImageDecoder.Header header, String extension, String mediaType, InputStream content) {
+    }
+
+    private final int maxWidth;
+    private final int maxHeight;
+    private final long maxPixels;
+    private final int maxHeaderSize;
+
+    public ImageValidator(@Value("${students.avatar.validation.max-width:8000}") int maxWidth,
+                          @Value("${students.avatar.validation.max-height:8000}") int maxHeight,
+                          @Value("${students.avatar.validation.max-pixels:40000000}") long maxPixels,
+                          @Value("${students.avatar.validation.max-header-size:256KB}") DataSize maxHeaderSize) {
+        this.maxWidth = maxWidth;
+        this.maxHeight = maxHeight;
+        this.maxPixels = maxPixels;
+        this.maxHeaderSize = (int) maxHeaderSize.toBytes();
+    }
+
+    /**
+     * Бросает {@link InvalidImageException}, если формат не поддерживается, заголовок не читается
+     * или изображение после распаковки заняло бы слишком много памяти.
+     */
+    public ValidatedImage validate(InputStream content) throws IOException {
+        HeadInputStream head = new HeadInputStream(content, maxHeaderSize);
+        byte[] magic = head.readNBytes(MAGIC_LENGTH);
+        Signature signature = SIGNATURES.stream()
+                .filter(candidate -> startsWith(magic, candidate.magic()))
+                .findFirst()
+                .orElseThrow(() -> new InvalidImageException("Формат изображения не поддерживается!"));
+
+        ImageDecoder.Header header = readHeader(signature.format(), magic, head);
+        if (header.width() <= 0 || header.height() <= 0
+                || header.width() > maxWidth || header.height() > maxHeight) {
+            throw new InvalidImageException("Недопустимые размеры изображения: "
+                    + header.width() + "x" + header.height());
+        }
+        if ((long) header.width() * header.height() > maxPixels) {
+            throw new InvalidImageException("Изображение распаковывается в слишком большой растр!");
+        }
+        InputStream replay = new SequenceInputStream(new ByteArrayInputStream(head.bytes()), content);
+        return new ValidatedImage(header, signature.extension(), signature.mediaType(), replay);
+    }
+
+    private ImageDecoder.Header readHeader(String format, byte[] magic, InputStream rest) {
+        Iterator<ImageReader> readers = ImageIO.getImageReadersByFormatName(format);
+        if (!readers.hasNext()) {
+            throw new InvalidImageException("Формат изображения не поддерживается!");
+        }
+        ImageReader reader = readers.next();
+        try (ImageInputStream input = new MemoryCacheImageInputStream(
+                new SequenceInputStream(new ByteArrayInputStream(magic), rest))) {
+            reader.setInput(input, true, true);
+            return new ImageDecoder.Header(format, reader.getWidth(0), reader.getHeight(0));
+        } catch (InvalidImageException e) {
+            throw e;
+        } catch (IOException | RuntimeException e) {
+            throw new InvalidImageException("Файл изображения поврежден!");
+        } finally {
+            reader.dispose();
+        }
+    }
+
+    private static boolean startsWith(byte[] data, byte[] prefix) {
+        return data.length >= prefix.length && Arrays.equals(data, 0, prefix.length, prefix, 0, prefix.length);
+    }
+
+    /**
+     * Запоминает все прочитанные байты и обрывает чтение, если заголовок не уложился в лимит.
+     */
+    private static class HeadInputStream extends FilterInputStream {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final int limit;
+
+        HeadInputStream(InputStream in, int limit) {
+            super(in);
+            this.limit = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                record(new byte[]{(byte) b}, 0, 1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, Math.min(length, limit + 1 - bytes.size()));
+            if (read > 0) {
+                record(buffer, offset, read);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            return readNBytes((int) Math.min(n, limit + 1L)).length;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        /**
+         * Исходный поток закрывает вызывающий: {@link SequenceInputStream} закрывает дочитанные
+         * потоки, а после проверки заголовка из него читается остаток файла.
+         */
+        @Override
+        public void close() {
+        }
+
+        private void record(byte[] buffer, int offset, int length) {
+            bytes.write(buffer, offset, length);
+            if (bytes.size() > limit) {
+                throw new InvalidImageException("Заголовок изображения слишком большой!");
+            }
+        }
+
+        byte[] bytes() {
+            return bytes.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,330 @@
+package ru.hogwarts.school.service;
+
+import jakarta.annotation.PreDestroy;
+import jakarta.persistence.EntityManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.unit.DataSize;
+import ru.hogwarts.school.model.AvatarPreview;
+import ru.hogwarts.school.model.MaintenanceCheckpoint;
+import ru.hogwarts.school.model.PreviewJob;
+import ru.hogwarts.school.repository.AvatarPreviewRepository;
+import ru.hogwarts.school.repository.AvatarRepository;
+import ru.hogwarts.school.repository.MaintenanceCheckpointRepository;
+import ru.hogwarts.school.repository.PreviewJobRepository;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Перестраивает превью всех аватаров, например после изменения размера или исправления
+ * генерации. Таблица avatar обходится страницами по возрастанию id, изображения каждой страницы
+ * обрабатываются в work-stealing пуле, а превью записываются пакетами в одной транзакции вместе
+ * с позицией. Если задача прервана остановкой приложения, она продолжится с этой позиции.
+ */
+@Component
+public class PreviewRegenerator {
+
+    private static final Logger logger = LoggerFactory.getLogger(PreviewRegenerator.class);
+
+    static final String CHECKPOINT = "preview-regeneration";
+    private static final int MAX_FAILURES = 20;
+
+    public enum Status {
+        IDLE,
+        RUNNING,
+        COMPLETED,
+        CANCELLED,
+        FAILED
+    }
+
+    public record Failure(Long avatarId, String message) {
+    }
+
+    public record Progress(Status status, long total, long processed, long failed, Long lastAvatarId,
+                           Instant startedAt, Duration eta, List<Failure> recentFailures) {
+    }
+
+    private record Rendered(Long avatarId, Long studentId, String filePath, byte[] data) {
+    }
+
+    private final AvatarRepository avatarRepository;
+    private final AvatarPreviewRepository avatarPreviewRepository;
+    private final PreviewJobRepository previewJobRepository;
+    private final MaintenanceCheckpointRepository checkpointRepository;
+    private final PreviewWorker previewWorker;
+    private final AvatarStorage avatarStorage;
+    private final HotAvatarCache hotAvatarCache;
+    private final EntityManager entityManager;
+    private final TransactionTemplate transactionTemplate;
+    private final ForkJoinPool pool;
+    private final ExecutorService runner;
+    private final int batchSize;
+    private final Duration pause;
+    private final long maxReadBytesPerSecond;
+
+    private volatile Status status = Status.IDLE;
+    private volatile boolean stopping;
+    private volatile boolean cancelled;
+    private volatile long total;
+    private volatile long processedAtStart;
+    private volatile Long lastAvatarId;
+    private volatile Instant startedAt;
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final Deque<Failure> failures = new ArrayDeque<>();
+
+    public PreviewRegenerator(AvatarRepository avatarRepository,
+                              AvatarPreviewRepository avatarPreviewRepository,
+                              PreviewJobRepository previewJobRepository,
+                              MaintenanceCheckpointRepository checkpointRepository,
+                              PreviewWorker previewWorker,
+                              AvatarStorage avatarStorage,
+                              HotAvatarCache hotAvatarCache,
+                              EntityManager entityManager,
+                              PlatformTransactionManager transactionManager,
+                              @Value("${students.avatar.regeneration.parallelism:0}") int parallelism,
+                              @Value("${students.avatar.regeneration.batch-size:100}") int batchSize,
+                              @Value("${students.avatar.regeneration.pause:PT0S}") Duration pause,
+                              @Value("${students.avatar.regeneration.max-read-rate:0B}") DataSize maxReadRate) {
+        this.avatarRepository = avatarRepository;
+        this.avatarPreviewRepository = avatarPreviewRepository;
+        this.previewJobRepository = previewJobRepository;
+        this.checkpointRepository = checkpointRepository;
+        this.previewWorker = previewWorker;
+        this.avatarStorage = avatarStorage;
+        this.hotAvatarCache = hotAvatarCache;
+        this.entityManager = entityManager;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.batchSize = batchSize;
+        this.pause = pause;
+        this.maxReadBytesPerSecond = maxReadRate.toBytes();
+
+        int threads = parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors();
+        this.pool = new ForkJoinPool(threads, forkJoinPool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(forkJoinPool);
+            thread.setName("preview-regeneration-" + thread.getPoolIndex());
+            return thread;
+        }, null, false);
+        this.runner = Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, "preview-regeneration");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void resumeInterrupted() {
+        if (checkpointRepository.existsById(CHECKPOINT)) {
+            logger.info("Продолжение прерванного перестроения превью");
+            start(false);
+        }
+    }
+
+    /**
+     * Запускает перестроение с сохраненной позиции или, если {@code restart}, с начала таблицы.
+     * Повторный вызов во время работы ничего не меняет.
+     */
+    public synchronized Progress start(boolean restart) {
+        if (status == Status.RUNNING) {
+            return getProgress();
+        }
+        long afterId = restart ? 0 : checkpointRepository.findById(CHECKPOINT)
+                .map(MaintenanceCheckpoint::getPosition)
+                .map(Long::parseLong)
+                .orElse(0L);
+        transactionTemplate.executeWithoutResult(state -> savePosition(afterId));
+
+        total = avatarRepository.count();
+        processedAtStart = avatarRepository.countByIdLessThanEqual(afterId);
+        processed.set(processedAtStart);
+        failed.set(0);
+        synchronized (failures) {
+            failures.clear();
+        }
+        lastAvatarId = afterId == 0 ? null : afterId;
+        startedAt = Instant.now();
+        stopping = false;
+        cancelled = false;
+        status = Status.RUNNING;
+        runner.execute(() -> run(afterId));
+        return getProgress();
+    }
+
+    /**
+     * Останавливает перестроение и забывает позицию, так что после перезапуска приложения
+     * оно не продолжится.
+     */
+    public synchronized Progress cancel() {
+        if (status == Status.RUNNING) {
+            cancelled = true;
+            stopping = true;
+        } else {
+            transactionTemplate.executeWithoutResult(state -> checkpointRepository.deleteById(CHECKPOINT));
+        }
+        return getProgress();
+    }
+
+    public Progress getProgress() {
+        Duration eta = null;
+        long done = processed.get() - processedAtStart;
+        if (status == Status.RUNNING && done > 0) {
+            Duration elapsed = Duration.between(startedAt, Instant.now());
+            eta = elapsed.multipliedBy(Math.max(0, total - processed.get())).dividedBy(done);
+        }
+        List<Failure> recent;
+        synchronized (failures) {
+            recent = List.copyOf(failures);
+        }
+        return new Progress(status, total, processed.get(), failed.get(), lastAvatarId, startedAt, eta, recent);
+    }
+
+    private void run(long afterId) {
+        try {
+            while (!stopping) {
+                List<AvatarRepository.AvatarFile> page =
+                        avatarRepository.findFilesAfter(afterId, PageRequest.of(0, batchSize));
+                if (page.isEmpty()) {
+                    break;
+                }
+                long started = System.nanoTime();
+                AtomicLong bytesRead = new AtomicLong();
+                List<Rendered> rendered = pool.submit(() -> page.parallelStream()
+                        .map(file -> render(file, bytesRead))
+                        .filter(Objects::nonNull)
+                        .toList()).get();
+                afterId = page.get(page.size() - 1).getId();
+                write(rendered, afterId);
+                processed.addAndGet(page.size());
+                lastAvatarId = afterId;
+                throttle(started, bytesRead.get());
+            }
+            finish();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            status = Status.FAILED;
+        } catch (Exception e) {
+            logger.error("Перестроение превью остановлено на аватаре {}", afterId, e);
+            status = Status.FAILED;
+        }
+    }
+
+    private synchronized void finish() {
+        if (cancelled) {
+            transactionTemplate.executeWithoutResult(state -> checkpointRepository.deleteById(CHECKPOINT));
+            status = Status.CANCELLED;
+        } else if (stopping) {
+            // приложение останавливается: позиция остается для продолжения
+            status = Status.IDLE;
+        } else {
+            transactionTemplate.executeWithoutResult(state -> checkpointRepository.deleteById(CHECKPOINT));
+            status = Status.COMPLETED;
+            logger.info("Перестроение превью завершено: обработано {}, ошибок {}", processed.get(), failed.get());
+        }
+    }
+
+    private Rendered render(AvatarRepository.AvatarFile file, AtomicLong bytesRead) {
+        if (file.getStudentId() == null || file.getFilePath() == null) {
+            return null;
+        }
+        try {
+            AvatarStorage.Region source = avatarStorage.open(file.getFilePath());
+            bytesRead.addAndGet(source.length());
+            return new Rendered(file.getId(), file.getStudentId(), file.getFilePath(),
+                    previewWorker.generateImagePreview(source, AvatarStorage.extensionOf(file.getFilePath())));
+        } catch (Exception e) {
+            failed.incrementAndGet();
+            synchronized (failures) {
+                if (failures.size() == MAX_FAILURES) {
+                    failures.removeFirst();
+                }
+                failures.addLast(new Failure(file.getId(), String.valueOf(e.getMessage())));
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Пишет превью страницы пакетом и сдвигает позицию в той же транзакции. Аватары, замененные
+     * за время обработки, пропускаются: их превью уже перестраивает {@link PreviewWorker}.
+     */
+    private void write(List<Rendered> rendered, long afterId) {
+        List<Rendered> written = transactionTemplate.execute(state -> {
+            if (rendered.isEmpty()) {
+                savePosition(afterId);
+                return rendered;
+            }
+            Map<Long, String> current = avatarRepository.findFilesByIdIn(
+                            rendered.stream().map(Rendered::avatarId).toList()).stream()
+                    .collect(Collectors.toMap(AvatarRepository.AvatarFile::getId, AvatarRepository.AvatarFile::getFilePath));
+            List<Rendered> fresh = rendered.stream()
+                    .filter(r -> r.filePath().equals(current.get(r.avatarId())))
+                    .toList();
+            if (fresh.isEmpty()) {
+                savePosition(afterId);
+                return fresh;
+            }
+            List<Long> ids = fresh.stream().map(Rendered::avatarId).toList();
+            Map<Long, AvatarPreview> existing = avatarPreviewRepository.findAllById(ids).stream()
+                    .collect(Collectors.toMap(AvatarPreview::getAvatarId, Function.identity()));
+            for (Rendered r : fresh) {
+                AvatarPreview preview = existing.get(r.avatarId());
+                if (preview == null) {
+                    preview = new AvatarPreview(r.avatarId());
+                    preview.setData(r.data());
+                    entityManager.persist(preview);
+                } else {
+                    preview.setData(r.data());
+                }
+            }
+            previewJobRepository.resolveFailed(ids, PreviewJob.Status.FAILED, PreviewJob.Status.DONE, Instant.now());
+            savePosition(afterId);
+            entityManager.flush();
+            entityManager.clear();
+            return fresh;
+        });
+        written.forEach(r -> hotAvatarCache.invalidate(HotAvatarCache.previewKey(r.studentId())));
+    }
+
+    /**
+     * Пауза между страницами: не меньше заданной и достаточная, чтобы чтение файлов
+     * не превышало {@code max-read-rate}.
+     */
+    private void throttle(long startedNanos, long bytes) throws InterruptedException {
+        long pauseNanos = pause.toNanos();
+        if (maxReadBytesPerSecond > 0) {
+            long minNanos = bytes * TimeUnit.SECONDS.toNanos(1) / maxReadBytesPerSecond;
+            pauseNanos = Math.max(pauseNanos, minNanos - (System.nanoTime() - startedNanos));
+        }
+        if (pauseNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(pauseNanos);
+        }
+    }
+
+    private void savePosition(long afterId) {
+        MaintenanceCheckpoint checkpoint = checkpointRepository.findById(CHECKPOINT)
+                .orElseGet(() -> new MaintenanceCheckpoint(CHECKPOINT));
+        checkpoint.setPosition(String.valueOf(afterId));
+        checkpoint.setUpdatedAt(Instant.now());
+        checkpointRepository.save(checkpoint);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        stopping = true;
+        runner.shutdownNow();
+        pool.shutdownNow();
+    }
+}
@@ -0,0 +1,280 @@
+package ru.hogwarts.school.service;
+
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.event.TransactionalEventListener;
+import org.springframework.transaction.support.TransactionTemplate;
+import ru.hogwarts.school.model.Avatar;
+import ru.hogwarts.school.model.AvatarPreview;
+import ru.hogwarts.school.model.PreviewJob;
+import ru.hogwarts.school.model.exception.InvalidImageException;
+import ru.hogwarts.school.model.listener.AvatarChangedEvent;
+import ru.hogwarts.school.model.listener.PreviewRequestedEvent;
+import ru.hogwarts.school.repository.AvatarPreviewRepository;
+import ru.hogwarts.school.repository.AvatarRepository;
+import ru.hogwarts.school.repository.PreviewJobRepository;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static ru.hogwarts.school.model.PreviewJob.Status.*;
+
+/**
+ * Генерирует превью аватаров в ограниченном пуле потоков. Состояние задач хранится в таблице
+ * preview_job: задача забирается в работу условным UPDATE, при ошибке повторяется с нарастающей
+ * задержкой, а периодический опрос подхватывает задачи, не попавшие в очередь или брошенные
+ * после перезапуска. Если включено перекодирование, только что загруженный аватар сначала
+ * перекодируется, и превью строится уже по новому файлу.
+ */
+@Component
+public class PreviewWorker {
+
+    private static final Logger logger = LoggerFactory.getLogger(PreviewWorker.class);
+    private static final int PREVIEW_WIDTH = 100;
+
+    private final AvatarRepository avatarRepository;
+    private final AvatarPreviewRepository avatarPreviewRepository;
+    private final PreviewJobRepository previewJobRepository;
+    private final TransactionTemplate transactionTemplate;
+    private final ImageDecoder imageDecoder;
+    private final AvatarStorage avatarStorage;
+    private final AvatarTranscoder avatarTranscoder;
+    private final ApplicationEventPublisher publisher;
+    private final ThreadPoolExecutor executor;
+    private final int maxAttempts;
+    private final Duration retryDelay;
+    private final Duration staleAfter;
+
+    public PreviewWorker(AvatarRepository avatarRepository,
+                         AvatarPreviewRepository avatarPreviewRepository,
+                         PreviewJobRepository previewJobRepository,
+                         PlatformTransactionManager transactionManager,
+                         ImageDecoder imageDecoder,
+                         AvatarStorage avatarStorage,
+                         AvatarTranscoder avatarTranscoder,
+                         ApplicationEventPublisher publisher,
+                         @Value("${students.avatar.preview.workers:2}") int workers,
+                         @Value("${students.avatar.preview.queue-capacity:100}") int queueCapacity,
+                         @Value("${students.avatar.preview.max-attempts:3}") int maxAttempts,
+                         @Value("${students.avatar.preview.retry-delay:PT30S}") Duration retryDelay,
+                         @Value("${students.avatar.preview.stale-after:PT5M}") Duration staleAfter) {
+        this.avatarRepository = avatarRepository;
+        this.avatarPreviewRepository = avatarPreviewRepository;
+        this.previewJobRepository = previewJobRepository;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.imageDecoder = imageDecoder;
+        this.avatarStorage = avatarStorage;
+        this.avatarTranscoder = avatarTranscoder;
+        this.publisher = publisher;
+        this.maxAttempts = maxAttempts;
+        this.retryDelay = retryDelay;
+        this.staleAfter = staleAfter;
+
+        AtomicInteger threads = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                task -> {
+                    Thread thread = new Thread(task, "preview-worker-" + threads.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.DiscardPolicy());
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onPreviewRequested(PreviewRequestedEvent event) {
+        submit(event.avatarId());
+    }
+
+    @Scheduled(fixedDelayString = "${students.avatar.preview.poll-interval:PT10S}")
+    public void poll() {
+        Instant now = Instant.now();
+        Integer released = transactionTemplate.execute(status ->
+                previewJobRepository.releaseStale(RUNNING, PENDING, now.minus(staleAfter), now));
+        if (released != null && released > 0) {
+            logger.warn("Возвращено в очередь зависших задач генерации превью: {}", released);
+        }
+        int capacity = executor.getQueue().remainingCapacity();
+        if (capacity > 0) {
+            previewJobRepository.findDue(PENDING, now, PageRequest.of(0, capacity)).forEach(this::submit);
+        }
+    }
+
+    private void submit(Long avatarId) {
+        executor.execute(() -> process(avatarId));
+    }
+
+    void process(Long avatarId) {
+        Integer claimed = transactionTemplate.execute(status ->
+                previewJobRepository.claim(avatarId, PENDING, RUNNING, Instant.now()));
+        if (claimed == null || claimed == 0) {
+            return;
+        }
+        Optional<String> filePath = avatarRepository.findFilePathById(avatarId);
+        if (filePath.isEmpty()) {
+            abandon(avatarId);
+            return;
+        }
+        try {
+            Optional<String> location = transcode(avatarId, filePath.get());
+            if (location.isEmpty()) {
+                // аватар заменили во время перекодирования, новую задачу поставила загрузка
+                return;
+            }
+            byte[] data = generateImagePreview(avatarStorage.open(location.get()),
+                    AvatarStorage.extensionOf(location.get()));
+            transactionTemplate.executeWithoutResult(status -> {
+                PreviewJob job = previewJobRepository.findById(avatarId).orElse(null);
+                if (job == null || job.getStatus() != RUNNING) {
+                    // аватар заменили или удалили, пока строилось превью
+                    status.setRollbackOnly();
+                    return;
+                }
+                AvatarPreview preview = avatarPreviewRepository.findById(avatarId)
+                        .orElseGet(() -> new AvatarPreview(avatarId));
+                preview.setData(data);
+                avatarPreviewRepository.save(preview);
+                job.setStatus(DONE);
+                job.setLastError(null);
+                job.setUpdatedAt(Instant.now());
+            });
+        } catch (Exception e) {
+            logger.warn("Не удалось сгенерировать превью для аватара {}", avatarId, e);
+            transactionTemplate.executeWithoutResult(status ->
+                    previewJobRepository.findById(avatarId)
+                            .filter(job -> job.getStatus() == RUNNING)
+                            .ifPresent(job -> fail(job, e)));
+        }
+    }
+
+    /**
+     * Перекодирует аватар, который еще не перекодирован (originalSize пуст), и подменяет файл
+     * в записи условным UPDATE по старому пути. Возвращает адрес файла для превью или пустой
+     * результат, если аватар заменили за время перекодирования. Изображение, которое
+     * перекодировать не удалось или которое без уменьшения размеров не стало меньше, остается как есть.
+     */
+    private Optional<String> transcode(Long avatarId, String filePath) throws IOException {
+        if (!avatarTranscoder.isEnabled()) {
+            return Optional.of(filePath);
+        }
+        Avatar avatar = avatarRepository.findById(avatarId).orElse(null);
+        if (avatar == null || avatar.getOriginalSize() != null || !filePath.equals(avatar.getFilePath())) {
+            return Optional.of(filePath);
+        }
+        AvatarStorage.Region source = avatarStorage.open(filePath);
+        ImageDecoder.Header header = imageDecoder.readHeader(source);
+        Path input = source.isWholeFile() ? source.file() : avatarStorage.spool(source.newInputStream(), source.length());
+        try {
+            Optional<AvatarTranscoder.Transcoded> transcoded;
+            try {
+                transcoded = avatarTranscoder.transcode(input, header);
+            } catch (InvalidImageException e) {
+                logger.warn("Аватар {} не удалось перекодировать, сохраняется загруженный файл", avatarId, e);
+                transcoded = Optional.empty();
+            }
+            if (transcoded.isPresent() && !transcoded.get().downscaled()
+                    && Files.size(transcoded.get().file()) >= source.length()) {
+                logger.info("Перекодированный аватар {} не меньше загруженного, сохраняется загруженный файл", avatarId);
+                Files.deleteIfExists(transcoded.get().file());
+                transcoded = Optional.empty();
+            }
+            if (transcoded.isEmpty()) {
+                AvatarStorage.StoredFile kept = new AvatarStorage.StoredFile(avatar.getChecksum(), filePath, source.length());
+                return replaceFile(avatar, kept, avatar.getMediaType(), source.length()) ? Optional.of(filePath) : Optional.empty();
+            }
+            AvatarStorage.StoredFile stored = avatarStorage.store(transcoded.get().file(), transcoded.get().extension());
+            avatarTranscoder.keepOriginal(source, stored.checksum(), AvatarStorage.extensionOf(filePath));
+            if (!replaceFile(avatar, stored, transcoded.get().mediaType(), source.length())) {
+                return Optional.empty();
+            }
+            avatarTranscoder.recordSavings(avatar.getStudent().getId(), source.length(), stored.size());
+            return Optional.of(stored.location());
+        } finally {
+            if (!input.equals(source.file())) {
+                Files.deleteIfExists(input);
+            }
+        }
+    }
+
+    private boolean replaceFile(Avatar avatar, AvatarStorage.StoredFile stored, String mediaType, long originalSize) {
+        Boolean replaced = transactionTemplate.execute(status -> {
+            int updated = avatarRepository.replaceFile(avatar.getId(), avatar.getFilePath(), stored.location(),
+                    stored.checksum(), stored.size(), mediaType, originalSize);
+            if (updated == 0) {
+                return false;
+            }
+            publisher.publishEvent(new AvatarChangedEvent(avatar.getStudent().getId()));
+            return true;
+        });
+        return Boolean.TRUE.equals(replaced);
+    }
+
+    /**
+     * Задача без файла не выполнится никогда: если строки аватара уже нет, задача удаляется,
+     * иначе помечается неудачной, чтобы опрос не возвращал ее в очередь.
+     */
+    private void abandon(Long avatarId) {
+        transactionTemplate.executeWithoutResult(status ->
+                previewJobRepository.findById(avatarId)
+                        .filter(job -> job.getStatus() == RUNNING)
+                        .ifPresent(job -> {
+                            if (avatarRepository.existsById(avatarId)) {
+                                logger.warn("У аватара {} нет файла, превью не будет сгенерировано", avatarId);
+                                job.setStatus(FAILED);
+                                job.setLastError("У аватара нет файла");
+                                job.setUpdatedAt(Instant.now());
+                            } else {
+                                previewJobRepository.delete(job);
+                            }
+                        }));
+    }
+
+    private void fail(PreviewJob job, Exception e) {
+        Instant now = Instant.now();
+        job.setLastError(String.valueOf(e.getMessage()));
+        job.setUpdatedAt(now);
+        if (job.getAttempts() >= maxAttempts) {
+            job.setStatus(FAILED);
+        } else {
+            job.setStatus(PENDING);
+            job.setNextAttemptAt(now.plus(retryDelay.multipliedBy(1L << (job.getAttempts() - 1))));
+        }
+    }
+
+    /**
+     * Превью строится из растра, прореженного при декодировании, так что полный размер
+     * исходного изображения в памяти не появляется. Память берется из фоновой доли бюджета.
+     */
+    byte[] generateImagePreview(AvatarStorage.Region source, String extension) throws IOException {
+        BufferedImage preview = imageDecoder.scale(
+                imageDecoder.decode(source, PREVIEW_WIDTH, DecodeBudget.Priority.BACKGROUND), PREVIEW_WIDTH);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        if (!ImageIO.write(preview, extension, baos)) {
+            throw new IOException("Нет кодировщика для формата " + extension);
+        }
+        return baos.toByteArray();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,223 @@
+package ru.hogwarts.school.service;
+
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import ru.hogwarts.school.model.StudentState;
+import ru.hogwarts.school.model.listener.FacultyChangedEvent;
+import ru.hogwarts.school.model.listener.StudentChangedEvent;
+import ru.hogwarts.school.repository.FacultyRepository;
+import ru.hogwarts.school.repository.StudentRepository;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Счетчики по студентам и факультетам, которые обновляются по событиям сущностей после коммита
+ * и периодически сверяются с базой данных.
+ * <p>
+ * Событие учитывается как незавершенное с момента публикации до конца транзакции. Снимок сверки
+ * устанавливается, только если за время запросов не было ни примененных, ни незавершенных
+ * событий: иначе транзакция могла попасть в снимок и примениться к нему еще раз.
+ */
+@Component
+public class StatisticsRegistry {
+
+    private static final Logger logger = LoggerFactory.getLogger(StatisticsRegistry.class);
+    private static final int RECONCILE_ATTEMPTS = 3;
+
+    private final StudentRepository studentRepository;
+    private final FacultyRepository facultyRepository;
+
+    private long studentCount;
+    private long ageSum;
+    private long facultyCount;
+    private TreeMap<Integer, Long> studentsByAge = new TreeMap<>();
+    private Map<Long, Long> studentsByFaculty = new HashMap<>();
+    private long version;
+    private int pending;
+    private boolean reconciled;
+    private boolean stale;
+
+    public StatisticsRegistry(StudentRepository studentRepository, FacultyRepository facultyRepository) {
+        this.studentRepository = studentRepository;
+        this.facultyRepository = facultyRepository;
+    }
+
+    @PostConstruct
+    @Scheduled(initialDelayString = "${students.statistics.reconcile-interval:PT10M}",
+            fixedDelayString = "${students.statistics.reconcile-interval:PT10M}")
+    public void reconcile() {
+        for (int attempt = 1; attempt <= RECONCILE_ATTEMPTS; attempt++) {
+            long startVersion;
+            boolean quiet;
+            synchronized (this) {
+                startVersion = version;
+                quiet = pending == 0;
+            }
+
+            TreeMap<Integer, Long> byAge = new TreeMap<>();
+            long count = 0;
+            long sum = 0;
+            for (StudentRepository.AgeCount ageCount : studentRepository.countByAge()) {
+                byAge.put(ageCount.getAge(), ageCount.getTotal());
+                count += ageCount.getTotal();
+                sum += (long) ageCount.getAge() * ageCount.getTotal();
+            }
+            Map<Long, Long> byFaculty = new HashMap<>();
+            for (StudentRepository.FacultyCount facultyCount : studentRepository.countByFaculty()) {
+                byFaculty.put(facultyCount.getFacultyId(), facultyCount.getTotal());
+            }
+            long faculties = facultyRepository.count();
+
+            synchronized (this) {
+                boolean consistent = quiet && pending == 0 && version == startVersion;
+                // до первой сверки счетчиков нет совсем, поэтому первый снимок ставится в любом случае
+                if (consistent || !reconciled && attempt == RECONCILE_ATTEMPTS) {
+                    if (studentCount != count || facultyCount != faculties) {
+                        logger.warn("Счетчики расходились с базой данных: студентов {} вместо {}, факультетов {} вместо {}",
+                                studentCount, count, facultyCount, faculties);
+                    }
+                    studentCount = count;
+                    ageSum = sum;
+                    studentsByAge = byAge;
+                    studentsByFaculty = byFaculty;
+                    facultyCount = faculties;
+                    version++;
+                    reconciled = true;
+                    stale = false;
+                    return;
+                }
+            }
+            logger.debug("Данные изменились во время сверки счетчиков, повторная попытка");
+        }
+        logger.info("Сверка счетчиков отложена: данные менялись во время всех попыток");
+    }
+
+    /**
+     * Досверяет счетчики, если пришло обновление студента без прежнего состояния.
+     */
+    @Scheduled(fixedDelayString = "${students.statistics.stale-check-interval:PT5S}")
+    public void reconcileIfStale() {
+        if (isStale()) {
+            reconcile();
+        }
+    }
+
+    @EventListener
+    public void onStudentChanged(StudentChangedEvent event) {
+        afterCommit(() -> {
+            if (event.beforeUnknown()) {
+                logger.warn("Студент {} обновлен без прежнего состояния, счетчики будут сверены", event.after().id());
+                stale = true;
+                return;
+            }
+            if (event.before() != null) {
+                remove(event.before());
+            }
+            if (event.after() != null) {
+                add(event.after());
+            }
+        });
+    }
+
+    @EventListener
+    public void onFacultyChanged(FacultyChangedEvent event) {
+        afterCommit(() -> {
+            switch (event.type()) {
+                case CREATED -> facultyCount++;
+                case REMOVED -> {
+                    facultyCount = Math.max(0, facultyCount - 1);
+                    studentsByFaculty.remove(event.facultyId());
+                }
+                default -> {
+                }
+            }
+        });
+    }
+
+    /**
+     * Применяет изменение после коммита, а до конца транзакции считает его незавершенным.
+     * Вне транзакции изменение применяется сразу.
+     */
+    private void afterCommit(Runnable change) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            synchronized (this) {
+                change.run();
+                version++;
+            }
+            return;
+        }
+        synchronized (this) {
+            pending++;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCompletion(int status) {
+                synchronized (StatisticsRegistry.this) {
+                    pending--;
+                    if (status == STATUS_COMMITTED) {
+                        change.run();
+                    }
+                    version++;
+                }
+            }
+        });
+    }
+
+    private void add(StudentState state) {
+        studentCount++;
+        ageSum += state.age();
+        studentsByAge.merge(state.age(), 1L, Long::sum);
+        if (state.facultyId() != null) {
+            studentsByFaculty.merge(state.facultyId(), 1L, Long::sum);
+        }
+    }
+
+    private void remove(StudentState state) {
+        studentCount = Math.max(0, studentCount - 1);
+        ageSum -= state.age();
+        studentsByAge.computeIfPresent(state.age(), (age, total) -> total > 1 ? total - 1 : null);
+        if (state.facultyId() != null) {
+            studentsByFaculty.computeIfPresent(state.facultyId(), (id, total) -> total > 1 ? total - 1 : null);
+        }
+    }
+
+    private synchronized boolean isStale() {
+        return stale;
+    }
+
+    public synchronized long getStudentCount() {
+        return studentCount;
+    }
+
+    public synchronized long getFacultyCount() {
+        return facultyCount;
+    }
+
+    public synchronized double getAvgAge() {
+        return studentCount == 0 ? 0 : (double) ageSum / studentCount;
+    }
+
+    public synchronized Integer getMinAge() {
+        return studentsByAge.isEmpty() ? null : studentsByAge.firstKey();
+    }
+
+    public synchronized Integer getMaxAge() {
+        return studentsByAge.isEmpty() ? null : studentsByAge.lastKey();
+    }
+
+    public synchronized long getStudentCountOfAge(int age) {
+        return studentsByAge.getOrDefault(age, 0L);
+    }
+
+    public synchronized long getStudentCountOfFaculty(Long facultyId) {
+        return studentsByFaculty.getOrDefault(facultyId, 0L);
+    }
+}
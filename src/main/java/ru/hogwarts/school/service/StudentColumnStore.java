@@ -0,0 +1,352 @@
+package ru.hogwarts.school.service;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.event.TransactionalEventListener;
+import org.springframework.transaction.support.TransactionTemplate;
+import ru.hogwarts.school.model.StudentState;
+import ru.hogwarts.school.model.listener.StudentChangedEvent;
+import ru.hogwarts.school.repository.StudentRepository;
+
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+
+/**
+ * Колоночная модель чтения студентов: идентификаторы, возраст и имена хранятся
+ * в примитивных массивах, а не в сущностях. Загружается при старте, если включено свойство
+ * {@code students.read-model.enabled}, и обновляется по событиям изменения студентов.
+ */
+@Component
+public class StudentColumnStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(StudentColumnStore.class);
+
+    private final StudentRepository studentRepository;
+    private final TransactionTemplate transactionTemplate;
+    private final boolean enabled;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private Columns columns = new Columns(16);
+    private List<StudentChangedEvent> pending;
+    private volatile boolean ready;
+
+    public StudentColumnStore(StudentRepository studentRepository,
+                              PlatformTransactionManager transactionManager,
+                              MeterRegistry meterRegistry,
+                              @Value("${students.read-model.enabled:false}") boolean enabled) {
+        this.studentRepository = studentRepository;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.transactionTemplate.setReadOnly(true);
+        this.enabled = enabled;
+
+        Gauge.builder("students.read-model.size", this, StudentColumnStore::size)
+                .description("Количество студентов в колоночной модели")
+                .register(meterRegistry);
+        Gauge.builder("students.read-model.memory", this, StudentColumnStore::memoryBytes)
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        Gauge.builder("students.read-model.bytes-per-student", this, StudentColumnStore::bytesPerStudent)
+                .baseUnit("bytes")
+                .register(meterRegistry);
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void load() {
+        if (!enabled) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        lock.writeLock().lock();
+        try {
+            pending = new ArrayList<>();
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        Columns loaded = new Columns(Math.max(16, (int) studentRepository.count()));
+        transactionTemplate.executeWithoutResult(status -> {
+            try (Stream<StudentState> students = studentRepository.streamAllStudentStates()) {
+                students.forEach(loaded::upsert);
+            }
+        });
+
+        lock.writeLock().lock();
+        try {
+            pending.forEach(loaded::apply);
+            pending = null;
+            columns = loaded;
+            ready = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        logger.info("Колоночная модель студентов загружена за {} мс: {} студентов, {} байт на студента",
+                System.currentTimeMillis() - start, size(), Math.round(bytesPerStudent()));
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onStudentChanged(StudentChangedEvent event) {
+        if (!enabled) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            if (pending != null) {
+                pending.add(event);
+            }
+            columns.apply(event);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public long[] findIdsByAge(int age) {
+        lock.readLock().lock();
+        try {
+            return columns.idsByAge(age);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public List<String> findNamesStartingWith(String prefix) {
+        lock.readLock().lock();
+        try {
+            return columns.namesStartingWith(prefix);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return columns.liveSize();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public long memoryBytes() {
+        lock.readLock().lock();
+        try {
+            return columns.memoryBytes();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public double bytesPerStudent() {
+        lock.readLock().lock();
+        try {
+            int live = columns.liveSize();
+            return live == 0 ? 0 : (double) columns.memoryBytes() / live;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Сами колонки. Строки упорядочены по идентификатору, удаленные строки помечаются
+     * и вычищаются, когда их становится больше четверти. Имена дописываются в конец общего
+     * массива, поэтому после переименований и удалений в нем копятся мертвые символы,
+     * и он тоже уплотняется, когда мертвых символов больше половины.
+     */
+    private static final class Columns {
+        private long[] ids;
+        private int[] ages;
+        private int[] nameOffsets;
+        private int[] nameLengths;
+        private char[] names;
+        private int nameEnd;
+        private int deadNameChars;
+        private int size;
+        private int removed;
+        private final BitSet deleted = new BitSet();
+
+        private Columns(int capacity) {
+            ids = new long[capacity];
+            ages = new int[capacity];
+            nameOffsets = new int[capacity];
+            nameLengths = new int[capacity];
+            names = new char[capacity * 16];
+        }
+
+        private void apply(StudentChangedEvent event) {
+            if (event.after() != null) {
+                if (event.before() != null && !Objects.equals(event.before().id(), event.after().id())) {
+                    remove(event.before().id());
+                }
+                upsert(event.after());
+            } else if (event.before() != null) {
+                remove(event.before().id());
+            }
+        }
+
+        private void upsert(StudentState state) {
+            long id = state.id();
+            int row = size > 0 && ids[size - 1] < id ? -(size + 1) : Arrays.binarySearch(ids, 0, size, id);
+            if (row < 0) {
+                row = -(row + 1);
+                insertRow(row, id);
+            } else if (deleted.get(row)) {
+                deleted.clear(row);
+                removed--;
+                deadNameChars -= nameLengths[row];
+            }
+            ages[row] = state.age();
+            if (!nameEquals(row, state.name())) {
+                storeName(row, state.name());
+                compactIfNeeded();
+            }
+        }
+
+        private void remove(Long id) {
+            if (id == null) {
+                return;
+            }
+            int row = Arrays.binarySearch(ids, 0, size, id);
+            if (row >= 0 && !deleted.get(row)) {
+                deleted.set(row);
+                removed++;
+                deadNameChars += nameLengths[row];
+                compactIfNeeded();
+            }
+        }
+
+        private long[] idsByAge(int age) {
+            long[] result = new long[16];
+            int found = 0;
+            for (int row = 0; row < size; row++) {
+                if (ages[row] == age && !deleted.get(row)) {
+                    if (found == result.length) {
+                        result = Arrays.copyOf(result, found * 2);
+                    }
+                    result[found++] = ids[row];
+                }
+            }
+            return Arrays.copyOf(result, found);
+        }
+
+        private List<String> namesStartingWith(String prefix) {
+            List<String> result = new ArrayList<>();
+            char[] prefixChars = prefix.toCharArray();
+            int prefixLength = prefixChars.length;
+            for (int row = 0; row < size; row++) {
+                if (deleted.get(row) || nameLengths[row] < prefixLength) {
+                    continue;
+                }
+                if (Arrays.equals(names, nameOffsets[row], nameOffsets[row] + prefixLength,
+                        prefixChars, 0, prefixLength)) {
+                    result.add(new String(names, nameOffsets[row], nameLengths[row]));
+                }
+            }
+            return result;
+        }
+
+        private int liveSize() {
+            return size - removed;
+        }
+
+        private long memoryBytes() {
+            long rows = ids.length;
+            return rows * (Long.BYTES + 3L * Integer.BYTES)
+                    + (long) names.length * Character.BYTES
+                    + deleted.size() / Byte.SIZE;
+        }
+
+        private void insertRow(int row, long id) {
+            if (size == ids.length) {
+                int capacity = Math.max(16, size + (size >> 1));
+                ids = Arrays.copyOf(ids, capacity);
+                ages = Arrays.copyOf(ages, capacity);
+                nameOffsets = Arrays.copyOf(nameOffsets, capacity);
+                nameLengths = Arrays.copyOf(nameLengths, capacity);
+            }
+            if (row < size) {
+                System.arraycopy(ids, row, ids, row + 1, size - row);
+                System.arraycopy(ages, row, ages, row + 1, size - row);
+                System.arraycopy(nameOffsets, row, nameOffsets, row + 1, size - row);
+                System.arraycopy(nameLengths, row, nameLengths, row + 1, size - row);
+                for (int i = deleted.previousSetBit(size - 1); i >= row; i = deleted.previousSetBit(i - 1)) {
+                    deleted.clear(i);
+                    deleted.set(i + 1);
+                }
+            }
+            ids[row] = id;
+            nameLengths[row] = -1;
+            size++;
+        }
+
+        private boolean nameEquals(int row, String name) {
+            if (name == null || nameLengths[row] != name.length()) {
+                return name == null && nameLengths[row] == 0;
+            }
+            int offset = nameOffsets[row];
+            for (int i = 0; i < name.length(); i++) {
+                if (names[offset + i] != name.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void storeName(int row, String name) {
+            int length = name == null ? 0 : name.length();
+            if (nameEnd + length > names.length) {
+                names = Arrays.copyOf(names, Math.max(nameEnd + length, names.length + (names.length >> 1)));
+            }
+            if (length > 0) {
+                name.getChars(0, length, names, nameEnd);
+            }
+            if (nameLengths[row] > 0) {
+                deadNameChars += nameLengths[row];
+            }
+            nameOffsets[row] = nameEnd;
+            nameLengths[row] = length;
+            nameEnd += length;
+        }
+
+        private void compactIfNeeded() {
+            if (removed > 64 && removed > size / 4
+                    || deadNameChars > 1024 && deadNameChars > nameEnd / 2) {
+                compact();
+            }
+        }
+
+        private void compact() {
+            char[] compactNames = new char[Math.max(16, nameEnd)];
+            int compactNameEnd = 0;
+            int target = 0;
+            for (int row = 0; row < size; row++) {
+                if (deleted.get(row)) {
+                    continue;
+                }
+                System.arraycopy(names, nameOffsets[row], compactNames, compactNameEnd, nameLengths[row]);
+                ids[target] = ids[row];
+                ages[target] = ages[row];
+                nameOffsets[target] = compactNameEnd;
+                nameLengths[target] = nameLengths[row];
+                compactNameEnd += nameLengths[row];
+                target++;
+            }
+            names = compactNames;
+            nameEnd = compactNameEnd;
+            deadNameChars = 0;
+            size = target;
+            removed = 0;
+            deleted.clear();
+        }
+    }
+}
@@ -1,11 +1,21 @@
 package ru.hogwarts.school.service;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.persistence.EntityManager;
 import jakarta.transaction.Transactional;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Slice;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import ru.hogwarts.school.dto.KeysetPage;
+import ru.hogwarts.school.dto.PageCursor;
 import ru.hogwarts.school.dto.StudentDTO;
-import ru.hogwarts.school.dto.StudentDTOMapper;
 import ru.hogwarts.school.model.Faculty;
 import ru.hogwarts.school.model.Student;
 import ru.hogwarts.school.model.exception.EmptyStorageException;
@@ -15,9 +25,10 @@ import ru.hogwarts.school.repository.AvatarRepository;
 import ru.hogwarts.school.repository.FacultyRepository;
 import ru.hogwarts.school.repository.StudentRepository;
 
-import java.util.List;
-import java.util.Optional;
-import java.util.stream.Collectors;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.Duration;
+import java.util.*;
 
 import static java.lang.Thread.sleep;
 
@@ -26,50 +37,112 @@ import static java.lang.Thread.sleep;
 public class StudentService {
     private final AvatarRepository avatarRepository;
     private final StudentRepository studentRepository;
-    private final StudentDTOMapper studentDTOMapper;
     private final FacultyService facultyService;
     private final FacultyRepository facultyRepository;
+    private final StatisticsRegistry statisticsRegistry;
+    private final StudentColumnStore studentColumnStore;
+    private final ObjectMapper objectMapper;
+    private final EntityManager entityManager;
+    private final TransactionTemplate exportTemplate;
+    @Value("${students.batch.size:50}")
+    private int batchSize;
+    @Value("${students.export.batch-size:1000}")
+    private int exportBatchSize;
     private static final Logger logger = LoggerFactory.getLogger(StudentService.class);
 
-    public StudentService(AvatarRepository avatarRepository, StudentRepository studentRepository, StudentDTOMapper studentDTOMapper, FacultyService facultyService, FacultyRepository facultyRepository) {
+    public StudentService(AvatarRepository avatarRepository, StudentRepository studentRepository, FacultyService facultyService, FacultyRepository facultyRepository, StatisticsRegistry statisticsRegistry, StudentColumnStore studentColumnStore, ObjectMapper objectMapper, EntityManager entityManager,
+                          PlatformTransactionManager transactionManager,
+                          @Value("${students.export.statement-timeout:PT30S}") Duration exportStatementTimeout) {
         this.avatarRepository = avatarRepository;
         this.studentRepository = studentRepository;
-        this.studentDTOMapper = studentDTOMapper;
         this.facultyService = facultyService;
         this.facultyRepository = facultyRepository;
+        this.statisticsRegistry = statisticsRegistry;
+        this.studentColumnStore = studentColumnStore;
+        this.objectMapper = objectMapper;
+        this.entityManager = entityManager;
+        this.exportTemplate = new TransactionTemplate(transactionManager);
+        this.exportTemplate.setReadOnly(true);
+        this.exportTemplate.setTimeout((int) Math.max(1, exportStatementTimeout.toSeconds()));
     }
 
     public boolean storageIsEmpty() {
-        return studentRepository.findAll().isEmpty();
+        return statisticsRegistry.getStudentCount() == 0;
     }
 
     public boolean isStudentOldEnough(int age) {
         return age > 16;
     }
 
-    public boolean isStudentUnique(String name) {
-        return studentRepository.existsByName(name);
-    }
-
     public void addStudent(Student student) {
         logger.info("Добавление студента в базу данных");
 
-        if (isStudentUnique(student.getName())) {
+        if (!isStudentOldEnough(student.getAge())) {
+            logger.error("Возраст студента должен быть больше 16");
             throw new InvalidValueException();
         }
-        if (facultyService.getAllFaculties().isEmpty()) {
+        if (facultyService.storageIsEmpty()) {
             logger.error("Хранилище пустое");
             throw new EmptyStorageException();
         }
+        saveAndFlush(student);
+    }
 
-        if (!isStudentOldEnough(student.getAge())) {
-            logger.error("Возраст студента должен быть больше 16");
+    private Student saveAndFlush(Student student) {
+        try {
+            return studentRepository.saveAndFlush(student);
+        } catch (DataIntegrityViolationException e) {
+            logger.error("Студент с таким именем уже есть в хранилище или указан несуществующий факультет");
+            throw new InvalidValueException(e);
+        }
+    }
+
+    public List<Student> addStudents(List<Student> students) {
+        logger.info("Пакетное добавление студентов в базу данных");
+        if (students == null || students.isEmpty()) {
+            logger.error("Передан пустой список студентов");
             throw new InvalidValueException();
         }
-        Optional.of(studentRepository.save(student)).orElseThrow(() -> {
-            logger.error("Переданы некорректные данные, невозможно сохранить");
-            return new InvalidValueException();
-        });
+        if (facultyService.storageIsEmpty()) {
+            logger.error("Хранилище пустое");
+            throw new EmptyStorageException();
+        }
+
+        Set<String> names = new HashSet<>();
+        Set<Long> facultyIds = new HashSet<>();
+        for (Student student : students) {
+            if (student.getName() == null || !names.add(student.getName())) {
+                logger.error("В списке есть студенты без имени или с повторяющимися именами");
+                throw new InvalidValueException();
+            }
+            if (!isStudentOldEnough(student.getAge())) {
+                logger.error("Возраст студента должен быть больше 16");
+                throw new InvalidValueException();
+            }
+            if (student.getFaculty() != null) {
+                facultyIds.add(student.getFaculty().getId());
+            }
+        }
+        if (studentRepository.existsByNameIn(names)) {
+            logger.error("Студенты с такими именами уже есть в хранилище");
+            throw new InvalidValueException();
+        }
+        if (!facultyIds.stream().allMatch(facultyService::facultyExists)) {
+            logger.error("Указаны несуществующие факультеты");
+            throw new InvalidValueException();
+        }
+
+        try {
+            for (int from = 0; from < students.size(); from += batchSize) {
+                studentRepository.saveAll(students.subList(from, Math.min(from + batchSize, students.size())));
+                entityManager.flush();
+                entityManager.clear();
+            }
+        } catch (DataIntegrityViolationException e) {
+            logger.error("Студенты с такими именами уже есть в хранилище");
+            throw new InvalidValueException(e);
+        }
+        return students;
     }
 
     public StudentDTO getStudentByID(Long id) {
@@ -78,7 +151,7 @@ public class StudentService {
             logger.error("Хранилище пустое");
             throw new EmptyStorageException();
         }
-        return studentRepository.findById(id).map(studentDTOMapper)
+        return studentRepository.findStudentDTOById(id)
                 .orElseThrow(() -> {
                     logger.error("В хранилище нет студента с переданным идентификатором");
                     return new InvalidValueException();
@@ -95,9 +168,44 @@ public class StudentService {
             logger.error("Хранилище пустое");
             throw new EmptyStorageException();
         }
-        return studentRepository.findAll().stream()
-                .map(studentDTOMapper)
-                .collect(Collectors.toList());
+        return studentRepository.findAllStudentDTOs();
+    }
+
+    public KeysetPage<StudentDTO> getStudentsPage(String after, Integer size) {
+        logger.info("Метод постраничного получения студентов");
+        if (storageIsEmpty()) {
+            logger.error("Хранилище пустое");
+            throw new EmptyStorageException();
+        }
+        return PageCursor.page(
+                studentRepository.findStudentDTOsAfter(PageCursor.decode(after), PageCursor.pageable(size)),
+                StudentDTO::id);
+    }
+
+    /**
+     * Студенты читаются порциями по идентификатору, каждая порция в своей короткой транзакции
+     * только для чтения. Соединение с базой не держится, пока порция пишется медленному клиенту.
+     */
+    @Transactional(Transactional.TxType.NOT_SUPPORTED)
+    public void exportStudents(OutputStream os) throws IOException {
+        logger.info("Метод выгрузки всех студентов в формате NDJSON");
+        try (JsonGenerator generator = objectMapper.createGenerator(os)) {
+            generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            generator.setRootValueSeparator(null);
+            long afterId = 0;
+            Slice<StudentDTO> batch;
+            do {
+                long from = afterId;
+                batch = exportTemplate.execute(status ->
+                        studentRepository.findStudentDTOsAfter(from, PageRequest.of(0, exportBatchSize)));
+                for (StudentDTO student : batch) {
+                    generator.writeObject(student);
+                    generator.writeRaw('\n');
+                    afterId = student.id();
+                }
+                generator.flush();
+            } while (batch.hasNext());
+        }
     }
 
     public Student updateStudent(Student student) {
@@ -106,11 +214,7 @@ public class StudentService {
             logger.error("Хранилище пустое");
             throw new EmptyStorageException();
         }
-        return Optional.of(studentRepository.save(student)).orElseThrow(() -> {
-            logger.error("Переданы некорректные данные студента или студента, невозможно обновить данные или сохранить");
-            return new InvalidValueException();
-
-        });
+        return saveAndFlush(student);
     }
 
     @Transactional
@@ -138,6 +242,9 @@ public class StudentService {
             logger.warn("Переданный возраст меньше или равен минимальному возрасту ученика");
             throw new InvalidValueException();
         }
+        if (studentColumnStore.isReady()) {
+            return findAllByIds(studentColumnStore.findIdsByAge(age));
+        }
         return studentRepository.findAll().stream()
                 .filter(q -> q.getAge() == age)
                 .toList();
@@ -176,7 +283,7 @@ public class StudentService {
             logger.error("Хранилище пустое");
             throw new EmptyStorageException();
         }
-        return "Общее количество студентов в школе: " + studentRepository.countStudents();
+        return "Общее количество студентов в школе: " + statisticsRegistry.getStudentCount();
     }
 
     public String getAvgAge() {
@@ -185,7 +292,7 @@ public class StudentService {
             logger.error("Хранилище пустое");
             throw new EmptyStorageException();
         }
-        return "Средний возраст учеников школы: " + studentRepository.countAvgAge();
+        return "Средний возраст учеников школы: " + (float) statisticsRegistry.getAvgAge();
     }
 
     public String getAvgAgeV2() {
@@ -194,9 +301,7 @@ public class StudentService {
             logger.error("Хранилище пустое");
             throw new EmptyStorageException();
         }
-        return "Средний возраст студентов школы: " + studentRepository.findAll().stream()
-                .mapToInt(Student::getAge)
-                .average().getAsDouble();
+        return "Средний возраст студентов школы: " + statisticsRegistry.getAvgAge();
     }
 
 
@@ -206,9 +311,7 @@ public class StudentService {
             logger.error("Хранилище пустое");
             throw new EmptyStorageException();
         }
-        return studentRepository.getLastFiveStudents().stream()
-                .map(studentDTOMapper)
-                .collect(Collectors.toList());
+        return studentRepository.findLastStudentDTOs(PageRequest.of(0, 5));
     }
 
     public List<String> getNamesStartWithA() {
@@ -217,9 +320,14 @@ public class StudentService {
             logger.error("Хранилище пустое");
             throw new EmptyStorageException();
         }
-        List<String> sorted = studentRepository.findAll().stream()
-                .filter(student -> student.getName().startsWith("А"))
-                .map(s -> s.getName().toUpperCase())
+        List<String> names = studentColumnStore.isReady()
+                ? studentColumnStore.findNamesStartingWith("А")
+                : studentRepository.findAll().stream()
+                .map(Student::getName)
+                .filter(name -> name.startsWith("А"))
+                .toList();
+        List<String> sorted = names.stream()
+                .map(String::toUpperCase)
                 .toList();
         if (sorted.isEmpty()) {
             throw new NoMatchingResultsException();
@@ -227,6 +335,16 @@ public class StudentService {
         return sorted;
     }
 
+    private List<Student> findAllByIds(long[] ids) {
+        List<Student> students = new ArrayList<>(ids.length);
+        for (int from = 0; from < ids.length; from += batchSize) {
+            List<Long> chunk = Arrays.stream(ids, from, Math.min(from + batchSize, ids.length)).boxed().toList();
+            students.addAll(studentRepository.findAllById(chunk));
+        }
+        students.sort(Comparator.comparing(Student::getId));
+        return students;
+    }
+
     public void printNames() {
         List<String> names = studentRepository.findAll().stream()
                 .map(Student::getName).toList();
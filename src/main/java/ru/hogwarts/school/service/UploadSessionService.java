@@ -0,0 +1,267 @@
+package ru.hogwarts.school.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import ru.hogwarts.school.model.UploadSession;
+import ru.hogwarts.school.model.exception.FileTooLargeException;
+import ru.hogwarts.school.model.exception.InvalidImageException;
+import ru.hogwarts.school.model.exception.InvalidValueException;
+import ru.hogwarts.school.model.exception.UploadOffsetConflictException;
+import ru.hogwarts.school.repository.StudentRepository;
+import ru.hogwarts.school.repository.UploadSessionRepository;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Возобновляемые загрузки аватаров. Клиент создает сессию с размером файла, отправляет части
+ * с указанием смещения и в любой момент может узнать, сколько уже принято. Части пишутся
+ * позиционной записью в заранее выделенный временный файл, а после последней части файл
+ * проходит обычную загрузку {@link AvatarService}. Брошенные сессии удаляются по истечении срока.
+ */
+@Service
+public class UploadSessionService {
+
+    private static final Logger logger = LoggerFactory.getLogger(UploadSessionService.class);
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int CLEANUP_BATCH_SIZE = 100;
+    private static final String FILE_SUFFIX = ".part";
+
+    private final UploadSessionRepository uploadSessionRepository;
+    private final StudentRepository studentRepository;
+    private final AvatarService avatarService;
+    private final AvatarStorage avatarStorage;
+    private final TransactionTemplate transactionTemplate;
+    private final Duration ttl;
+    private final Map<String, ReentrantLock> locks = new ConcurrentHashMap<>();
+
+    public UploadSessionService(UploadSessionRepository uploadSessionRepository,
+                                StudentRepository studentRepository,
+                                AvatarService avatarService,
+                                AvatarStorage avatarStorage,
+                                PlatformTransactionManager transactionManager,
+                                @Value("${students.avatar.upload-sessions.ttl:PT24H}") Duration ttl) {
+        this.uploadSessionRepository = uploadSessionRepository;
+        this.studentRepository = studentRepository;
+        this.avatarService = avatarService;
+        this.avatarStorage = avatarStorage;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.ttl = ttl;
+    }
+
+    public UploadSession create(Long studentId, long totalSize) throws IOException {
+        logger.info("Метод создания сессии загрузки аватара");
+        if (totalSize <= 0 || !studentRepository.existsById(studentId)) {
+            logger.error("Передан некорректный размер файла или несуществующий студент");
+            throw new InvalidValueException();
+        }
+        if (totalSize > avatarService.getMaxSize()) {
+            throw new FileTooLargeException();
+        }
+        UploadSession session = new UploadSession(UUID.randomUUID().toString(), studentId, totalSize);
+        Path file = fileOf(session.getId());
+        Files.createDirectories(file.getParent());
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            raf.setLength(totalSize);
+        }
+        Instant now = Instant.now();
+        session.setCreatedAt(now);
+        session.setExpiresAt(now.plus(ttl));
+        return uploadSessionRepository.save(session);
+    }
+
+    public UploadSession get(String id) {
+        return uploadSessionRepository.findById(id).orElseThrow(() -> {
+            logger.error("Сессии загрузки с переданным идентификатором не найдено");
+            return new InvalidValueException();
+        });
+    }
+
+    /**
+     * Пишет часть файла с позиции {@code offset}, которая должна совпадать с уже принятым объемом.
+     * Если соединение оборвалось посреди части, принятым считается то, что успело записаться,
+     * и клиент продолжает с этого места. Часть, выходящая за размер файла, отклоняется целиком:
+     * принятый объем не меняется, а записанные байты перезапишет следующая часть. Длина части
+     * заранее не известна (при chunked-передаче Content-Length нет), поэтому предел проверяется
+     * по мере чтения.
+     */
+    public UploadSession append(String id, long offset, InputStream content) throws IOException {
+        ReentrantLock lock = lock(id);
+        try {
+            UploadSession session = get(id);
+            if (offset != session.getReceivedSize()) {
+                throw new UploadOffsetConflictException(session.getReceivedSize());
+            }
+            long position = offset;
+            IOException failure = null;
+            try (FileChannel channel = FileChannel.open(fileOf(id), WRITE)) {
+                ReadableByteChannel in = Channels.newChannel(content);
+                ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+                try {
+                    while (in.read(buffer) != -1) {
+                        buffer.flip();
+                        if (buffer.remaining() > session.getTotalSize() - position) {
+                            logger.error("Часть загрузки {} выходит за размер файла", id);
+                            throw new FileTooLargeException();
+                        }
+                        while (buffer.hasRemaining()) {
+                            position += channel.write(buffer, position);
+                        }
+                        buffer.clear();
+                    }
+                } catch (IOException e) {
+                    failure = e;
+                }
+                channel.force(false);
+            }
+
+            long received = position;
+            Integer advanced = transactionTemplate.execute(status ->
+                    uploadSessionRepository.advance(id, offset, received, Instant.now().plus(ttl)));
+            if (advanced == null || advanced == 0) {
+                throw new UploadOffsetConflictException(get(id).getReceivedSize());
+            }
+            if (failure != null) {
+                logger.warn("Часть загрузки {} оборвалась на {} байтах", id, received);
+                throw failure;
+            }
+            session.setReceivedSize(received);
+            return session;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Передает полностью принятый файл в обычную загрузку аватара и удаляет сессию. Если файл
+     * не прошел проверку, сессия тоже удаляется; при перегрузке остается, и завершение можно повторить.
+     */
+    public Long complete(String id) throws IOException {
+        logger.info("Метод завершения сессии загрузки аватара");
+        ReentrantLock lock = lock(id);
+        try {
+            UploadSession session = get(id);
+            if (session.getReceivedSize() != session.getTotalSize()) {
+                throw new UploadOffsetConflictException(session.getReceivedSize());
+            }
+            try (InputStream content = Files.newInputStream(fileOf(id))) {
+                avatarService.uploadAvatar(session.getStudentId(), content);
+            } catch (InvalidImageException | InvalidValueException | FileTooLargeException e) {
+                delete(id);
+                throw e;
+            }
+            delete(id);
+            return session.getStudentId();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void abort(String id) throws IOException {
+        logger.info("Метод отмены сессии загрузки аватара");
+        ReentrantLock lock = lock(id);
+        try {
+            get(id);
+            delete(id);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Удаляет сессии, в которые дольше срока жизни не приходили части, и временные файлы без сессии.
+     */
+    @Scheduled(initialDelayString = "${students.avatar.upload-sessions.cleanup-interval:PT10M}",
+            fixedDelayString = "${students.avatar.upload-sessions.cleanup-interval:PT10M}")
+    public void removeExpired() {
+        int removed = 0;
+        try {
+            List<String> expired;
+            do {
+                expired = uploadSessionRepository.findExpired(Instant.now(), PageRequest.of(0, CLEANUP_BATCH_SIZE));
+                for (String id : expired) {
+                    ReentrantLock lock = locks.computeIfAbsent(id, key -> new ReentrantLock());
+                    if (lock.tryLock()) {
+                        try {
+                            delete(id);
+                            removed++;
+                        } finally {
+                            lock.unlock();
+                        }
+                    }
+                }
+            } while (expired.size() == CLEANUP_BATCH_SIZE);
+            removed += removeOrphanFiles();
+        } catch (IOException | UncheckedIOException e) {
+            logger.warn("Очистка сессий загрузки прервана", e);
+        }
+        if (removed > 0) {
+            logger.info("Удалено просроченных сессий загрузки: {}", removed);
+        }
+    }
+
+    private int removeOrphanFiles() throws IOException {
+        Path dir = avatarStorage.sessionsDir();
+        if (!Files.isDirectory(dir)) {
+            return 0;
+        }
+        Instant threshold = Instant.now().minus(ttl);
+        int removed = 0;
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(FILE_SUFFIX)
+                        && Files.getLastModifiedTime(file).toInstant().isBefore(threshold)
+                        && !uploadSessionRepository.existsById(name.substring(0, name.length() - FILE_SUFFIX.length()))
+                        && Files.deleteIfExists(file)) {
+                    removed++;
+                }
+            }
+        }
+        return removed;
+    }
+
+    private ReentrantLock lock(String id) {
+        get(id);
+        ReentrantLock lock = locks.computeIfAbsent(id, key -> new ReentrantLock());
+        if (!lock.tryLock()) {
+            // одновременно с другой частью той же сессии
+            throw new UploadOffsetConflictException(get(id).getReceivedSize());
+        }
+        return lock;
+    }
+
+    private void delete(String id) throws IOException {
+        transactionTemplate.executeWithoutResult(status -> uploadSessionRepository.deleteById(id));
+        Files.deleteIfExists(fileOf(id));
+        locks.remove(id);
+    }
+
+    private Path fileOf(String id) {
+        return avatarStorage.sessionsDir().resolve(id + FILE_SUFFIX);
+    }
+}
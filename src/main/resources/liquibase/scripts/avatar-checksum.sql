@@ -0,0 +1,7 @@
+-- liquibase formatted sql
+
+-- changeset sbakhareva:9
+ALTER TABLE avatar ADD COLUMN checksum VARCHAR(64);
+
+-- changeset sbakhareva:10
+CREATE INDEX avatar_checksum_index ON avatar (checksum);
@@ -0,0 +1,15 @@
+-- liquibase formatted sql
+
+-- changeset sbakhareva:15
+CREATE TABLE avatar_pack_entry (
+    checksum VARCHAR(64) PRIMARY KEY,
+    segment INTEGER NOT NULL,
+    position BIGINT NOT NULL,
+    length BIGINT NOT NULL,
+    updated_at TIMESTAMP WITH TIME ZONE
+);
+CREATE INDEX avatar_pack_entry_segment_index ON avatar_pack_entry (segment);
+
+-- changeset sbakhareva:16
+ALTER TABLE avatar_pack_entry ADD COLUMN created_at TIMESTAMP WITH TIME ZONE;
+UPDATE avatar_pack_entry SET created_at = updated_at;
@@ -0,0 +1,11 @@
+-- liquibase formatted sql
+
+-- changeset sbakhareva:8
+CREATE TABLE avatar_preview (
+    avatar_id BIGINT PRIMARY KEY REFERENCES avatar (id) ON DELETE CASCADE,
+    data BYTEA NOT NULL
+);
+INSERT INTO avatar_preview (avatar_id, data)
+SELECT id, lo_get(preview) FROM avatar WHERE preview IS NOT NULL;
+SELECT lo_unlink(preview) FROM avatar WHERE preview IS NOT NULL;
+ALTER TABLE avatar DROP COLUMN preview;
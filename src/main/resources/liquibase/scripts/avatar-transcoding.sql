@@ -0,0 +1,4 @@
+-- liquibase formatted sql
+
+-- changeset sbakhareva:14
+ALTER TABLE avatar ADD COLUMN original_size BIGINT;
@@ -0,0 +1,8 @@
+-- liquibase formatted sql
+
+-- changeset sbakhareva:12
+CREATE TABLE maintenance_checkpoint (
+    name VARCHAR(64) PRIMARY KEY,
+    position VARCHAR(255),
+    updated_at TIMESTAMP WITH TIME ZONE
+);
@@ -0,0 +1,19 @@
+-- liquibase formatted sql
+
+-- changeset sbakhareva:3
+CREATE SEQUENCE IF NOT EXISTS students_seq INCREMENT BY 50;
+SELECT setval('students_seq', (SELECT COALESCE(MAX(id), 0) FROM students) + 50);
+ALTER TABLE students ALTER COLUMN id DROP IDENTITY IF EXISTS;
+ALTER TABLE students ALTER COLUMN id DROP DEFAULT;
+
+-- changeset sbakhareva:4
+CREATE SEQUENCE IF NOT EXISTS faculties_seq INCREMENT BY 50;
+SELECT setval('faculties_seq', (SELECT COALESCE(MAX(id), 0) FROM faculties) + 50);
+ALTER TABLE faculties ALTER COLUMN id DROP IDENTITY IF EXISTS;
+ALTER TABLE faculties ALTER COLUMN id DROP DEFAULT;
+
+-- changeset sbakhareva:5
+CREATE SEQUENCE IF NOT EXISTS avatar_seq INCREMENT BY 50;
+SELECT setval('avatar_seq', (SELECT COALESCE(MAX(id), 0) FROM avatar) + 50);
+ALTER TABLE avatar ALTER COLUMN id DROP IDENTITY IF EXISTS;
+ALTER TABLE avatar ALTER COLUMN id DROP DEFAULT;
@@ -0,0 +1,16 @@
+-- liquibase formatted sql
+
+-- changeset sbakhareva:11
+CREATE TABLE preview_job (
+    avatar_id BIGINT PRIMARY KEY REFERENCES avatar (id) ON DELETE CASCADE,
+    status VARCHAR(16) NOT NULL,
+    attempts INTEGER NOT NULL DEFAULT 0,
+    last_error VARCHAR(1000),
+    next_attempt_at TIMESTAMP WITH TIME ZONE,
+    updated_at TIMESTAMP WITH TIME ZONE
+);
+CREATE INDEX preview_job_due_index ON preview_job (status, next_attempt_at);
+INSERT INTO preview_job (avatar_id, status, attempts, updated_at)
+SELECT avatar_id, 'DONE', 1, now() FROM avatar_preview;
+INSERT INTO preview_job (avatar_id, status, attempts, next_attempt_at, updated_at)
+SELECT id, 'PENDING', 0, now(), now() FROM avatar WHERE id NOT IN (SELECT avatar_id FROM avatar_preview);
@@ -0,0 +1,12 @@
+-- liquibase formatted sql
+
+-- changeset sbakhareva:6
+-- preconditions onFail:MARK_RAN
+-- precondition-sql-check expectedResult:0 SELECT count(*) FROM pg_constraint WHERE conrelid = 'students'::regclass AND contype = 'u' AND conname IN ('name_unique', 'students_name_unique')
+ALTER TABLE students ADD CONSTRAINT students_name_unique UNIQUE (name);
+DROP INDEX IF EXISTS student_name_index;
+
+-- changeset sbakhareva:7
+-- preconditions onFail:MARK_RAN
+-- precondition-sql-check expectedResult:0 SELECT count(*) FROM pg_constraint WHERE conrelid = 'students'::regclass AND contype = 'f'
+ALTER TABLE students ADD CONSTRAINT students_faculty_fk FOREIGN KEY (faculty_id) REFERENCES faculties (id) ON DELETE CASCADE;
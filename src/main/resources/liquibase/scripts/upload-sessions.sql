@@ -0,0 +1,12 @@
+-- liquibase formatted sql
+
+-- changeset sbakhareva:13
+CREATE TABLE upload_session (
+    id VARCHAR(36) PRIMARY KEY,
+    student_id BIGINT NOT NULL REFERENCES students (id) ON DELETE CASCADE,
+    total_size BIGINT NOT NULL,
+    received_size BIGINT NOT NULL DEFAULT 0,
+    created_at TIMESTAMP WITH TIME ZONE,
+    expires_at TIMESTAMP WITH TIME ZONE
+);
+CREATE INDEX upload_session_expires_index ON upload_session (expires_at);
@@ -12,17 +12,25 @@ import org.springframework.test.context.ActiveProfiles;
 import org.springframework.util.LinkedMultiValueMap;
 import org.springframework.util.MultiValueMap;
 import ru.hogwarts.school.model.Avatar;
+import ru.hogwarts.school.model.AvatarPreview;
 import ru.hogwarts.school.model.Faculty;
 import ru.hogwarts.school.model.Student;
+import ru.hogwarts.school.repository.AvatarPreviewRepository;
 import ru.hogwarts.school.repository.AvatarRepository;
 import ru.hogwarts.school.repository.FacultyRepository;
 import ru.hogwarts.school.service.AvatarService;
 import ru.hogwarts.school.service.StudentService;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -36,6 +44,8 @@ public class AvatarControllerTest {
     @Autowired
     private AvatarRepository avatarRepository;
     @Autowired
+    private AvatarPreviewRepository avatarPreviewRepository;
+    @Autowired
     private AvatarService avatarService;
     @Autowired
     private StudentService studentService;
@@ -71,7 +81,7 @@ public class AvatarControllerTest {
                 requestEntity,
                 String.class
         );
-        Assertions.assertThat(response.getStatusCode()).isEqualTo(HttpStatus.OK);
+        Assertions.assertThat(response.getStatusCode()).isEqualTo(HttpStatus.ACCEPTED);
         assertTrue(response.getBody().contains("добавлен аватар"));
     }
 
@@ -93,13 +103,14 @@ public class AvatarControllerTest {
         studentAvatar.setFilePath("/1.jpg");
         studentAvatar.setFileSize(studentAvatar.getFileSize());
         studentAvatar.setMediaType("image/jpg");
-        studentAvatar.setPreview(bytes);
 
-        avatarRepository.save(studentAvatar);
+        AvatarPreview preview = new AvatarPreview(avatarRepository.save(studentAvatar).getId());
+        preview.setData(bytes);
+        avatarPreviewRepository.save(preview);
 
         HttpHeaders headers = new HttpHeaders();
         headers.setContentType(MediaType.parseMediaType(studentAvatar.getMediaType()));
-        headers.setContentLength(studentAvatar.getPreview().length);
+        headers.setContentLength(preview.getData().length);
 
         ResponseEntity<byte[]> response = testRestTemplate.getForEntity(
                 "http://localhost:" + port + "/school/avatar/" + s.getId() + "/avatar/download-preview",
@@ -127,7 +138,6 @@ public class AvatarControllerTest {
         studentAvatar.setFilePath(avatarFile.getAbsolutePath());
         studentAvatar.setFileSize(avatarFile.length());
         studentAvatar.setMediaType("image/jpg");
-        studentAvatar.setPreview(bytes);
 
         avatarRepository.save(studentAvatar);
 
@@ -140,4 +150,178 @@ public class AvatarControllerTest {
         assertEquals("image/jpg", response.getHeaders().getContentType().toString());
         assertEquals(bytes.length, response.getHeaders().getContentLength());
     }
+
+    @Test
+    void downloadAvatarWhoseIdDiffersFromStudentId() throws IOException {
+        Faculty f = facultyRepository.save(new Faculty("Когтевран " + System.nanoTime(), "синий"));
+        for (int i = 0; i < 3; i++) {
+            Student filler = new Student();
+            filler.setName("Филч " + i + " " + System.nanoTime());
+            filler.setAge(40);
+            studentService.addStudent(filler);
+        }
+        Student s = new Student();
+        s.setName("Полумна " + System.nanoTime());
+        s.setAge(17);
+        s.setFaculty(f);
+        studentService.addStudent(s);
+
+        Path avatarFile = Path.of("src/test/resources/test.jpg").toAbsolutePath();
+        byte[] bytes = Files.readAllBytes(avatarFile);
+        Avatar studentAvatar = new Avatar();
+        studentAvatar.setStudent(s);
+        studentAvatar.setFilePath(avatarFile.toString());
+        studentAvatar.setFileSize(bytes.length);
+        studentAvatar.setMediaType("image/jpeg");
+        studentAvatar = avatarRepository.save(studentAvatar);
+
+        Assertions.assertThat(studentAvatar.getId()).isNotEqualTo(s.getId());
+        Assertions.assertThat(avatarRepository.existsById(s.getId())).isFalse();
+
+        ResponseEntity<byte[]> response = testRestTemplate.getForEntity(
+                "/school/avatar/" + s.getId() + "/download-avatar",
+                byte[].class
+        );
+        Assertions.assertThat(response.getStatusCode()).isEqualTo(HttpStatus.OK);
+        Assertions.assertThat(response.getBody()).isEqualTo(bytes);
+        Assertions.assertThat(response.getHeaders().getETag()).isNotBlank();
+    }
+
+    @Test
+    void downloadAvatarOfStudentWithoutAvatarIsBadRequest() {
+        Student s = new Student();
+        s.setName("Почти Безголовый Ник " + System.nanoTime());
+        s.setAge(17);
+        studentService.addStudent(s);
+
+        ResponseEntity<String> download = testRestTemplate.getForEntity(
+                "/school/avatar/" + s.getId() + "/download-avatar", String.class);
+        ResponseEntity<String> image = testRestTemplate.getForEntity(
+                "/school/avatar/" + s.getId() + "/image?w=100", String.class);
+
+        Assertions.assertThat(download.getStatusCode()).isEqualTo(HttpStatus.BAD_REQUEST);
+        Assertions.assertThat(image.getStatusCode()).isEqualTo(HttpStatus.BAD_REQUEST);
+    }
+
+    @Test
+    void downloadAvatarWithMissingFileIsNotFound() {
+        Faculty f = facultyRepository.save(new Faculty("Когтевран " + System.nanoTime(), "синий"));
+        Path missing = Path.of("src/test/resources/missing-" + System.nanoTime() + ".jpg").toAbsolutePath();
+        Student s = studentWithAvatar("Миртл " + System.nanoTime(), f, missing, 100);
+
+        ResponseEntity<String> response = testRestTemplate.getForEntity(
+                "/school/avatar/" + s.getId() + "/download-avatar", String.class);
+
+        Assertions.assertThat(response.getStatusCode()).isEqualTo(HttpStatus.NOT_FOUND);
+    }
+
+    @Test
+    void rangeIsServedFromFileAndFromHotCache() throws IOException {
+        Faculty f = facultyRepository.save(new Faculty("Пуффендуй " + System.nanoTime(), "желтый"));
+        Student s = new Student();
+        s.setName("Седрик " + System.nanoTime());
+        s.setAge(17);
+        s.setFaculty(f);
+        studentService.addStudent(s);
+
+        Path avatarFile = Path.of("src/test/resources/test.jpg").toAbsolutePath();
+        byte[] bytes = Files.readAllBytes(avatarFile);
+        Avatar studentAvatar = new Avatar();
+        studentAvatar.setStudent(s);
+        studentAvatar.setFilePath(avatarFile.toString());
+        studentAvatar.setFileSize(bytes.length);
+        studentAvatar.setMediaType("image/jpeg");
+        avatarRepository.save(studentAvatar);
+
+        HttpHeaders headers = new HttpHeaders();
+        headers.set(HttpHeaders.RANGE, "bytes=10-19");
+        // первый запрос идет из файла, после второго аватар попадает в кэш
+        for (int i = 0; i < 3; i++) {
+            ResponseEntity<byte[]> response = testRestTemplate.exchange(
+                    "/school/avatar/" + s.getId() + "/download-avatar",
+                    HttpMethod.GET,
+                    new HttpEntity<>(headers),
+                    byte[].class
+            );
+            Assertions.assertThat(response.getStatusCode()).isEqualTo(HttpStatus.PARTIAL_CONTENT);
+            Assertions.assertThat(response.getBody()).isEqualTo(Arrays.copyOfRange(bytes, 10, 20));
+            Assertions.assertThat(response.getHeaders().getFirst(HttpHeaders.CONTENT_RANGE))
+                    .isEqualTo("bytes 10-19/" + bytes.length);
+        }
+    }
+
+    @Test
+    void imageVariantAnswersConditionalGet() {
+        Faculty f = facultyRepository.save(new Faculty("Гриффиндор " + System.nanoTime(), "красный"));
+        Path avatarFile = Path.of("src/test/resources/test.jpg").toAbsolutePath();
+        Student s = studentWithAvatar("Невилл " + System.nanoTime(), f, avatarFile, avatarFile.toFile().length());
+
+        // у записи еще нет checksum, первый запрос досчитывает его по файлу
+        ResponseEntity<byte[]> first = testRestTemplate.getForEntity(
+                "/school/avatar/" + s.getId() + "/image?w=100", byte[].class);
+        Assertions.assertThat(first.getStatusCode()).isEqualTo(HttpStatus.OK);
+        String eTag = first.getHeaders().getETag();
+        Assertions.assertThat(eTag).endsWith("-100\"");
+        Assertions.assertThat(avatarRepository.findByStudentId(s.getId()).orElseThrow().getChecksum()).isNotNull();
+
+        HttpHeaders headers = new HttpHeaders();
+        headers.setIfNoneMatch(eTag);
+        ResponseEntity<byte[]> second = testRestTemplate.exchange(
+                "/school/avatar/" + s.getId() + "/image?w=100",
+                HttpMethod.GET,
+                new HttpEntity<>(headers),
+                byte[].class
+        );
+        Assertions.assertThat(second.getStatusCode()).isEqualTo(HttpStatus.NOT_MODIFIED);
+        Assertions.assertThat(second.getBody()).isNull();
+        Assertions.assertThat(second.getHeaders().getETag()).isEqualTo(eTag);
+    }
+
+    @Test
+    void exportSkipsDuplicateStudentIdsAndKeepsContent() throws IOException {
+        Faculty f = facultyRepository.save(new Faculty("Слизерин " + System.nanoTime(), "зеленый"));
+        Path avatarFile = Path.of("src/test/resources/test.jpg").toAbsolutePath();
+        byte[] bytes = Files.readAllBytes(avatarFile);
+        Student first = studentWithAvatar("Драко " + System.nanoTime(), f, avatarFile, bytes.length);
+        Student second = studentWithAvatar("Панси " + System.nanoTime(), f, avatarFile, bytes.length);
+
+        ResponseEntity<byte[]> response = testRestTemplate.getForEntity(
+                "/school/avatar/export.zip?student-id={a}&student-id={b}&student-id={c}",
+                byte[].class, first.getId(), second.getId(), first.getId());
+
+        Assertions.assertThat(response.getStatusCode()).isEqualTo(HttpStatus.OK);
+        List<String> names = new ArrayList<>();
+        try (ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(response.getBody()))) {
+            for (ZipEntry entry = zip.getNextEntry(); entry != null; entry = zip.getNextEntry()) {
+                names.add(entry.getName());
+                Assertions.assertThat(zip.readAllBytes()).isEqualTo(bytes);
+            }
+        }
+        Assertions.assertThat(names).containsExactly(first.getId() + ".jpg", second.getId() + ".jpg");
+    }
+
+    @Test
+    void exportByFacultyAndStudentsIsBadRequest() {
+        Faculty f = facultyRepository.save(new Faculty("Гриффиндор " + System.nanoTime(), "красный"));
+
+        ResponseEntity<String> response = testRestTemplate.getForEntity(
+                "/school/avatar/export.zip?faculty-id={f}&student-id=1", String.class, f.getId());
+
+        Assertions.assertThat(response.getStatusCode()).isEqualTo(HttpStatus.BAD_REQUEST);
+    }
+
+    private Student studentWithAvatar(String name, Faculty faculty, Path file, long size) {
+        Student s = new Student();
+        s.setName(name);
+        s.setAge(17);
+        s.setFaculty(faculty);
+        studentService.addStudent(s);
+        Avatar avatar = new Avatar();
+        avatar.setStudent(s);
+        avatar.setFilePath(file.toString());
+        avatar.setFileSize(size);
+        avatar.setMediaType("image/jpeg");
+        avatarRepository.save(avatar);
+        return s;
+    }
 }
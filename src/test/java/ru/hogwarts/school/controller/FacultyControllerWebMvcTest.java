@@ -8,6 +8,7 @@ import org.springframework.http.MediaType;
 import org.springframework.test.context.bean.override.mockito.MockitoBean;
 import org.springframework.test.web.servlet.MockMvc;
 import org.springframework.test.web.servlet.request.MockMvcRequestBuilders;
+import ru.hogwarts.school.dto.FacultyDTO;
 import ru.hogwarts.school.model.Faculty;
 import ru.hogwarts.school.model.Student;
 import ru.hogwarts.school.repository.FacultyRepository;
@@ -64,7 +65,7 @@ class FacultyControllerWebMvcTest {
         f.setColor("green");
 
         when(facultyRepository.findById(anyLong())).thenReturn(Optional.of(f));
-        when(facultyService.getFacultyByID(anyLong())).thenReturn(f);
+        when(facultyService.getFacultyByID(anyLong())).thenReturn(FacultyDTO.of(f));
 
         mockMvc.perform(get("/school/faculty/get?id=" + anyLong()))
                 .andExpect(status().isOk())
@@ -116,7 +117,7 @@ class FacultyControllerWebMvcTest {
         String requestedColor = "red";
 
         when(facultyRepository.findAll()).thenReturn(List.of(f));
-        when(facultyService.sortByColor(requestedColor)).thenReturn(List.of(f));
+        when(facultyService.sortByColor(requestedColor)).thenReturn(List.of(FacultyDTO.of(f)));
 
         mockMvc.perform(get("/school/faculty/sort?color=" + requestedColor))
                 .andExpect(status().isOk())
@@ -129,8 +130,7 @@ class FacultyControllerWebMvcTest {
     void findByNameOrColorTest() throws Exception {
         Faculty f = new Faculty("faculty", "blue");
 
-        when(facultyRepository.findByNameIgnoreCaseOrColorIgnoreCaseContains(anyString(), anyString())).thenReturn(List.of(f));
-        when(facultyService.findByNameOrColor(anyString(), anyString())).thenReturn(List.of(f));
+        when(facultyService.findByNameOrColor(anyString(), anyString())).thenReturn(List.of(FacultyDTO.of(f)));
 
         mockMvc.perform(get("/school/faculty/find-by?name=a&color=b"))
                 .andExpect(status().isOk())
@@ -144,7 +144,6 @@ class FacultyControllerWebMvcTest {
         Faculty f = new Faculty("faculty", "color");
         Student s = new Student("Student", 13, f);
 
-        when(facultyRepository.findByNameIgnoreCaseContains(anyString())).thenReturn(Optional.of(f));
         when(facultyService.getAllStudentsOfFaculty(anyString())).thenReturn(List.of(s));
 
         mockMvc.perform(get("/school/faculty/get-all-students?name=a"))
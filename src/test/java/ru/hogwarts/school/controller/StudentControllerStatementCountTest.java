@@ -0,0 +1,88 @@
+package ru.hogwarts.school.controller;
+
+import jakarta.persistence.EntityManagerFactory;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.context.ActiveProfiles;
+import ru.hogwarts.school.model.Faculty;
+import ru.hogwarts.school.model.Student;
+import ru.hogwarts.school.repository.FacultyRepository;
+import ru.hogwarts.school.repository.StudentRepository;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT,
+        properties = {
+                "spring.jpa.properties.hibernate.generate_statistics=true",
+                "logging.level.org.hibernate.engine.internal.StatisticalLoggingSessionEventListener=warn"
+        })
+@ActiveProfiles("test")
+class StudentControllerStatementCountTest {
+    @Autowired
+    private TestRestTemplate testRestTemplate;
+    @Autowired
+    private FacultyRepository facultyRepository;
+    @Autowired
+    private StudentRepository studentRepository;
+    @Autowired
+    private EntityManagerFactory entityManagerFactory;
+
+    private Statistics statistics;
+    private Student student;
+
+    @BeforeEach
+    void setUp() {
+        Faculty f1 = facultyRepository.save(new Faculty("Пуффендуй", "желтый"));
+        Faculty f2 = facultyRepository.save(new Faculty("Когтевран", "синий"));
+        for (Faculty f : new Faculty[]{f1, f2}) {
+            for (int i = 0; i < 3; i++) {
+                Student s = new Student();
+                s.setName(f.getName() + " " + f.getId() + " " + i);
+                s.setAge(17 + i);
+                s.setFaculty(f);
+                student = studentRepository.save(s);
+            }
+        }
+        statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+        statistics.clear();
+    }
+
+    @Test
+    void getStudentByIdUsesOneStatement() {
+        ResponseEntity<String> response = testRestTemplate.getForEntity(
+                "/school/student/get?id=" + student.getId(), String.class);
+
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.OK);
+        assertThat(response.getBody()).contains(student.getName()).contains("Когтевран");
+        assertThat(statistics.getPrepareStatementCount()).isEqualTo(1);
+        assertThat(statistics.getEntityLoadCount()).isZero();
+    }
+
+    @Test
+    void getAllStudentsUsesOneStatement() {
+        ResponseEntity<String> response = testRestTemplate.getForEntity("/school/student/get-all", String.class);
+
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.OK);
+        assertThat(response.getBody()).contains("Пуффендуй").contains("Когтевран");
+        assertThat(statistics.getPrepareStatementCount()).isEqualTo(1);
+        assertThat(statistics.getEntityLoadCount()).isZero();
+    }
+
+    @Test
+    void getLastFiveStudentsUsesOneStatement() {
+        ResponseEntity<String> response = testRestTemplate.getForEntity(
+                "/school/student/get-last-five-students", String.class);
+
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.OK);
+        assertThat(response.getBody()).contains(student.getName());
+        assertThat(statistics.getPrepareStatementCount()).isEqualTo(1);
+        assertThat(statistics.getEntityLoadCount()).isZero();
+    }
+}
@@ -1,5 +1,6 @@
 package ru.hogwarts.school.controller;
 
+import org.json.JSONArray;
 import org.json.JSONObject;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -10,7 +11,6 @@ import org.springframework.test.web.servlet.MockMvc;
 import org.springframework.test.web.servlet.request.MockMvcRequestBuilders;
 import org.springframework.test.web.servlet.result.MockMvcResultMatchers;
 import ru.hogwarts.school.dto.StudentDTO;
-import ru.hogwarts.school.dto.StudentDTOMapper;
 import ru.hogwarts.school.model.Faculty;
 import ru.hogwarts.school.model.Student;
 import ru.hogwarts.school.repository.AvatarRepository;
@@ -36,8 +36,6 @@ class StudentControllerWebMvcTest {
     @MockitoBean
     private StudentRepository studentRepository;
     @MockitoBean
-    private StudentDTOMapper studentDTOMapper;
-    @MockitoBean
     private StudentService studentService;
 
     @Test
@@ -63,6 +61,34 @@ class StudentControllerWebMvcTest {
                 .andExpect(MockMvcResultMatchers.jsonPath("$.age").value(s.getAge()));
     }
 
+    @Test
+    void addStudentsBatchTest() throws Exception {
+        Faculty f = new Faculty("faculty", "yellow");
+        f.setId(1L);
+        Student s1 = new Student("Student 1", 17, f);
+        s1.setId(1L);
+        Student s2 = new Student("Student 2", 18, f);
+        s2.setId(2L);
+
+        JSONArray studentsJson = new JSONArray();
+        studentsJson.put(new JSONObject().put("name", s1.getName()).put("age", s1.getAge())
+                .put("faculty", new JSONObject().put("id", f.getId())));
+        studentsJson.put(new JSONObject().put("name", s2.getName()).put("age", s2.getAge())
+                .put("faculty", new JSONObject().put("id", f.getId())));
+
+        when(studentService.addStudents(anyList())).thenReturn(List.of(s1, s2));
+
+        mockMvc.perform(MockMvcRequestBuilders
+                        .post("/school/student/add-batch")
+                        .content(studentsJson.toString())
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .accept(MediaType.APPLICATION_JSON))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$[0].id").value(s1.getId()))
+                .andExpect(jsonPath("$[1].id").value(s2.getId()))
+                .andExpect(jsonPath("$[1].name").value(s2.getName()));
+    }
+
     @Test
     void getStudentByIdTest() throws Exception {
         Faculty f = new Faculty("faculty", "yellow");
@@ -84,9 +110,7 @@ class StudentControllerWebMvcTest {
         Faculty f = new Faculty("faculty", "yellow");
         Student s = new Student("Student", 17, f);
 
-        when(studentDTOMapper.apply(any(Student.class)))
-                .thenReturn(new StudentDTO(s.getId(), s.getName(), s.getAge(), s.getFaculty().getName()));
-        StudentDTO sDto = studentDTOMapper.apply(s);
+        StudentDTO sDto = new StudentDTO(s.getId(), s.getName(), s.getAge(), f.getName());
 
         when(studentRepository.findAll()).thenReturn(List.of(s));
         when(studentService.getAllStudents()).thenReturn(List.of(sDto));
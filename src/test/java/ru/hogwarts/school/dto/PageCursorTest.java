@@ -0,0 +1,66 @@
+package ru.hogwarts.school.dto;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.SliceImpl;
+import ru.hogwarts.school.model.exception.InvalidValueException;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class PageCursorTest {
+
+    @Test
+    void decodeReturnsEncodedId() {
+        assertThat(PageCursor.decode(PageCursor.encode(0))).isZero();
+        assertThat(PageCursor.decode(PageCursor.encode(Long.MAX_VALUE))).isEqualTo(Long.MAX_VALUE);
+        assertThat(PageCursor.encode(42)).doesNotContain("=", "+", "/");
+    }
+
+    @Test
+    void missingCursorStartsFromBeginning() {
+        assertThat(PageCursor.decode(null)).isZero();
+        assertThat(PageCursor.decode(" ")).isZero();
+    }
+
+    @Test
+    void malformedCursorIsRejected() {
+        String foreign = Base64.getUrlEncoder().encodeToString("offset:5".getBytes(StandardCharsets.US_ASCII));
+        String notNumber = Base64.getUrlEncoder().encodeToString("id:abc".getBytes(StandardCharsets.US_ASCII));
+
+        assertThatThrownBy(() -> PageCursor.decode("не base64")).isInstanceOf(InvalidValueException.class);
+        assertThatThrownBy(() -> PageCursor.decode(foreign)).isInstanceOf(InvalidValueException.class);
+        assertThatThrownBy(() -> PageCursor.decode(notNumber)).isInstanceOf(InvalidValueException.class);
+    }
+
+    @Test
+    void pageSizeIsBounded() {
+        assertThat(PageCursor.pageable(null).getPageSize()).isEqualTo(PageCursor.DEFAULT_SIZE);
+        assertThat(PageCursor.pageable(PageCursor.MAX_SIZE).getPageSize()).isEqualTo(PageCursor.MAX_SIZE);
+        assertThatThrownBy(() -> PageCursor.pageable(0)).isInstanceOf(InvalidValueException.class);
+        assertThatThrownBy(() -> PageCursor.pageable(PageCursor.MAX_SIZE + 1)).isInstanceOf(InvalidValueException.class);
+    }
+
+    @Test
+    void nextCursorPointsAtLastElementOfPage() {
+        KeysetPage<Long> page = PageCursor.page(
+                new SliceImpl<>(List.of(3L, 7L), PageRequest.of(0, 2), true), id -> id);
+
+        assertThat(page.content()).containsExactly(3L, 7L);
+        assertThat(page.hasNext()).isTrue();
+        assertThat(PageCursor.decode(page.next())).isEqualTo(7L);
+    }
+
+    @Test
+    void lastPageHasNoNextCursor() {
+        KeysetPage<Long> page = PageCursor.page(
+                new SliceImpl<>(List.of(9L), PageRequest.of(0, 2), false), id -> id);
+
+        assertThat(page.hasNext()).isFalse();
+        assertThat(page.next()).isNull();
+    }
+}
@@ -0,0 +1,92 @@
+package ru.hogwarts.school.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.hogwarts.school.model.exception.FileTooLargeException;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.mock;
+
+class AvatarFileStoreTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void putMovesFileUnderChecksumPath() throws IOException {
+        AvatarFileStore store = new AvatarFileStore(dir.toString());
+        Path tmp = Files.write(dir.resolve("upload.part"), new byte[]{1, 2, 3});
+        String checksum = AvatarStorage.checksum(tmp);
+
+        String location = store.put(tmp, checksum, "png");
+
+        assertThat(Path.of(location)).isEqualTo(dir.resolve(checksum.substring(0, 2))
+                .resolve(checksum.substring(2, 4)).resolve(checksum + ".png"));
+        assertThat(tmp).doesNotExist();
+        assertThat(store.open(location).length()).isEqualTo(3);
+        assertThat(store.open(location).isWholeFile()).isTrue();
+    }
+
+    @Test
+    void putOfExistingContentOnlyRefreshesModificationTime() throws IOException {
+        AvatarFileStore store = new AvatarFileStore(dir.toString());
+        Path first = Files.write(dir.resolve("first.part"), new byte[]{4, 5, 6});
+        String checksum = AvatarStorage.checksum(first);
+        Path stored = Path.of(store.put(first, checksum, "png"));
+        FileTime old = FileTime.from(Instant.now().minus(2, ChronoUnit.HOURS));
+        Files.setLastModifiedTime(stored, old);
+
+        Path second = Files.write(dir.resolve("second.part"), new byte[]{4, 5, 6});
+        String location = store.put(second, checksum, "png");
+
+        assertThat(Path.of(location)).isEqualTo(stored);
+        assertThat(Files.getLastModifiedTime(stored)).isGreaterThan(old);
+        // копию удаляет вызывающий, хранилище ее не трогает
+        assertThat(second).exists();
+    }
+
+    @Test
+    void openOfMissingFileFails() {
+        AvatarFileStore store = new AvatarFileStore(dir.toString());
+
+        assertThatThrownBy(() -> store.open(dir.resolve("ab/cd/missing.png").toString()))
+                .isInstanceOf(NoSuchFileException.class);
+    }
+
+    @Test
+    void tooLargeUploadLeavesNoFiles() throws IOException {
+        AvatarFileStore fileStore = new AvatarFileStore(dir.toString());
+        AvatarStorage storage = new AvatarStorage(dir.toString(), "files", fileStore, mock(AvatarPackStore.class));
+
+        assertThatThrownBy(() -> storage.store(new ByteArrayInputStream(new byte[1000]), "png", 999))
+                .isInstanceOf(FileTooLargeException.class);
+
+        try (Stream<Path> files = Files.walk(dir)) {
+            assertThat(files.filter(Files::isRegularFile)).isEmpty();
+        }
+    }
+
+    @Test
+    void duplicateUploadIsStoredOnce() throws IOException {
+        AvatarFileStore fileStore = new AvatarFileStore(dir.toString());
+        AvatarStorage storage = new AvatarStorage(dir.toString(), "files", fileStore, mock(AvatarPackStore.class));
+
+        AvatarStorage.StoredFile first = storage.store(new ByteArrayInputStream(new byte[]{7, 8}), "jpg", 100);
+        AvatarStorage.StoredFile second = storage.store(new ByteArrayInputStream(new byte[]{7, 8}), "jpg", 100);
+
+        assertThat(second.location()).isEqualTo(first.location());
+        try (Stream<Path> files = Files.walk(dir)) {
+            assertThat(files.filter(Files::isRegularFile)).containsExactly(Path.of(first.location()));
+        }
+    }
+}
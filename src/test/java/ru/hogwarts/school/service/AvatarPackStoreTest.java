@@ -0,0 +1,203 @@
+package ru.hogwarts.school.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.util.unit.DataSize;
+import ru.hogwarts.school.model.Avatar;
+import ru.hogwarts.school.model.MaintenanceCheckpoint;
+import ru.hogwarts.school.model.Student;
+import ru.hogwarts.school.repository.AvatarPackEntryRepository;
+import ru.hogwarts.school.repository.AvatarRepository;
+import ru.hogwarts.school.repository.MaintenanceCheckpointRepository;
+import ru.hogwarts.school.repository.StudentRepository;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@SpringBootTest
+@ActiveProfiles("test")
+class AvatarPackStoreTest {
+    @Autowired
+    private AvatarPackEntryRepository entryRepository;
+    @Autowired
+    private MaintenanceCheckpointRepository checkpointRepository;
+    @Autowired
+    private AvatarRepository avatarRepository;
+    @Autowired
+    private StudentRepository studentRepository;
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+    @TempDir
+    Path dir;
+
+    // индекс сегментов общий на всю базу, а каталоги сегментов у тестов разные
+    @BeforeEach
+    @AfterEach
+    void clearIndex() {
+        entryRepository.deleteAll();
+        checkpointRepository.deleteAll(checkpointRepository.findByNameStartingWith(AvatarPackStore.RETIRED_CHECKPOINT));
+        checkpointRepository.findById(AvatarPackMigrator.CHECKPOINT).ifPresent(checkpointRepository::delete);
+    }
+
+    @Test
+    void storedContentIsReadBackByLocation() throws IOException {
+        AvatarPackStore store = store(DataSize.ofMegabytes(1), Duration.ofHours(1));
+        byte[] content = content(1000, 1);
+        Path file = Files.write(dir.resolve("photo.jpg"), content);
+        String checksum = AvatarStorage.checksum(file);
+
+        String location = store.put(file, checksum, "jpg");
+        AvatarStorage.Region region = store.open(location);
+
+        assertThat(location).isEqualTo(AvatarPackStore.PREFIX + checksum + ".jpg");
+        assertThat(region.isWholeFile()).isFalse();
+        assertThat(read(region)).isEqualTo(content);
+
+        // повторная загрузка того же содержимого не меняет Last-Modified
+        assertThat(store.put(file, checksum, "jpg")).isEqualTo(location);
+        assertThat(store.open(location)).isEqualTo(region);
+    }
+
+    @Test
+    void concurrentPutsDoNotOverlap() throws Exception {
+        AvatarPackStore store = store(DataSize.ofKilobytes(16), Duration.ofHours(1));
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<String>> locations = new ArrayList<>();
+            for (int i = 0; i < 40; i++) {
+                byte[] content = content(1500 + i, i);
+                Path file = Files.write(dir.resolve(i + ".jpg"), content);
+                locations.add(executor.submit(() -> store.put(file, AvatarStorage.checksum(file), "jpg")));
+            }
+            for (int i = 0; i < locations.size(); i++) {
+                assertThat(read(store.open(locations.get(i).get(10, TimeUnit.SECONDS)))).isEqualTo(content(1500 + i, i));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void compactionKeepsOldRegionReadableUntilGracePeriodEnds() throws Exception {
+        AvatarPackStore store = store(DataSize.ofKilobytes(2), Duration.ofHours(1));
+        byte[] first = content(1200, 1);
+        byte[] second = content(1200, 2);
+        Path firstFile = Files.write(dir.resolve("first.jpg"), first);
+        Path secondFile = Files.write(dir.resolve("second.jpg"), second);
+        String location = store.put(firstFile, AvatarStorage.checksum(firstFile), "jpg");
+        store.put(secondFile, AvatarStorage.checksum(secondFile), "jpg");
+        AvatarStorage.Region before = store.open(location);
+
+        AtomicBoolean compacted = new AtomicBoolean();
+        CompletableFuture<Integer> reader = CompletableFuture.supplyAsync(() -> {
+            int reads = 0;
+            try {
+                while (!compacted.get() || reads == 0) {
+                    assertThat(read(before)).isEqualTo(first);
+                    reads++;
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return reads;
+        });
+        store.compact();
+        compacted.set(true);
+
+        assertThat(reader.get(10, TimeUnit.SECONDS)).isPositive();
+        AvatarStorage.Region after = store.open(location);
+        assertThat(after.file()).isNotEqualTo(before.file());
+        assertThat(after.lastModified()).isEqualTo(before.lastModified());
+        assertThat(read(after)).isEqualTo(first);
+        assertThat(before.file()).exists();
+
+        // время переноса переживает перезапуск
+        AvatarPackStore restarted = store(DataSize.ofKilobytes(2), Duration.ZERO);
+        assertThat(restarted.retiredSegments()).containsKey(1);
+        restarted.compact();
+        assertThat(before.file()).doesNotExist();
+        assertThat(restarted.retiredSegments()).doesNotContainKey(1);
+    }
+
+    @Test
+    void migrationResumesAfterSavedPosition() throws IOException {
+        AvatarPackStore store = store(DataSize.ofMegabytes(1), Duration.ofHours(1));
+        AvatarStorage storage = new AvatarStorage(dir.toString(), "pack", new AvatarFileStore(dir.toString()), store);
+        AvatarPackMigrator migrator = new AvatarPackMigrator(avatarRepository, checkpointRepository, storage, store,
+                transactionManager);
+        Avatar done = avatar(Files.write(dir.resolve("done.jpg"), content(300, 1)));
+        Path pendingFile = Files.write(dir.resolve("pending.jpg"), content(300, 2));
+        Avatar pending = avatar(pendingFile);
+        MaintenanceCheckpoint checkpoint = new MaintenanceCheckpoint(AvatarPackMigrator.CHECKPOINT);
+        checkpoint.setPosition(String.valueOf(done.getId()));
+        checkpoint.setUpdatedAt(Instant.now());
+        checkpointRepository.save(checkpoint);
+
+        // как после остановки посреди переноса
+        AvatarPackMigrator.Progress progress = migrator.migrate(1);
+
+        assertThat(progress.migrated()).isEqualTo(1);
+        assertThat(progress.lastAvatarId()).isEqualTo(pending.getId());
+        assertThat(avatarRepository.findById(done.getId()).orElseThrow().getFilePath()).isEqualTo(done.getFilePath());
+        String location = avatarRepository.findById(pending.getId()).orElseThrow().getFilePath();
+        assertThat(store.supports(location)).isTrue();
+        assertThat(read(store.open(location))).isEqualTo(content(300, 2));
+        assertThat(pendingFile).doesNotExist();
+        assertThat(checkpointRepository.findById(AvatarPackMigrator.CHECKPOINT))
+                .map(MaintenanceCheckpoint::getPosition)
+                .contains(String.valueOf(pending.getId()));
+    }
+
+    private AvatarPackStore store(DataSize segmentSize, Duration gracePeriod) {
+        return new AvatarPackStore(dir.toString(), segmentSize, 0.0, gracePeriod, entryRepository,
+                checkpointRepository, transactionManager, new SimpleMeterRegistry());
+    }
+
+    private Avatar avatar(Path file) throws IOException {
+        Student student = new Student();
+        student.setName("Клювокрыл " + System.nanoTime());
+        student.setAge(17);
+        Avatar avatar = new Avatar();
+        avatar.setStudent(studentRepository.save(student));
+        avatar.setFilePath(file.toAbsolutePath().toString());
+        avatar.setFileSize(Files.size(file));
+        avatar.setMediaType("image/jpeg");
+        return avatarRepository.save(avatar);
+    }
+
+    private static byte[] content(int length, int seed) {
+        byte[] content = new byte[length];
+        Arrays.fill(content, (byte) seed);
+        content[0] = (byte) (length >> 8);
+        content[1] = (byte) length;
+        return content;
+    }
+
+    private static byte[] read(AvatarStorage.Region region) throws IOException {
+        try (InputStream in = region.newInputStream()) {
+            return in.readAllBytes();
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package ru.hogwarts.school.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.transaction.PlatformTransactionManager;
+import ru.hogwarts.school.model.Avatar;
+import ru.hogwarts.school.model.MaintenanceCheckpoint;
+import ru.hogwarts.school.model.Student;
+import ru.hogwarts.school.repository.AvatarPreviewRepository;
+import ru.hogwarts.school.repository.AvatarRepository;
+import ru.hogwarts.school.repository.MaintenanceCheckpointRepository;
+import ru.hogwarts.school.repository.PreviewJobRepository;
+import ru.hogwarts.school.repository.StudentRepository;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+// шаг сверки по расписанию в профиле test отключен длинным интервалом, позиции двигает только тест
+@SpringBootTest
+@ActiveProfiles("test")
+class AvatarReconcilerTest {
+    private static final Duration GRACE_PERIOD = Duration.ofHours(1);
+
+    @Autowired
+    private AvatarRepository avatarRepository;
+    @Autowired
+    private AvatarPreviewRepository avatarPreviewRepository;
+    @Autowired
+    private PreviewJobRepository previewJobRepository;
+    @Autowired
+    private MaintenanceCheckpointRepository checkpointRepository;
+    @Autowired
+    private StudentRepository studentRepository;
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+    @TempDir
+    Path dir;
+    @TempDir
+    Path originalsDir;
+
+    @BeforeEach
+    void resetCheckpoints() {
+        checkpointRepository.findById(AvatarReconciler.ROWS_CHECKPOINT).ifPresent(checkpointRepository::delete);
+        checkpointRepository.findById(AvatarReconciler.FILES_CHECKPOINT).ifPresent(checkpointRepository::delete);
+        checkpointRepository.findById(AvatarReconciler.ORIGINALS_CHECKPOINT).ifPresent(checkpointRepository::delete);
+    }
+
+    @Test
+    void unreferencedFilesAreDeletedOnlyAfterGracePeriod() throws IOException {
+        Path referenced = old(shardFile(checksum('a')));
+        attachedAvatar(student(), referenced, checksum('a'));
+        Path orphan = old(shardFile(checksum('b')));
+        Path fresh = shardFile(checksum('c'));
+        Path oldUpload = old(Files.write(Files.createDirectories(storage().tmpDir()).resolve("upload-1.tmp"), new byte[1]));
+        Path activeUpload = Files.write(storage().tmpDir().resolve("upload-2.tmp"), new byte[1]);
+
+        reconciler(1000, 100).reconcileFiles();
+
+        assertThat(referenced).exists();
+        assertThat(orphan).doesNotExist();
+        assertThat(fresh).exists();
+        assertThat(oldUpload).doesNotExist();
+        assertThat(activeUpload).exists();
+    }
+
+    @Test
+    void trashedFileIsRestoredWhenReferencedOrTouched() throws IOException {
+        // как после остановки между переносом в корзину и повторной проверкой
+        Path trash = Files.createDirectories(dir.resolve(".trash"));
+        Path referenced = old(Files.write(trash.resolve(checksum('7') + ".jpg"), new byte[1]));
+        attachedAvatar(student(), dir.resolve("77/77/" + checksum('7') + ".jpg"), checksum('7'));
+        Path touched = Files.write(trash.resolve(checksum('8') + ".jpg"), new byte[1]);
+        Path orphan = old(Files.write(trash.resolve(checksum('9') + ".jpg"), new byte[1]));
+
+        reconciler(1000, 100).reconcileFiles();
+
+        assertThat(referenced).doesNotExist();
+        assertThat(touched).doesNotExist();
+        assertThat(orphan).doesNotExist();
+        assertThat(dir.resolve("77/77/" + checksum('7') + ".jpg")).exists();
+        assertThat(dir.resolve("88/88/" + checksum('8') + ".jpg")).exists();
+        assertThat(dir.resolve("99/99/" + checksum('9') + ".jpg")).doesNotExist();
+    }
+
+    @Test
+    void legacyFileIsKeptWhileItsStudentReferencesIt() throws IOException {
+        Student student = student();
+        Path referenced = old(Files.write(dir.resolve(student.getId() + ".jpg"), new byte[1]));
+        attachedAvatar(student, referenced, null);
+        Path replaced = old(Files.write(dir.resolve(student.getId() + ".png"), new byte[1]));
+
+        reconciler(1000, 100).reconcileFiles();
+
+        assertThat(referenced).exists();
+        assertThat(replaced).doesNotExist();
+    }
+
+    @Test
+    void filePassResumesFromCheckpointAfterRestart() throws IOException {
+        long base = 900_000_000L + System.nanoTime() % 1_000_000 * 10;
+        List<Path> legacy = new ArrayList<>();
+        for (int i = 1; i <= 5; i++) {
+            legacy.add(old(Files.write(dir.resolve((base + i) + ".jpg"), new byte[1])));
+        }
+        Path sharded = old(shardFile(checksum('d')));
+
+        reconciler(1000, 2).reconcileFiles();
+
+        assertThat(filePosition()).isEqualTo("legacy:" + (base + 2));
+        assertThat(legacy.subList(0, 2)).allMatch(Files::notExists);
+        assertThat(legacy.subList(2, 5)).allMatch(Files::exists);
+
+        // новый экземпляр продолжает с сохраненной позиции, как после перезапуска
+        AvatarReconciler restarted = reconciler(1000, 2);
+        restarted.reconcileFiles();
+        assertThat(filePosition()).isEqualTo("legacy:" + (base + 4));
+        assertThat(legacy.get(2)).doesNotExist();
+        assertThat(legacy.get(4)).exists();
+
+        restarted.reconcileFiles();
+        assertThat(legacy.get(4)).doesNotExist();
+        assertThat(sharded).doesNotExist();
+        assertThat(filePosition()).isEqualTo("shard:dd/dd");
+
+        restarted.reconcileFiles();
+        assertThat(filePosition()).isNull();
+        assertThat(restarted.getProgress().lastFilePassAt()).isNotNull();
+    }
+
+    @Test
+    void originalsAreDeletedOnceTheirChecksumIsNoLongerReferenced() throws IOException {
+        Path kept = old(shardFile(originalsDir, checksum('e')));
+        attachedAvatar(student(), shardFile(dir, checksum('e')), checksum('e'));
+        Path replaced = old(shardFile(originalsDir, checksum('f')));
+        Path fresh = shardFile(originalsDir, checksum('1'));
+
+        AvatarReconciler reconciler = reconciler(1000, 1);
+        reconciler.reconcileOriginals();
+        assertThat(originalsPosition()).isEqualTo("11/11");
+        reconciler.reconcileOriginals();
+        reconciler.reconcileOriginals();
+        assertThat(originalsPosition()).isEqualTo("ff/ff");
+        reconciler.reconcileOriginals();
+
+        assertThat(kept).exists();
+        assertThat(replaced).doesNotExist();
+        assertThat(fresh).exists();
+        assertThat(originalsPosition()).isNull();
+        assertThat(reconciler.getProgress().lastOriginalsPassAt()).isNotNull();
+    }
+
+    @Test
+    void detachedRowsAreRemovedWindowByWindow() throws IOException {
+        Path file = Files.write(dir.resolve("kept.jpg"), new byte[1]);
+        Avatar attached = attachedAvatar(student(), file, null);
+        Avatar detached = new Avatar();
+        detached.setFilePath(file.toString());
+        detached.setMediaType("image/jpeg");
+        detached = avatarRepository.save(detached);
+
+        AvatarReconciler reconciler = reconciler(1000, 100);
+        reconciler.reconcileRows();
+        assertThat(rowPosition()).isNotNull();
+
+        for (int i = 0; i < 1000 && rowPosition() != null; i++) {
+            reconciler.reconcileRows();
+        }
+
+        assertThat(rowPosition()).isNull();
+        assertThat(avatarRepository.existsById(detached.getId())).isFalse();
+        assertThat(avatarRepository.existsById(attached.getId())).isTrue();
+        assertThat(reconciler.getProgress().lastRowPassAt()).isNotNull();
+    }
+
+    private AvatarReconciler reconciler(long rowWindow, int filesPerStep) {
+        AvatarTranscoder transcoder = mock(AvatarTranscoder.class);
+        when(transcoder.originalsDir()).thenReturn(originalsDir);
+        return new AvatarReconciler(storage(), transcoder, avatarRepository, avatarPreviewRepository, previewJobRepository,
+                checkpointRepository, transactionManager, new SimpleMeterRegistry(),
+                GRACE_PERIOD, rowWindow, 1, filesPerStep, 0);
+    }
+
+    private AvatarStorage storage() {
+        return new AvatarStorage(dir.toString(), "files", new AvatarFileStore(dir.toString()), mock(AvatarPackStore.class));
+    }
+
+    private Path shardFile(String checksum) throws IOException {
+        return shardFile(dir, checksum);
+    }
+
+    private static Path shardFile(Path dir, String checksum) throws IOException {
+        Path shard = Files.createDirectories(dir.resolve(checksum.substring(0, 2)).resolve(checksum.substring(2, 4)));
+        return Files.write(shard.resolve(checksum + ".jpg"), new byte[1]);
+    }
+
+    private static Path old(Path file) throws IOException {
+        Files.setLastModifiedTime(file, FileTime.from(Instant.now().minus(GRACE_PERIOD.multipliedBy(2))));
+        return file;
+    }
+
+    private static String checksum(char fill) {
+        return String.valueOf(fill).repeat(64);
+    }
+
+    private Student student() {
+        Student student = new Student();
+        student.setName("Кикимер " + System.nanoTime());
+        student.setAge(17);
+        return studentRepository.save(student);
+    }
+
+    private Avatar attachedAvatar(Student student, Path file, String checksum) {
+        Avatar avatar = new Avatar();
+        avatar.setStudent(student);
+        avatar.setFilePath(file.toAbsolutePath().toString());
+        avatar.setMediaType("image/jpeg");
+        avatar.setChecksum(checksum);
+        return avatarRepository.save(avatar);
+    }
+
+    private String filePosition() {
+        return checkpointRepository.findById(AvatarReconciler.FILES_CHECKPOINT)
+                .map(MaintenanceCheckpoint::getPosition).orElse(null);
+    }
+
+    private String originalsPosition() {
+        return checkpointRepository.findById(AvatarReconciler.ORIGINALS_CHECKPOINT)
+                .map(MaintenanceCheckpoint::getPosition).orElse(null);
+    }
+
+    private String rowPosition() {
+        return checkpointRepository.findById(AvatarReconciler.ROWS_CHECKPOINT)
+                .map(MaintenanceCheckpoint::getPosition).orElse(null);
+    }
+}
@@ -0,0 +1,90 @@
+package ru.hogwarts.school.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.hogwarts.school.model.exception.FileTooLargeException;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.mock;
+
+class AvatarStorageTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void oversizeStreamIsRejectedWithoutFillingWholeBuffer() {
+        AvatarStorage storage = storage();
+        long[] read = new long[1];
+        InputStream endless = new InputStream() {
+            @Override
+            public int read() {
+                read[0]++;
+                return 0;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                int chunk = Math.min(len, 4096);
+                read[0] += chunk;
+                return chunk;
+            }
+        };
+
+        assertThatThrownBy(() -> storage.spool(endless, 10)).isInstanceOf(FileTooLargeException.class);
+
+        assertThat(read[0]).isLessThan(64 * 1024);
+    }
+
+    @Test
+    void moreConcurrentUploadsThanPooledBuffersAllSucceed() throws Exception {
+        AvatarStorage storage = storage();
+        ExecutorService executor = Executors.newFixedThreadPool(32);
+        try {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (int i = 0; i < 64; i++) {
+                byte[] content = new byte[300 * 1024];
+                new Random(i).nextBytes(content);
+                results.add(executor.submit(() -> {
+                    AvatarStorage.StoredFile stored = storage.store(new ByteArrayInputStream(content), "bin", content.length);
+                    return stored.size() == content.length
+                            && stored.checksum().equals(HexFormat.of().formatHex(AvatarStorage.sha256().digest(content)))
+                            && stored.checksum().equals(AvatarStorage.checksum(Path.of(stored.location())));
+                }));
+            }
+            for (Future<Boolean> result : results) {
+                assertThat(result.get()).isTrue();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void spoolKeepsExactSizeLimit() throws IOException {
+        AvatarStorage storage = storage();
+
+        Path spooled = storage.spool(new ByteArrayInputStream(new byte[1000]), 1000);
+
+        assertThat(Files.size(spooled)).isEqualTo(1000);
+        assertThatThrownBy(() -> storage.spool(new ByteArrayInputStream(new byte[1001]), 1000))
+                .isInstanceOf(FileTooLargeException.class);
+    }
+
+    private AvatarStorage storage() {
+        return new AvatarStorage(dir.toString(), "files", new AvatarFileStore(dir.toString()), mock(AvatarPackStore.class));
+    }
+}
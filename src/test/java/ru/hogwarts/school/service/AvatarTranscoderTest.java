@@ -0,0 +1,142 @@
+package ru.hogwarts.school.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.unit.DataSize;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+class AvatarTranscoderTest {
+
+    private final DecodeBudget budget = new DecodeBudget(DataSize.ofMegabytes(64), DataSize.ofMegabytes(32),
+            Duration.ofMillis(100), Duration.ofSeconds(5), new SimpleMeterRegistry());
+    private final ImageDecoder imageDecoder = new ImageDecoder(budget);
+    @TempDir
+    Path dir;
+    private AvatarTranscoder transcoder;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        AvatarStorage storage = new AvatarStorage(dir.toString(), "files", new AvatarFileStore(dir.toString()),
+                mock(AvatarPackStore.class));
+        transcoder = new AvatarTranscoder(true, "jpeg", 0.85f, 320, 320, dir.resolve("originals").toString(),
+                imageDecoder, budget, storage, new SimpleMeterRegistry());
+    }
+
+    @Test
+    void largeImageIsDownscaledToJpeg() throws IOException {
+        Path original = write("large.png", new BufferedImage(1600, 800, BufferedImage.TYPE_INT_RGB), "png");
+
+        AvatarTranscoder.Transcoded transcoded = transcode(original);
+
+        assertThat(transcoded.mediaType()).isEqualTo("image/jpeg");
+        assertThat(transcoded.downscaled()).isTrue();
+        BufferedImage result = ImageIO.read(transcoded.file().toFile());
+        assertThat(result.getWidth()).isEqualTo(320);
+        assertThat(result.getHeight()).isEqualTo(160);
+    }
+
+    @Test
+    void gifIsKeptAsUploaded() throws IOException {
+        Path original = write("animated.gif", new BufferedImage(64, 64, BufferedImage.TYPE_BYTE_INDEXED), "gif");
+
+        assertThat(transcoder.transcode(original, imageDecoder.readHeader(original))).isEmpty();
+    }
+
+    @Test
+    void transparentImageFallsBackToPng() throws IOException {
+        BufferedImage image = new BufferedImage(64, 64, BufferedImage.TYPE_INT_ARGB);
+        image.setRGB(0, 0, 0x80FF0000);
+        Path original = write("transparent.png", image, "png");
+
+        AvatarTranscoder.Transcoded transcoded = transcode(original);
+
+        assertThat(transcoded.mediaType()).isEqualTo("image/png");
+        assertThat(transcoded.downscaled()).isFalse();
+        assertThat(ImageIO.read(transcoded.file().toFile()).getRGB(0, 0) >>> 24).isEqualTo(0x80);
+    }
+
+    @Test
+    void exifOrientationIsAppliedToPixels() throws IOException {
+        // слева красная половина, справа синяя; ориентация 6 — повернуть на 90° по часовой стрелке
+        BufferedImage image = new BufferedImage(200, 100, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = image.createGraphics();
+        graphics.setColor(Color.RED);
+        graphics.fillRect(0, 0, 100, 100);
+        graphics.setColor(Color.BLUE);
+        graphics.fillRect(100, 0, 100, 100);
+        graphics.dispose();
+        Path original = Files.write(dir.resolve("rotated.jpg"), withOrientation(jpeg(image), 6));
+
+        BufferedImage result = ImageIO.read(transcode(original).file().toFile());
+
+        assertThat(result.getWidth()).isEqualTo(100);
+        assertThat(result.getHeight()).isEqualTo(200);
+        assertThat(new Color(result.getRGB(50, 50)).getRed()).isGreaterThan(200);
+        assertThat(new Color(result.getRGB(50, 150)).getBlue()).isGreaterThan(200);
+    }
+
+    @Test
+    void originalIsCopiedUnderStoredChecksum() throws IOException {
+        Path original = write("kept.png", new BufferedImage(10, 10, BufferedImage.TYPE_INT_RGB), "png");
+        String checksum = "ab".repeat(32);
+
+        transcoder.keepOriginal(AvatarStorage.Region.of(original), checksum, "png");
+
+        Path copy = transcoder.originalsDir().resolve("ab").resolve("ab").resolve(checksum + ".png");
+        assertThat(copy).hasSameBinaryContentAs(original);
+        assertThat(original).exists();
+    }
+
+    private AvatarTranscoder.Transcoded transcode(Path original) throws IOException {
+        return transcoder.transcode(original, imageDecoder.readHeader(original)).orElseThrow();
+    }
+
+    private Path write(String name, BufferedImage image, String format) throws IOException {
+        Path file = dir.resolve(name);
+        ImageIO.write(image, format, file.toFile());
+        return file;
+    }
+
+    private static byte[] jpeg(BufferedImage image) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "jpeg", out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Вставляет после APP0 сегмент APP1 с EXIF из одной записи Orientation (big-endian TIFF).
+     */
+    private static byte[] withOrientation(byte[] jpeg, int orientation) {
+        ByteBuffer tiff = ByteBuffer.allocate(26);
+        tiff.put("MM".getBytes(StandardCharsets.US_ASCII)).putShort((short) 42).putInt(8)
+                .putShort((short) 1)
+                .putShort((short) 0x0112).putShort((short) 3).putInt(1).putShort((short) orientation).putShort((short) 0)
+                .putInt(0);
+        byte[] exif = "Exif\0\0".getBytes(StandardCharsets.US_ASCII);
+        ByteBuffer segment = ByteBuffer.allocate(4 + exif.length + tiff.capacity());
+        segment.putShort((short) 0xFFE1).putShort((short) (2 + exif.length + tiff.capacity()))
+                .put(exif).put(tiff.array());
+        // SOI и APP0 (JFIF) остаются в начале
+        int app0End = 4 + ((jpeg[4] & 0xFF) << 8 | (jpeg[5] & 0xFF));
+        return ByteBuffer.allocate(jpeg.length + segment.capacity())
+                .put(jpeg, 0, app0End)
+                .put(segment.array())
+                .put(jpeg, app0End, jpeg.length - app0End)
+                .array();
+    }
+}
@@ -0,0 +1,74 @@
+package ru.hogwarts.school.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.util.unit.DataSize;
+import ru.hogwarts.school.model.Avatar;
+import ru.hogwarts.school.model.Student;
+import ru.hogwarts.school.model.exception.TooManyRequestsException;
+import ru.hogwarts.school.repository.AvatarRepository;
+import ru.hogwarts.school.repository.StudentRepository;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+@SpringBootTest(properties = {
+        "students.avatar.transcoding.enabled=false",
+        "students.avatar.admission.timeout=PT0.1S"
+})
+@ActiveProfiles("test")
+class AvatarUploadTest {
+    @TempDir
+    static Path avatarsDir;
+
+    @DynamicPropertySource
+    static void avatarsDir(DynamicPropertyRegistry registry) {
+        registry.add("students.avatar.dir.path", () -> avatarsDir.toString());
+    }
+
+    @Autowired
+    private AvatarService avatarService;
+    @Autowired
+    private DecodeBudget decodeBudget;
+    @Autowired
+    private AvatarRepository avatarRepository;
+    @Autowired
+    private StudentRepository studentRepository;
+
+    @Test
+    void uploadWithoutTranscodingDoesNotWaitForDecodeBudget() throws IOException {
+        Student student = new Student();
+        student.setName("Хедвиг " + System.nanoTime());
+        student.setAge(17);
+        student = studentRepository.save(student);
+        byte[] png = png(2000, 1500);
+
+        try (DecodeBudget.Reservation busy = decodeBudget.reserve(DataSize.ofGigabytes(1).toBytes())) {
+            assertThatThrownBy(() -> decodeBudget.reserve(1)).isInstanceOf(TooManyRequestsException.class);
+
+            avatarService.uploadAvatar(student.getId(), new ByteArrayInputStream(png));
+        }
+
+        Avatar avatar = avatarRepository.findByStudentId(student.getId()).orElseThrow();
+        assertThat(avatar.getFileSize()).isEqualTo(png.length);
+        assertThat(avatar.getMediaType()).isEqualTo("image/png");
+    }
+
+    private static byte[] png(int width, int height) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB), "png", out);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,55 @@
+package ru.hogwarts.school.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.util.unit.DataSize;
+import ru.hogwarts.school.model.exception.TooManyRequestsException;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class DecodeBudgetTest {
+
+    private final DecodeBudget budget = new DecodeBudget(DataSize.ofMegabytes(4), DataSize.ofMegabytes(1),
+            Duration.ofMillis(100), Duration.ofSeconds(5), new SimpleMeterRegistry());
+
+    @Test
+    void busyBackgroundShareDoesNotRejectRequests() throws Exception {
+        DecodeBudget.Reservation regeneration =
+                budget.reserve(DataSize.ofMegabytes(1).toBytes(), DecodeBudget.Priority.BACKGROUND);
+        CompletableFuture<DecodeBudget.Reservation> waiting = CompletableFuture.supplyAsync(() -> {
+            try {
+                return budget.reserve(DataSize.ofKilobytes(1).toBytes(), DecodeBudget.Priority.BACKGROUND);
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+
+        try (DecodeBudget.Reservation upload = budget.reserve(DataSize.ofMegabytes(3).toBytes())) {
+            assertThat(waiting).isNotDone();
+        }
+
+        regeneration.close();
+        waiting.get(5, TimeUnit.SECONDS).close();
+    }
+
+    @Test
+    void requestIsRejectedWhenRequestShareIsExhausted() throws InterruptedException {
+        try (DecodeBudget.Reservation upload = budget.reserve(DataSize.ofMegabytes(3).toBytes())) {
+            assertThatThrownBy(() -> budget.reserve(DataSize.ofKilobytes(1).toBytes()))
+                    .isInstanceOf(TooManyRequestsException.class);
+            budget.reserve(DataSize.ofKilobytes(1).toBytes(), DecodeBudget.Priority.BACKGROUND).close();
+        }
+    }
+
+    @Test
+    void oversizeReservationIsCappedToItsShare() throws InterruptedException {
+        budget.reserve(DataSize.ofMegabytes(100).toBytes()).close();
+        budget.reserve(DataSize.ofMegabytes(100).toBytes(), DecodeBudget.Priority.BACKGROUND).close();
+        budget.reserve(DataSize.ofMegabytes(3).toBytes()).close();
+    }
+}
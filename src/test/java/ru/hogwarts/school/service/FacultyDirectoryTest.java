@@ -0,0 +1,74 @@
+package ru.hogwarts.school.service;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import ru.hogwarts.school.dto.FacultyDTO;
+import ru.hogwarts.school.model.Faculty;
+import ru.hogwarts.school.repository.FacultyRepository;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class FacultyDirectoryTest {
+    private final FacultyRepository facultyRepository = mock(FacultyRepository.class);
+    private final FacultyDirectory directory = new FacultyDirectory(facultyRepository);
+
+    @BeforeEach
+    void setUp() {
+        when(facultyRepository.findAll()).thenReturn(List.of(
+                faculty(40L, "Слизерин", "зеленый"),
+                faculty(10L, "Гриффиндор", "красный"),
+                faculty(30L, "Когтевран", "синий"),
+                faculty(20L, "Пуффендуй", "желтый")));
+        directory.rebuild();
+    }
+
+    @Test
+    void containingMatchesSubstringIgnoringCase() {
+        FacultyDirectory.Snapshot snapshot = directory.snapshot();
+
+        assertThat(snapshot.findByNameContainingIgnoreCase("ФФЕН")).extracting(FacultyDTO::id).containsExactly(20L);
+        assertThat(snapshot.findByNameContainingIgnoreCase("ин")).extracting(FacultyDTO::id).containsExactly(10L, 40L);
+        assertThat(snapshot.findByColorContainingIgnoreCase("ный")).extracting(FacultyDTO::id).containsExactly(10L, 40L);
+        assertThat(snapshot.findByNameContainingIgnoreCase("")).hasSize(4);
+    }
+
+    @Test
+    void containingChecksWholeSubstringNotOnlyGrams() {
+        // все триграммы запроса есть в "Гриффиндор", но подряд они не встречаются
+        assertThat(directory.snapshot().findByNameContainingIgnoreCase("гриндор")).isEmpty();
+        assertThat(directory.snapshot().findByNameContainingIgnoreCase("Дамблдор")).isEmpty();
+        assertThat(directory.snapshot().findByNameContainingIgnoreCase(null)).isEmpty();
+    }
+
+    @Test
+    void findAfterStartsStrictlyAfterId() {
+        FacultyDirectory.Snapshot snapshot = directory.snapshot();
+
+        assertThat(snapshot.findAfter(0, 2)).extracting(FacultyDTO::id).containsExactly(10L, 20L);
+        assertThat(snapshot.findAfter(20, 2)).extracting(FacultyDTO::id).containsExactly(30L, 40L);
+        assertThat(snapshot.findAfter(25, 10)).extracting(FacultyDTO::id).containsExactly(30L, 40L);
+        assertThat(snapshot.findAfter(40, 2)).isEmpty();
+    }
+
+    @Test
+    void snapshotCannotBeModifiedByCallers() {
+        FacultyDirectory.Snapshot snapshot = directory.snapshot();
+
+        assertThatThrownBy(() -> snapshot.getAll().clear()).isInstanceOf(UnsupportedOperationException.class);
+        assertThatThrownBy(() -> snapshot.findByNameIgnoreCase("когтевран").clear())
+                .isInstanceOf(UnsupportedOperationException.class);
+        assertThatThrownBy(() -> snapshot.findAfter(0, 2).clear()).isInstanceOf(UnsupportedOperationException.class);
+        assertThat(snapshot.findWithLongestName()).map(FacultyDTO::name).contains("Гриффиндор");
+    }
+
+    private static Faculty faculty(Long id, String name, String color) {
+        Faculty faculty = new Faculty(name, color);
+        faculty.setId(id);
+        return faculty;
+    }
+}
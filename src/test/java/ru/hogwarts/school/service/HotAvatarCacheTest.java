@@ -0,0 +1,129 @@
+package ru.hogwarts.school.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.unit.DataSize;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class HotAvatarCacheTest {
+    @TempDir
+    Path dir;
+
+    private final HotAvatarCache cache = new HotAvatarCache(DataSize.ofBytes(100), DataSize.ofBytes(80),
+            new SimpleMeterRegistry());
+
+    @Test
+    void entryIsAdmittedOnlyAfterRepeatedRequests() {
+        String key = HotAvatarCache.avatarKey(1L);
+
+        assertThat(request(key, 1)).isNull();
+        assertThat(cache.offer(key, cache.generation(key), bytes(10), "image/png", "\"1\"")).isNull();
+
+        assertThat(request(key, 1)).isNull();
+        assertThat(cache.offer(key, cache.generation(key), bytes(10), "image/png", "\"1\"")).isNotNull();
+        assertThat(request(key, 1)).isNotNull();
+    }
+
+    @Test
+    void rareEntryDoesNotDisplaceFrequentOne() {
+        String frequent = HotAvatarCache.avatarKey(1L);
+        String rare = HotAvatarCache.avatarKey(2L);
+        String hotter = HotAvatarCache.avatarKey(3L);
+
+        request(frequent, 5);
+        assertThat(cache.offer(frequent, cache.generation(frequent), bytes(60), "image/png", "\"1\"")).isNotNull();
+
+        request(rare, 2);
+        assertThat(cache.offer(rare, cache.generation(rare), bytes(60), "image/png", "\"2\"")).isNull();
+
+        request(hotter, 8);
+        assertThat(cache.offer(hotter, cache.generation(hotter), bytes(60), "image/png", "\"3\"")).isNotNull();
+        assertThat(cache.get(frequent)).isNull();
+        assertThat(cache.entryCount()).isEqualTo(1);
+        assertThat(cache.offHeapBytes()).isEqualTo(60);
+    }
+
+    @Test
+    void entryReadBeforeInvalidationIsNotCached() {
+        String key = HotAvatarCache.avatarKey(1L);
+        request(key, 2);
+        long generation = cache.generation(key);
+
+        // аватар заменили, пока старый файл читался из базы
+        cache.invalidate(key);
+
+        assertThat(cache.offer(key, generation, bytes(10), "image/png", "\"old\"")).isNull();
+        assertThat(cache.get(key)).isNull();
+        assertThat(cache.offer(key, cache.generation(key), bytes(10), "image/png", "\"new\"")).isNotNull();
+        assertThat(cache.get(key).eTag()).isEqualTo("\"new\"");
+    }
+
+    @Test
+    void invalidationReleasesOffHeapMemory() {
+        String key = HotAvatarCache.previewKey(1L);
+        request(key, 2);
+        cache.offer(key, cache.generation(key), bytes(40), "image/png", "\"1\"");
+        assertThat(cache.offHeapBytes()).isEqualTo(40);
+
+        cache.invalidate(key);
+
+        assertThat(cache.offHeapBytes()).isZero();
+        assertThat(cache.entryCount()).isZero();
+    }
+
+    @Test
+    void oversizeEntryIsNeverAdmitted() {
+        String key = HotAvatarCache.avatarKey(1L);
+        request(key, 10);
+
+        assertThat(cache.offer(key, cache.generation(key), bytes(81), "image/png", "\"1\"")).isNull();
+    }
+
+    @Test
+    void regionIsCachedFromItsOffsetAndWrittenInSlices() throws IOException {
+        byte[] content = bytes(50);
+        Path file = Files.write(dir.resolve("segment.pack"), content);
+        String key = HotAvatarCache.avatarKey(1L);
+        request(key, 2);
+
+        HotAvatarCache.Entry entry = cache.offer(key, cache.generation(key),
+                new AvatarStorage.Region(file, 10, 20, 0), "image/png", "\"1\"", 0);
+
+        assertThat(entry.size()).isEqualTo(20);
+        ByteArrayOutputStream whole = new ByteArrayOutputStream();
+        cache.write(entry, 0, entry.size(), whole);
+        assertThat(whole.toByteArray()).isEqualTo(Arrays.copyOfRange(content, 10, 30));
+
+        ByteArrayOutputStream range = new ByteArrayOutputStream();
+        cache.write(entry, 5, 7, range);
+        assertThat(range.toByteArray()).isEqualTo(Arrays.copyOfRange(content, 15, 22));
+
+        ByteArrayOutputStream tail = new ByteArrayOutputStream();
+        cache.write(entry, 19, 1, tail);
+        assertThat(tail.toByteArray()).containsExactly(content[29]);
+    }
+
+    private HotAvatarCache.Entry request(String key, int times) {
+        HotAvatarCache.Entry entry = null;
+        for (int i = 0; i < times; i++) {
+            entry = cache.get(key);
+        }
+        return entry;
+    }
+
+    private static byte[] bytes(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) i;
+        }
+        return data;
+    }
+}
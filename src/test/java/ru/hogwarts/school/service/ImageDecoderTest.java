@@ -0,0 +1,89 @@
+package ru.hogwarts.school.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.unit.DataSize;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.time.Duration;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Сравнивает прореживание при декодировании с полным {@link ImageIO#read} по памяти,
+ * выделенной потоком на одно изображение 4000x3000.
+ */
+class ImageDecoderTest {
+    private static final int ROUNDS = 3;
+
+    @TempDir
+    static Path dir;
+    private static Path photo;
+
+    private final ImageDecoder imageDecoder = new ImageDecoder(
+            new DecodeBudget(DataSize.ofMegabytes(256), DataSize.ofMegabytes(32), Duration.ofSeconds(2), Duration.ofSeconds(5), new SimpleMeterRegistry()));
+
+    @BeforeAll
+    static void createPhoto() throws IOException {
+        BufferedImage image = new BufferedImage(4000, 3000, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = image.createGraphics();
+        graphics.setPaint(new GradientPaint(0, 0, Color.BLUE, 4000, 3000, Color.ORANGE));
+        graphics.fillRect(0, 0, 4000, 3000);
+        graphics.dispose();
+        photo = dir.resolve("photo.jpg");
+        ImageIO.write(image, "jpg", photo.toFile());
+    }
+
+    @Test
+    void readHeaderDoesNotDecodePixels() throws IOException {
+        ImageDecoder.Header header = imageDecoder.readHeader(photo);
+
+        assertThat(header).isEqualTo(new ImageDecoder.Header("jpeg", 4000, 3000));
+        assertThat(allocated(() -> imageDecoder.readHeader(photo))).isLessThan(1024 * 1024);
+    }
+
+    @Test
+    void subsampledDecodeAllocatesFractionOfFullDecode() throws IOException {
+        long full = measure(() -> {
+            BufferedImage image = ImageIO.read(photo.toFile());
+            imageDecoder.scale(image, 100);
+        });
+        long subsampled = measure(() ->
+                imageDecoder.scale(imageDecoder.decode(photo, 100), 100));
+
+        assertThat(subsampled).isLessThan(full / 10);
+        BufferedImage preview = imageDecoder.scale(imageDecoder.decode(photo, 100), 100);
+        assertThat(preview.getWidth()).isEqualTo(100);
+        assertThat(preview.getHeight()).isEqualTo(75);
+    }
+
+    private interface Action {
+        void run() throws IOException;
+    }
+
+    /**
+     * Наименьший объем памяти за несколько прогонов после прогревочного.
+     */
+    private static long measure(Action action) throws IOException {
+        action.run();
+        long bytes = Long.MAX_VALUE;
+        for (int i = 0; i < ROUNDS; i++) {
+            bytes = Math.min(bytes, allocated(action));
+        }
+        return bytes;
+    }
+
+    private static long allocated(Action action) throws IOException {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long before = threads.getCurrentThreadAllocatedBytes();
+        action.run();
+        return threads.getCurrentThreadAllocatedBytes() - before;
+    }
+}
@@ -0,0 +1,65 @@
+package ru.hogwarts.school.service;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.util.unit.DataSize;
+import ru.hogwarts.school.model.exception.InvalidImageException;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class ImageValidatorTest {
+    private final ImageValidator imageValidator = new ImageValidator(8000, 8000, 40_000_000, DataSize.ofKilobytes(256));
+
+    @Test
+    void validImageIsReplayedWithDetectedType() throws IOException {
+        byte[] png = png(30, 20);
+
+        ImageValidator.ValidatedImage image = imageValidator.validate(new ByteArrayInputStream(png));
+
+        assertThat(image.header()).isEqualTo(new ImageDecoder.Header("png", 30, 20));
+        assertThat(image.extension()).isEqualTo("png");
+        assertThat(image.mediaType()).isEqualTo("image/png");
+        assertThat(image.content().readAllBytes()).isEqualTo(png);
+    }
+
+    @Test
+    void notAnImageIsRejected() {
+        assertThatThrownBy(() -> imageValidator.validate(new ByteArrayInputStream("GIF? нет".getBytes())))
+                .isInstanceOf(InvalidImageException.class);
+    }
+
+    @Test
+    void truncatedHeaderIsRejected() throws IOException {
+        byte[] truncated = Arrays.copyOf(png(30, 20), 20);
+
+        assertThatThrownBy(() -> imageValidator.validate(new ByteArrayInputStream(truncated)))
+                .isInstanceOf(InvalidImageException.class);
+    }
+
+    @Test
+    void decompressionBombIsRejectedByHeader() throws IOException {
+        byte[] bomb = png(30, 20);
+        ByteBuffer.wrap(bomb).putInt(16, 7000).putInt(20, 7000);
+        CRC32 crc = new CRC32();
+        crc.update(bomb, 12, 17);
+        ByteBuffer.wrap(bomb).putInt(29, (int) crc.getValue());
+
+        assertThatThrownBy(() -> imageValidator.validate(new ByteArrayInputStream(bomb)))
+                .isInstanceOf(InvalidImageException.class);
+    }
+
+    private static byte[] png(int width, int height) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB), "png", baos);
+        return baos.toByteArray();
+    }
+}
@@ -0,0 +1,53 @@
+package ru.hogwarts.school.service;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.ActiveProfiles;
+import ru.hogwarts.school.dto.KeysetPage;
+import ru.hogwarts.school.dto.PageCursor;
+import ru.hogwarts.school.dto.StudentDTO;
+import ru.hogwarts.school.model.Faculty;
+import ru.hogwarts.school.model.Student;
+import ru.hogwarts.school.repository.FacultyRepository;
+import ru.hogwarts.school.repository.StudentRepository;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@SpringBootTest
+@ActiveProfiles("test")
+class KeysetPaginationTest {
+    @Autowired
+    private StudentService studentService;
+    @Autowired
+    private StudentRepository studentRepository;
+    @Autowired
+    private FacultyRepository facultyRepository;
+
+    @Test
+    void pagesCoverEveryStudentOnceAcrossBoundaries() {
+        Faculty f = facultyRepository.save(new Faculty("Пуффендуй " + System.nanoTime(), "желтый"));
+        List<Long> created = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            created.add(studentRepository.save(new Student("Седрик " + i + " " + System.nanoTime(), 17, f)).getId());
+        }
+        // курсор перед первым созданным студентом, чтобы не зависеть от данных других тестов
+        String after = PageCursor.encode(created.get(0) - 1);
+
+        List<Long> seen = new ArrayList<>();
+        int pages = 0;
+        do {
+            KeysetPage<StudentDTO> page = studentService.getStudentsPage(after, 2);
+            page.content().forEach(student -> seen.add(student.id()));
+            after = page.next();
+            pages++;
+        } while (after != null);
+
+        assertThat(seen).startsWith(created.toArray(Long[]::new));
+        assertThat(seen).doesNotHaveDuplicates().isSorted();
+        assertThat(pages).isGreaterThanOrEqualTo(3);
+    }
+}
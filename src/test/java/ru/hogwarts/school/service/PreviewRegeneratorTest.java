@@ -0,0 +1,104 @@
+package ru.hogwarts.school.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.ActiveProfiles;
+import ru.hogwarts.school.model.Avatar;
+import ru.hogwarts.school.model.MaintenanceCheckpoint;
+import ru.hogwarts.school.model.Student;
+import ru.hogwarts.school.repository.AvatarPreviewRepository;
+import ru.hogwarts.school.repository.AvatarRepository;
+import ru.hogwarts.school.repository.MaintenanceCheckpointRepository;
+import ru.hogwarts.school.repository.StudentRepository;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@SpringBootTest
+@ActiveProfiles("test")
+class PreviewRegeneratorTest {
+    @Autowired
+    private PreviewRegenerator previewRegenerator;
+    @Autowired
+    private AvatarRepository avatarRepository;
+    @Autowired
+    private AvatarPreviewRepository avatarPreviewRepository;
+    @Autowired
+    private MaintenanceCheckpointRepository checkpointRepository;
+    @Autowired
+    private StudentRepository studentRepository;
+    @TempDir
+    Path dir;
+
+    @Test
+    void brokenAvatarIsReportedAndDoesNotStopRegeneration() throws Exception {
+        Avatar broken = avatar(Files.write(dir.resolve("broken.png"), new byte[]{1, 2, 3, 4}));
+        Avatar good = avatar(image("good.png"));
+
+        previewRegenerator.start(true);
+        PreviewRegenerator.Progress progress = awaitFinished();
+
+        assertThat(progress.status()).isEqualTo(PreviewRegenerator.Status.COMPLETED);
+        assertThat(progress.failed()).isPositive();
+        assertThat(progress.recentFailures())
+                .extracting(PreviewRegenerator.Failure::avatarId)
+                .contains(broken.getId());
+        assertThat(avatarPreviewRepository.findById(good.getId())).isPresent();
+        assertThat(avatarPreviewRepository.findById(broken.getId())).isEmpty();
+        assertThat(checkpointRepository.existsById(PreviewRegenerator.CHECKPOINT)).isFalse();
+    }
+
+    @Test
+    void interruptedRegenerationResumesAfterSavedPosition() throws Exception {
+        Avatar done = avatar(image("done.png"));
+        Avatar pending = avatar(image("pending.png"));
+        MaintenanceCheckpoint checkpoint = new MaintenanceCheckpoint(PreviewRegenerator.CHECKPOINT);
+        checkpoint.setPosition(String.valueOf(done.getId()));
+        checkpoint.setUpdatedAt(Instant.now());
+        checkpointRepository.save(checkpoint);
+
+        // как при старте приложения после остановки посреди перестроения
+        previewRegenerator.resumeInterrupted();
+        PreviewRegenerator.Progress progress = awaitFinished();
+
+        assertThat(progress.status()).isEqualTo(PreviewRegenerator.Status.COMPLETED);
+        assertThat(avatarPreviewRepository.findById(done.getId())).isEmpty();
+        assertThat(avatarPreviewRepository.findById(pending.getId())).isPresent();
+        assertThat(checkpointRepository.existsById(PreviewRegenerator.CHECKPOINT)).isFalse();
+    }
+
+    private PreviewRegenerator.Progress awaitFinished() throws InterruptedException {
+        Instant deadline = Instant.now().plusSeconds(30);
+        while (previewRegenerator.getProgress().status() == PreviewRegenerator.Status.RUNNING
+                && Instant.now().isBefore(deadline)) {
+            Thread.sleep(50);
+        }
+        return previewRegenerator.getProgress();
+    }
+
+    private Path image(String name) throws IOException {
+        Path file = dir.resolve(name);
+        ImageIO.write(new BufferedImage(300, 200, BufferedImage.TYPE_INT_RGB), "png", file.toFile());
+        return file;
+    }
+
+    private Avatar avatar(Path file) throws IOException {
+        Student student = new Student();
+        student.setName("Винки " + System.nanoTime());
+        student.setAge(17);
+        Avatar avatar = new Avatar();
+        avatar.setStudent(studentRepository.save(student));
+        avatar.setFilePath(file.toAbsolutePath().toString());
+        avatar.setFileSize(Files.size(file));
+        avatar.setMediaType("image/png");
+        return avatarRepository.save(avatar);
+    }
+}
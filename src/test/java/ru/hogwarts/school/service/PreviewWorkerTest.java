@@ -0,0 +1,153 @@
+package ru.hogwarts.school.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.ActiveProfiles;
+import ru.hogwarts.school.model.Avatar;
+import ru.hogwarts.school.model.PreviewJob;
+import ru.hogwarts.school.model.Student;
+import ru.hogwarts.school.repository.AvatarPreviewRepository;
+import ru.hogwarts.school.repository.AvatarRepository;
+import ru.hogwarts.school.repository.PreviewJobRepository;
+import ru.hogwarts.school.repository.StudentRepository;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@SpringBootTest
+@ActiveProfiles("test")
+class PreviewWorkerTest {
+    @Autowired
+    private PreviewWorker previewWorker;
+    @Autowired
+    private PreviewJobRepository previewJobRepository;
+    @Autowired
+    private AvatarRepository avatarRepository;
+    @Autowired
+    private AvatarPreviewRepository avatarPreviewRepository;
+    @Autowired
+    private StudentRepository studentRepository;
+    @Value("${students.avatar.preview.max-attempts}")
+    private int maxAttempts;
+    @TempDir
+    Path dir;
+
+    @Test
+    void jobOfDeletedAvatarIsRemovedInsteadOfStayingRunning() {
+        long avatarId = Long.MAX_VALUE - System.nanoTime() % 1_000_000;
+        previewJobRepository.save(job(avatarId, 0, Instant.now().plus(Duration.ofHours(1))));
+
+        previewWorker.process(avatarId);
+
+        assertThat(previewJobRepository.findById(avatarId)).isEmpty();
+    }
+
+    @Test
+    void undecodableAvatarIsRetriedWithBackoffThenFailed() throws IOException {
+        Avatar avatar = avatar(Files.write(dir.resolve("broken.png"), new byte[]{1, 2, 3, 4}));
+        // задача не должна попасть в опрос по расписанию, пока тест ее проверяет
+        Instant later = Instant.now().plus(Duration.ofHours(1));
+        previewJobRepository.save(job(avatar.getId(), 0, later));
+
+        previewWorker.process(avatar.getId());
+
+        PreviewJob retried = previewJobRepository.findById(avatar.getId()).orElseThrow();
+        assertThat(retried.getStatus()).isEqualTo(PreviewJob.Status.PENDING);
+        assertThat(retried.getAttempts()).isEqualTo(1);
+        assertThat(retried.getLastError()).isNotBlank();
+        assertThat(retried.getNextAttemptAt()).isAfter(Instant.now());
+
+        retried.setAttempts(maxAttempts - 1);
+        previewJobRepository.save(retried);
+        previewWorker.process(avatar.getId());
+
+        assertThat(previewJobRepository.findById(avatar.getId()).orElseThrow().getStatus())
+                .isEqualTo(PreviewJob.Status.FAILED);
+    }
+
+    @Test
+    void staleRunningJobIsResumedByPoll() throws Exception {
+        Path image = dir.resolve("photo.png");
+        ImageIO.write(new BufferedImage(300, 200, BufferedImage.TYPE_INT_RGB), "png", image.toFile());
+        Avatar avatar = avatar(image);
+        PreviewJob abandoned = job(avatar.getId(), 1, Instant.now().plus(Duration.ofHours(1)));
+        abandoned.setStatus(PreviewJob.Status.RUNNING);
+        abandoned.setUpdatedAt(Instant.now().minus(Duration.ofHours(1)));
+        previewJobRepository.save(abandoned);
+
+        previewWorker.poll();
+
+        Instant deadline = Instant.now().plusSeconds(10);
+        while (previewJobRepository.findById(avatar.getId()).orElseThrow().getStatus() != PreviewJob.Status.DONE
+                && Instant.now().isBefore(deadline)) {
+            Thread.sleep(50);
+        }
+        assertThat(previewJobRepository.findById(avatar.getId()).orElseThrow().getStatus())
+                .isEqualTo(PreviewJob.Status.DONE);
+        assertThat(avatarPreviewRepository.findById(avatar.getId())).isPresent();
+    }
+
+    @Test
+    void uploadedAvatarIsTranscodedBeforePreview() throws IOException {
+        Path image = dir.resolve("large.png");
+        ImageIO.write(new BufferedImage(2000, 1500, BufferedImage.TYPE_INT_RGB), "png", image.toFile());
+        Avatar avatar = avatar(image);
+        previewJobRepository.save(job(avatar.getId(), 0, Instant.now().plus(Duration.ofHours(1))));
+
+        previewWorker.process(avatar.getId());
+
+        Avatar transcoded = avatarRepository.findById(avatar.getId()).orElseThrow();
+        assertThat(transcoded.getMediaType()).isEqualTo("image/jpeg");
+        assertThat(transcoded.getOriginalSize()).isEqualTo(Files.size(image));
+        assertThat(transcoded.getFilePath()).isNotEqualTo(avatar.getFilePath());
+        assertThat(avatarPreviewRepository.findById(avatar.getId())).isPresent();
+    }
+
+    @Test
+    void smallAvatarIsKeptWhenTranscodingDoesNotShrinkIt() throws IOException {
+        // однотонный PNG в несколько десятков байт меньше любого JPEG
+        Path image = dir.resolve("small.png");
+        ImageIO.write(new BufferedImage(64, 48, BufferedImage.TYPE_INT_RGB), "png", image.toFile());
+        Avatar avatar = avatar(image);
+        previewJobRepository.save(job(avatar.getId(), 0, Instant.now().plus(Duration.ofHours(1))));
+
+        previewWorker.process(avatar.getId());
+
+        Avatar kept = avatarRepository.findById(avatar.getId()).orElseThrow();
+        assertThat(kept.getFilePath()).isEqualTo(avatar.getFilePath());
+        assertThat(kept.getMediaType()).isEqualTo("image/png");
+        assertThat(kept.getOriginalSize()).isEqualTo(Files.size(image));
+        assertThat(avatarPreviewRepository.findById(avatar.getId())).isPresent();
+    }
+
+    private Avatar avatar(Path file) throws IOException {
+        Student student = new Student();
+        student.setName("Добби " + System.nanoTime());
+        student.setAge(17);
+        Avatar avatar = new Avatar();
+        avatar.setStudent(studentRepository.save(student));
+        avatar.setFilePath(file.toAbsolutePath().toString());
+        avatar.setFileSize(Files.size(file));
+        avatar.setMediaType("image/png");
+        return avatarRepository.save(avatar);
+    }
+
+    private static PreviewJob job(long avatarId, int attempts, Instant nextAttemptAt) {
+        PreviewJob job = new PreviewJob(avatarId);
+        job.setStatus(PreviewJob.Status.PENDING);
+        job.setAttempts(attempts);
+        job.setNextAttemptAt(nextAttemptAt);
+        job.setUpdatedAt(Instant.now());
+        return job;
+    }
+}
@@ -0,0 +1,65 @@
+package ru.hogwarts.school.service;
+
+import jakarta.persistence.EntityManagerFactory;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.ActiveProfiles;
+import ru.hogwarts.school.model.Faculty;
+import ru.hogwarts.school.model.Student;
+import ru.hogwarts.school.repository.FacultyRepository;
+import ru.hogwarts.school.repository.StudentRepository;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@SpringBootTest
+@ActiveProfiles("test")
+class SecondLevelCacheTest {
+    @Autowired
+    private StudentService studentService;
+    @Autowired
+    private StudentRepository studentRepository;
+    @Autowired
+    private FacultyRepository facultyRepository;
+    @Autowired
+    private EntityManagerFactory entityManagerFactory;
+
+    private Statistics statistics;
+    private Student student;
+
+    @BeforeEach
+    void setUp() {
+        Faculty f = facultyRepository.save(new Faculty("Когтевран " + System.nanoTime(), "бронзовый"));
+        Student s = new Student();
+        s.setName("Полумна " + System.nanoTime());
+        s.setAge(17);
+        s.setFaculty(f);
+        student = studentRepository.save(s);
+
+        statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+        statistics.clear();
+    }
+
+    @Test
+    void findStudentIsServedFromSecondLevelCache() {
+        studentService.findStudent(student.getId());
+        studentService.findStudent(student.getId());
+        long statements = statistics.getPrepareStatementCount();
+        studentService.findStudent(student.getId());
+
+        assertThat(statistics.getDomainDataRegionStatistics("students").getHitCount()).isGreaterThanOrEqualTo(2);
+        assertThat(statistics.getPrepareStatementCount()).isEqualTo(statements);
+    }
+
+    @Test
+    void derivedFinderIsServedFromQueryCache() {
+        studentRepository.findStudentByNameIgnoreCaseContains(student.getName());
+        studentRepository.findStudentByNameIgnoreCaseContains(student.getName());
+
+        assertThat(statistics.getQueryCacheMissCount()).isEqualTo(1);
+        assertThat(statistics.getQueryCacheHitCount()).isEqualTo(1);
+    }
+}
@@ -0,0 +1,116 @@
+package ru.hogwarts.school.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import ru.hogwarts.school.model.StudentState;
+import ru.hogwarts.school.model.listener.StudentChangedEvent;
+import ru.hogwarts.school.repository.FacultyRepository;
+import ru.hogwarts.school.repository.StudentRepository;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class StatisticsRegistryTest {
+    private final StudentRepository studentRepository = mock(StudentRepository.class);
+    private final FacultyRepository facultyRepository = mock(FacultyRepository.class);
+    private StatisticsRegistry registry;
+
+    @BeforeEach
+    void setUp() {
+        database(List.of(ages(17, 2)), List.of(faculty(1L, 2)));
+        registry = new StatisticsRegistry(studentRepository, facultyRepository);
+        registry.reconcile();
+    }
+
+    @AfterEach
+    void clearSynchronization() {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+    }
+
+    @Test
+    void reconcileIsSkippedWhileCommittedEventIsNotApplied() {
+        TransactionSynchronizationManager.initSynchronization();
+        registry.onStudentChanged(new StudentChangedEvent(null, new StudentState(3L, "Гермиона", 18, 1L)));
+        // транзакция уже закоммичена, и сверка видит нового студента раньше, чем событие применено
+        database(List.of(ages(17, 2), ages(18, 1)), List.of(faculty(1L, 3)));
+
+        registry.reconcile();
+        assertThat(registry.getStudentCount()).isEqualTo(2);
+
+        complete(TransactionSynchronization.STATUS_COMMITTED);
+        assertThat(registry.getStudentCount()).isEqualTo(3);
+
+        registry.reconcile();
+        assertThat(registry.getStudentCount()).isEqualTo(3);
+        assertThat(registry.getStudentCountOfFaculty(1L)).isEqualTo(3);
+        assertThat(registry.getMaxAge()).isEqualTo(18);
+    }
+
+    @Test
+    void rolledBackEventIsNotApplied() {
+        TransactionSynchronizationManager.initSynchronization();
+        registry.onStudentChanged(new StudentChangedEvent(null, new StudentState(3L, "Гермиона", 18, 1L)));
+
+        complete(TransactionSynchronization.STATUS_ROLLED_BACK);
+
+        assertThat(registry.getStudentCount()).isEqualTo(2);
+        assertThat(registry.getMaxAge()).isEqualTo(17);
+    }
+
+    @Test
+    void updateWithoutBeforeStateTriggersReconcile() {
+        registry.onStudentChanged(StudentChangedEvent.updatedWithoutBefore(new StudentState(1L, "Рон", 18, 2L)));
+        database(List.of(ages(17, 1), ages(18, 1)), List.of(faculty(1L, 1), faculty(2L, 1)));
+        assertThat(registry.getStudentCountOfAge(18)).isZero();
+
+        registry.reconcileIfStale();
+
+        assertThat(registry.getStudentCount()).isEqualTo(2);
+        assertThat(registry.getStudentCountOfAge(18)).isEqualTo(1);
+        assertThat(registry.getStudentCountOfFaculty(2L)).isEqualTo(1);
+    }
+
+    private void complete(int status) {
+        List<TransactionSynchronization> synchronizations = TransactionSynchronizationManager.getSynchronizations();
+        TransactionSynchronizationManager.clearSynchronization();
+        synchronizations.forEach(synchronization -> synchronization.afterCompletion(status));
+    }
+
+    private void database(List<StudentRepository.AgeCount> byAge, List<StudentRepository.FacultyCount> byFaculty) {
+        when(studentRepository.countByAge()).thenReturn(byAge);
+        when(studentRepository.countByFaculty()).thenReturn(byFaculty);
+        when(facultyRepository.count()).thenReturn((long) byFaculty.size());
+    }
+
+    private static StudentRepository.AgeCount ages(int age, long total) {
+        return new StudentRepository.AgeCount() {
+            public int getAge() {
+                return age;
+            }
+
+            public long getTotal() {
+                return total;
+            }
+        };
+    }
+
+    private static StudentRepository.FacultyCount faculty(Long facultyId, long total) {
+        return new StudentRepository.FacultyCount() {
+            public Long getFacultyId() {
+                return facultyId;
+            }
+
+            public long getTotal() {
+                return total;
+            }
+        };
+    }
+}
@@ -0,0 +1,98 @@
+package ru.hogwarts.school.service;
+
+import jakarta.persistence.EntityManagerFactory;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.ActiveProfiles;
+import ru.hogwarts.school.model.Faculty;
+import ru.hogwarts.school.model.Student;
+import ru.hogwarts.school.model.exception.InvalidValueException;
+import ru.hogwarts.school.repository.FacultyRepository;
+import ru.hogwarts.school.repository.StudentRepository;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+@SpringBootTest
+@ActiveProfiles("test")
+class StudentBatchInsertTest {
+    @Autowired
+    private StudentService studentService;
+    @Autowired
+    private StudentRepository studentRepository;
+    @Autowired
+    private FacultyRepository facultyRepository;
+    @Autowired
+    private EntityManagerFactory entityManagerFactory;
+    @Value("${students.batch.size}")
+    private int batchSize;
+
+    private Faculty faculty;
+
+    @BeforeEach
+    void setUp() {
+        faculty = facultyRepository.save(new Faculty("Гриффиндор " + System.nanoTime(), "красный"));
+    }
+
+    @Test
+    void batchLargerThanChunkIsFlushedPerChunk() {
+        List<Student> students = students("Невилл", 2 * batchSize + 1);
+        Statistics statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+        statistics.clear();
+
+        List<Student> saved = studentService.addStudents(students);
+
+        assertThat(saved).extracting(Student::getId).doesNotContainNull().doesNotHaveDuplicates();
+        assertThat(statistics.getEntityInsertCount()).isEqualTo(students.size());
+        assertThat(statistics.getFlushCount()).isGreaterThanOrEqualTo(3);
+        assertThat(studentRepository.findAllById(saved.stream().map(Student::getId).toList()))
+                .hasSize(students.size())
+                .allSatisfy(student -> assertThat(student.getFaculty()).isEqualTo(faculty));
+    }
+
+    @Test
+    void existingNameRejectsWholeBatch() {
+        List<Student> students = students("Симус", batchSize + 5);
+        Student existing = new Student();
+        existing.setName(students.get(batchSize + 2).getName());
+        existing.setAge(17);
+        studentRepository.save(existing);
+        long before = studentRepository.count();
+
+        assertThatThrownBy(() -> studentService.addStudents(students)).isInstanceOf(InvalidValueException.class);
+
+        assertThat(studentRepository.count()).isEqualTo(before);
+    }
+
+    @Test
+    void repeatedNameInsideBatchIsRejected() {
+        List<Student> students = students("Дин", batchSize + 1);
+        students.get(batchSize).setName(students.get(0).getName());
+        long before = studentRepository.count();
+
+        assertThatThrownBy(() -> studentService.addStudents(students)).isInstanceOf(InvalidValueException.class);
+
+        assertThat(studentRepository.count()).isEqualTo(before);
+    }
+
+    private List<Student> students(String name, int count) {
+        long suffix = System.nanoTime();
+        List<Student> students = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Student student = new Student();
+            student.setName(name + " " + suffix + " " + i);
+            student.setAge(17);
+            student.setFaculty(faculty);
+            students.add(student);
+        }
+        return students;
+    }
+}
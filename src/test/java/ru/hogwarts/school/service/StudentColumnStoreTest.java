@@ -0,0 +1,89 @@
+package ru.hogwarts.school.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.transaction.PlatformTransactionManager;
+import ru.hogwarts.school.model.StudentState;
+import ru.hogwarts.school.model.listener.StudentChangedEvent;
+import ru.hogwarts.school.repository.StudentRepository;
+
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class StudentColumnStoreTest {
+    private final StudentRepository studentRepository = mock(StudentRepository.class);
+    private final StudentColumnStore store = new StudentColumnStore(studentRepository,
+            mock(PlatformTransactionManager.class), new SimpleMeterRegistry(), true);
+
+    @Test
+    void eventsArrivingDuringLoadAreReplayed() {
+        List<StudentState> rows = List.of(state(1, "Гарри", 17), state(2, "Рон", 17), state(3, "Гермиона", 18));
+        when(studentRepository.count()).thenReturn((long) rows.size());
+        when(studentRepository.streamAllStudentStates()).thenReturn(rows.stream().peek(row -> {
+            if (row.id() == 2) {
+                // строка 1 уже прочитана, строки 3 еще нет
+                store.onStudentChanged(new StudentChangedEvent(state(1, "Гарри", 17), state(1, "Гарри", 19)));
+                store.onStudentChanged(new StudentChangedEvent(state(3, "Гермиона", 18), null));
+                store.onStudentChanged(new StudentChangedEvent(null, state(4, "Джинни", 17)));
+            }
+        }));
+
+        store.load();
+
+        assertThat(store.isReady()).isTrue();
+        assertThat(store.size()).isEqualTo(3);
+        assertThat(store.findIdsByAge(17)).containsExactly(2, 4);
+        assertThat(store.findIdsByAge(19)).containsExactly(1);
+        assertThat(store.findIdsByAge(18)).isEmpty();
+    }
+
+    @Test
+    void insertBeforeDeletedRowKeepsDeletionOnThatRow() {
+        load(state(10, "Фред", 20), state(30, "Джордж", 20), state(50, "Перси", 22));
+        store.onStudentChanged(new StudentChangedEvent(state(30, "Джордж", 20), null));
+
+        store.onStudentChanged(new StudentChangedEvent(null, state(20, "Билл", 20)));
+        store.onStudentChanged(new StudentChangedEvent(null, state(5, "Чарли", 22)));
+
+        assertThat(store.findIdsByAge(20)).containsExactly(10, 20);
+        assertThat(store.findIdsByAge(22)).containsExactly(5, 50);
+        assertThat(store.findNamesStartingWith("Д")).isEmpty();
+
+        store.onStudentChanged(new StudentChangedEvent(null, state(30, "Джордж", 21)));
+        assertThat(store.findIdsByAge(21)).containsExactly(30);
+        assertThat(store.findNamesStartingWith("Д")).containsExactly("Джордж");
+        assertThat(store.size()).isEqualTo(5);
+    }
+
+    @Test
+    void renamesWithoutDeletesDoNotGrowNames() {
+        load(state(1, "Невилл", 17), state(2, "Полумна", 17));
+        for (int i = 0; i < 20; i++) {
+            store.onStudentChanged(new StudentChangedEvent(state(1, "Невилл", 17), state(1, "Невилл " + i, 17)));
+        }
+        long settled = store.memoryBytes();
+
+        for (int i = 0; i < 10_000; i++) {
+            store.onStudentChanged(new StudentChangedEvent(state(1, "Невилл", 17),
+                    state(1, "Невилл Лонгботтом " + i, 17)));
+        }
+
+        assertThat(store.memoryBytes()).isLessThan(settled + 4096);
+        assertThat(store.findNamesStartingWith("Невилл")).containsExactly("Невилл Лонгботтом 9999");
+        assertThat(store.findNamesStartingWith("Полумна")).containsExactly("Полумна");
+    }
+
+    private void load(StudentState... rows) {
+        when(studentRepository.count()).thenReturn((long) rows.length);
+        when(studentRepository.streamAllStudentStates()).thenReturn(Stream.of(rows));
+        store.load();
+    }
+
+    private static StudentState state(long id, String name, int age) {
+        return new StudentState(id, name, age, null);
+    }
+}
@@ -0,0 +1,70 @@
+package ru.hogwarts.school.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import ru.hogwarts.school.dto.StudentDTO;
+import ru.hogwarts.school.model.Faculty;
+import ru.hogwarts.school.model.Student;
+import ru.hogwarts.school.repository.FacultyRepository;
+import ru.hogwarts.school.repository.StudentRepository;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@SpringBootTest(properties = "students.export.batch-size=2")
+@ActiveProfiles("test")
+class StudentExportTest {
+    @Autowired
+    private StudentService studentService;
+    @Autowired
+    private StudentRepository studentRepository;
+    @Autowired
+    private FacultyRepository facultyRepository;
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Test
+    void exportWritesOneJsonObjectPerLineAcrossBatches() throws IOException {
+        Faculty f = facultyRepository.save(new Faculty("Слизерин " + System.nanoTime(), "зеленый"));
+        List<Student> created = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            Student s = new Student();
+            s.setName("Драко " + i + " " + System.nanoTime());
+            s.setAge(17);
+            s.setFaculty(f);
+            created.add(studentRepository.save(s));
+        }
+
+        List<Boolean> writesInTransaction = new ArrayList<>();
+        ByteArrayOutputStream out = new ByteArrayOutputStream() {
+            @Override
+            public void write(byte[] b, int off, int len) {
+                writesInTransaction.add(TransactionSynchronizationManager.isActualTransactionActive());
+                super.write(b, off, len);
+            }
+        };
+        studentService.exportStudents(out);
+
+        String body = out.toString(StandardCharsets.UTF_8);
+        assertThat(body).endsWith("\n").doesNotContain("[", "\n\n");
+        List<StudentDTO> exported = new ArrayList<>();
+        for (String line : body.split("\n")) {
+            exported.add(objectMapper.readValue(line, StudentDTO.class));
+        }
+        assertThat(exported).extracting(StudentDTO::id).doesNotHaveDuplicates().isSorted();
+        for (Student student : created) {
+            assertThat(exported).contains(new StudentDTO(student.getId(), student.getName(), 17, f.getName()));
+        }
+        // порции пишутся клиенту вне транзакции, соединение с базой к этому моменту возвращено
+        assertThat(writesInTransaction).isNotEmpty().doesNotContain(true);
+    }
+}
@@ -0,0 +1,175 @@
+package ru.hogwarts.school.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import ru.hogwarts.school.model.Student;
+import ru.hogwarts.school.model.UploadSession;
+import ru.hogwarts.school.model.exception.FileTooLargeException;
+import ru.hogwarts.school.model.exception.UploadOffsetConflictException;
+import ru.hogwarts.school.repository.AvatarRepository;
+import ru.hogwarts.school.repository.StudentRepository;
+import ru.hogwarts.school.repository.UploadSessionRepository;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+@SpringBootTest
+@ActiveProfiles("test")
+class UploadSessionServiceTest {
+    @TempDir
+    static Path avatarsDir;
+
+    @DynamicPropertySource
+    static void avatarsDir(DynamicPropertyRegistry registry) {
+        registry.add("students.avatar.dir.path", () -> avatarsDir.toString());
+    }
+
+    @Autowired
+    private UploadSessionService uploadSessionService;
+    @Autowired
+    private UploadSessionRepository uploadSessionRepository;
+    @Autowired
+    private AvatarRepository avatarRepository;
+    @Autowired
+    private StudentRepository studentRepository;
+    @Autowired
+    private AvatarStorage avatarStorage;
+    private final List<String> sessions = new ArrayList<>();
+
+    @AfterEach
+    void abortLeftoverSessions() throws IOException {
+        for (String id : sessions) {
+            if (uploadSessionRepository.existsById(id)) {
+                uploadSessionService.abort(id);
+            }
+        }
+    }
+
+    @Test
+    void chunkWithWrongOffsetIsRejected() throws IOException {
+        UploadSession session = session(student().getId(), 10);
+
+        assertThatThrownBy(() -> uploadSessionService.append(session.getId(), 5, new ByteArrayInputStream(new byte[5])))
+                .isInstanceOfSatisfying(UploadOffsetConflictException.class,
+                        e -> assertThat(e.getOffset()).isZero());
+
+        uploadSessionService.append(session.getId(), 0, new ByteArrayInputStream(new byte[4]));
+        assertThatThrownBy(() -> uploadSessionService.append(session.getId(), 0, new ByteArrayInputStream(new byte[4])))
+                .isInstanceOfSatisfying(UploadOffsetConflictException.class,
+                        e -> assertThat(e.getOffset()).isEqualTo(4));
+        assertThat(uploadSessionService.get(session.getId()).getReceivedSize()).isEqualTo(4);
+    }
+
+    @Test
+    void oversizeChunkIsRejectedWithoutAdvancing() throws IOException {
+        UploadSession session = session(student().getId(), 10);
+        uploadSessionService.append(session.getId(), 0, new ByteArrayInputStream(new byte[4]));
+
+        assertThatThrownBy(() -> uploadSessionService.append(session.getId(), 4, new ByteArrayInputStream(new byte[7])))
+                .isInstanceOf(FileTooLargeException.class);
+
+        assertThat(uploadSessionService.get(session.getId()).getReceivedSize()).isEqualTo(4);
+        uploadSessionService.append(session.getId(), 4, new ByteArrayInputStream(new byte[6]));
+        assertThat(uploadSessionService.get(session.getId()).getReceivedSize()).isEqualTo(10);
+    }
+
+    @Test
+    void interruptedChunkIsResumedFromReceivedOffset() throws IOException {
+        Student student = student();
+        byte[] png = png();
+        UploadSession session = session(student.getId(), png.length);
+        int cut = png.length / 2;
+
+        assertThatThrownBy(() -> uploadSessionService.append(session.getId(), 0, dropsAfter(png, cut)))
+                .isInstanceOf(IOException.class);
+
+        long received = uploadSessionService.get(session.getId()).getReceivedSize();
+        assertThat(received).isEqualTo(cut);
+        uploadSessionService.append(session.getId(), received,
+                new ByteArrayInputStream(Arrays.copyOfRange(png, (int) received, png.length)));
+
+        assertThat(uploadSessionService.complete(session.getId())).isEqualTo(student.getId());
+        assertThat(avatarRepository.findByStudentId(student.getId())).isPresent();
+        assertThat(uploadSessionRepository.existsById(session.getId())).isFalse();
+    }
+
+    @Test
+    void expiredSessionIsRemovedWithItsFile() throws IOException {
+        UploadSession session = session(student().getId(), 10);
+        Path file = avatarStorage.sessionsDir().resolve(session.getId() + ".part");
+        assertThat(file).exists();
+        session.setExpiresAt(Instant.now().minusSeconds(1));
+        uploadSessionRepository.save(session);
+
+        uploadSessionService.removeExpired();
+
+        assertThat(uploadSessionRepository.existsById(session.getId())).isFalse();
+        assertThat(Files.exists(file)).isFalse();
+    }
+
+    private UploadSession session(Long studentId, long totalSize) throws IOException {
+        UploadSession session = uploadSessionService.create(studentId, totalSize);
+        sessions.add(session.getId());
+        return session;
+    }
+
+    private Student student() {
+        Student student = new Student();
+        student.setName("Букля " + System.nanoTime());
+        student.setAge(17);
+        return studentRepository.save(student);
+    }
+
+    private static byte[] png() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(64, 48, BufferedImage.TYPE_INT_RGB), "png", out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Поток, обрывающийся после {@code length} байт, как разорванное соединение.
+     */
+    private static InputStream dropsAfter(byte[] data, int length) {
+        return new InputStream() {
+            private int position;
+
+            @Override
+            public int read() throws IOException {
+                if (position == length) {
+                    throw new IOException("Соединение разорвано");
+                }
+                return data[position++] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (position == length) {
+                    throw new IOException("Соединение разорвано");
+                }
+                int chunk = Math.min(len, length - position);
+                System.arraycopy(data, position, b, off, chunk);
+                position += chunk;
+                return chunk;
+            }
+        };
+    }
+}